@@ -0,0 +1,195 @@
+package org.wallentines.gradle.packserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.entity.mime.ByteArrayBody;
+import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+
+/**
+ * Pushes a pack as a delta against the version its tag points to on the
+ * server. The server is sent a manifest of the pack's entries, and only the
+ * entries it does not already have are uploaded. The server rebuilds the pack
+ * from those, so this only works for packs zipped the way BuildPackTask zips
+ * them, with every entry's times set to the epoch.
+ */
+public class DeltaUpload {
+
+    private final CloseableHttpClient client;
+    private final String address;
+    private final String token;
+    private final String sha1;
+    private final String tag;
+    private final Opener pack;
+
+    /**
+     * Creates a delta upload
+     * @param client The client to send requests with
+     * @param address The server's URL, ending in a slash
+     * @param token The token to authenticate with
+     * @param sha1 The pack's SHA-1 hash
+     * @param tag The tag to give the pack
+     * @param pack Opens the pack zip for reading
+     */
+    public DeltaUpload(CloseableHttpClient client, String address, String token,
+                       String sha1, String tag, Opener pack) {
+        this.client = client;
+        this.address = address;
+        this.token = token;
+        this.sha1 = sha1;
+        this.tag = tag;
+        this.pack = pack;
+    }
+
+    /**
+     * Tries to push the pack
+     * @return True if the server stored the pack, or false if the whole pack
+     *     should be pushed instead
+     */
+    public boolean push() throws IOException {
+
+        String encodedTag = URLEncoder.encode(tag, StandardCharsets.UTF_8);
+        List<String> names = new ArrayList<>();
+        byte[] manifest = createManifest(names);
+
+        HttpPost post = new HttpPost(address + "delta?tag=" + encodedTag);
+        post.setEntity(new ByteArrayEntity(manifest, ContentType.TEXT_PLAIN));
+        Response res = send(post);
+        if (res.code() != 200) {
+            // There is no earlier version of the pack to start from
+            return false;
+        }
+
+        String[] lines = res.body().split("\n");
+        String base = lines[0].trim();
+        Set<String> held = new HashSet<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (!lines[i].isBlank()) {
+                held.add(names.get(Integer.parseInt(lines[i].trim())));
+            }
+        }
+        if (held.isEmpty()) {
+            return false;
+        }
+
+        byte[] entries = createEntries(held);
+
+        post = new HttpPost(address + "delta/push?tag=" + encodedTag +
+                            "&base=" + base + "&hash=" + sha1);
+        post.setEntity(
+            MultipartEntityBuilder.create()
+                .addPart("manifest",
+                         new ByteArrayBody(manifest, ContentType.TEXT_PLAIN,
+                                           "manifest"))
+                .addPart("entries",
+                         new ByteArrayBody(entries,
+                                           ContentType.APPLICATION_OCTET_STREAM,
+                                           "entries.zip"))
+                .build());
+        res = send(post);
+        return res.code() == 200;
+    }
+
+    /**
+     * Lists the pack's entries, in order, with the hash, CRC and size of
+     * each
+     */
+    private byte[] createManifest(List<String> names) throws IOException {
+
+        StringBuilder out = new StringBuilder();
+        try (ZipInputStream zis = new ZipInputStream(pack.open())) {
+            ZipEntry ent;
+            while ((ent = zis.getNextEntry()) != null) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                CRC32 crc = new CRC32();
+                long size = 0;
+
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = zis.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    crc.update(buffer, 0, read);
+                    size += read;
+                }
+
+                names.add(ent.getName());
+                out.append(HexFormat.of().formatHex(digest.digest()))
+                    .append(' ')
+                    .append(Long.toHexString(crc.getValue()))
+                    .append(' ')
+                    .append(size)
+                    .append(' ')
+                    .append(ent.getName())
+                    .append('\n');
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Zips the entries the server does not have
+     */
+    private byte[] createEntries(Set<String> held) throws IOException {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipInputStream zis = new ZipInputStream(pack.open());
+             ZipOutputStream zos = new ZipOutputStream(baos)) {
+            ZipEntry ent;
+            while ((ent = zis.getNextEntry()) != null) {
+                if (held.contains(ent.getName())) {
+                    continue;
+                }
+                ZipEntry out = new ZipEntry(ent.getName());
+                out.setLastModifiedTime(FileTime.from(Instant.EPOCH));
+                zos.putNextEntry(out);
+                zis.transferTo(zos);
+                zos.closeEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    private Response send(ClassicHttpRequest req) throws IOException {
+        req.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        return client.execute(
+            req, res
+            -> new Response(res.getCode(),
+                            res.getEntity() == null
+                                ? ""
+                                : EntityUtils.toString(res.getEntity())));
+    }
+
+    private record Response(int code, String body) {}
+
+    /**
+     * Opens a pack for reading. It is read more than once.
+     */
+    @FunctionalInterface
+    public interface Opener {
+        InputStream open() throws IOException;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -24,12 +25,14 @@ import javax.inject.Inject;
 import net.fabricmc.loom.api.LoomGradleExtensionAPI;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.entity.mime.FileBody;
 import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
 import org.apache.hc.client5.http.entity.mime.StringBody;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpResponse;
 import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.gradle.api.Action;
@@ -279,6 +282,7 @@ public class PackUploaderExtension {
                 throw new RuntimeException(ex);
             }
 
+            Path zipPath = bpt.outputZip.getAsFile().get().toPath();
             try (ExecutorService executor = Executors.newFixedThreadPool(
                      Math.min(4, this.extension.uploadUrls.size()))) {
                 for (UploadInfo ent : extension.uploadUrls) {
@@ -311,8 +315,34 @@ public class PackUploaderExtension {
 
                             } else {
 
-                                HttpPost post =
-                                    new HttpPost(ent.url() + "push");
+                                // Most updates only change a few entries
+                                if (ent.tag != null &&
+                                    new DeltaUpload(
+                                        client, ent.url(), ent.token(), sha1,
+                                        ent.tag,
+                                        () -> Files.newInputStream(zipPath))
+                                        .push()) {
+                                    return;
+                                }
+
+                                // The server checks the token before
+                                // asking for the body, and can skip it if
+                                // it already has the pack
+                                String pushEndpoint =
+                                    ent.url() + "push?hash=" + sha1;
+                                if (ent.tag != null) {
+                                    pushEndpoint +=
+                                        "&tag=" + URLEncoder.encode(
+                                                      ent.tag,
+                                                      StandardCharsets.UTF_8);
+                                }
+                                HttpPost post = new HttpPost(pushEndpoint);
+                                post.setHeader(HttpHeaders.AUTHORIZATION,
+                                               "Bearer " + ent.token());
+                                post.setConfig(
+                                    RequestConfig.custom()
+                                        .setExpectContinueEnabled(true)
+                                        .build());
                                 MultipartEntityBuilder builder =
                                     MultipartEntityBuilder.create()
                                         .addPart("token",
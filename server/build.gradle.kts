@@ -13,6 +13,9 @@ dependencies {
     implementation(libs.netty.codec)
     implementation(libs.netty.codec.http)
     implementation(libs.netty.codec.http2)
+    implementation(libs.netty.codec.http3)
+    implementation(variantOf(libs.netty.codec.quic) { classifier("linux-x86_64") })
+    implementation(variantOf(libs.netty.codec.quic) { classifier("linux-aarch_64") })
     implementation(libs.netty.handler)
     implementation(libs.netty.transport)
     implementation(libs.netty.transport.epoll)
@@ -0,0 +1,207 @@
+package org.wallentines.packserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of requests of one kind which may run at once. Requests
+ * over the limit wait in a bounded queue, and are rejected with an estimate
+ * of when to retry if the queue is full or they wait too long.
+ */
+public class AdmissionController {
+
+    private static final long DEFAULT_HOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double HOLD_SMOOTHING = 0.2;
+    private static final long MAX_RETRY_AFTER = 3600;
+
+    private final String name;
+    private final int maxActive;
+    private final int maxQueued;
+    private final long queueTimeout;
+    private final ScheduledExecutorService scheduler;
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private int active;
+
+    private long admitted;
+    private long rejected;
+    private long timedOut;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private double averageHoldNanos = DEFAULT_HOLD_NANOS;
+
+    /**
+     * Creates an admission controller
+     * @param name The name of the requests being admitted, used in metrics
+     * @param maxActive The number of requests which may run at once, or 0 for
+     *     no limit
+     * @param maxQueued The number of requests which may wait for admission
+     * @param queueTimeout The number of milliseconds a request may wait
+     * @param scheduler The executor used to time out waiting requests
+     */
+    public AdmissionController(String name, int maxActive, int maxQueued,
+                               long queueTimeout,
+                               ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        this.queueTimeout = queueTimeout;
+        this.scheduler = scheduler;
+    }
+
+    public String name() { return name; }
+
+    /**
+     * Requests admission
+     * @return A future which completes with a permit once the request is
+     *     admitted, or fails with a RejectedException
+     */
+    public CompletableFuture<Permit> acquire() {
+
+        long now = System.nanoTime();
+        Waiter waiter;
+        synchronized (this) {
+            if (maxActive <= 0 || (active < maxActive && queue.isEmpty())) {
+                active++;
+                admitted++;
+                return CompletableFuture.completedFuture(new Permit(now));
+            }
+            if (queue.size() >= maxQueued) {
+                rejected++;
+                return CompletableFuture.failedFuture(
+                    new RejectedException(retryAfter()));
+            }
+
+            waiter = new Waiter(now);
+            queue.add(waiter);
+            waiter.timeout = scheduler.schedule(() -> timeout(waiter),
+                                                queueTimeout,
+                                                TimeUnit.MILLISECONDS);
+        }
+
+        return waiter.future;
+    }
+
+    private void timeout(Waiter waiter) {
+        long retryAfter;
+        synchronized (this) {
+            if (!queue.remove(waiter)) {
+                return;
+            }
+            timedOut++;
+            retryAfter = retryAfter();
+        }
+        waiter.future.completeExceptionally(new RejectedException(retryAfter));
+    }
+
+    private void release(Permit permit) {
+
+        long now = System.nanoTime();
+        Waiter next;
+        synchronized (this) {
+            averageHoldNanos += HOLD_SMOOTHING *
+                                ((now - permit.admittedAt) - averageHoldNanos);
+
+            next = queue.poll();
+            if (next == null) {
+                active--;
+                return;
+            }
+
+            long wait = now - next.queuedAt;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+            admitted++;
+        }
+
+        // The released slot passes straight to the next waiter
+        next.timeout.cancel(false);
+        if (!next.future.complete(new Permit(now))) {
+            release(new Permit(now));
+        }
+    }
+
+    /**
+     * Estimates the number of seconds until a new request could be admitted,
+     * based on how long recent requests have held their permits
+     */
+    private long retryAfter() {
+        double slots = Math.max(1, maxActive);
+        double seconds =
+            averageHoldNanos * (queue.size() + 1) / slots / 1_000_000_000.0;
+        return Math.clamp((long)Math.ceil(seconds), 1, MAX_RETRY_AFTER);
+    }
+
+    public synchronized int active() { return active; }
+
+    public synchronized int queued() { return queue.size(); }
+
+    public synchronized long admitted() { return admitted; }
+
+    public synchronized long rejected() { return rejected; }
+
+    public synchronized long timedOut() { return timedOut; }
+
+    public synchronized double totalWaitSeconds() {
+        return totalWaitNanos / 1_000_000_000.0;
+    }
+
+    public synchronized double maxWaitSeconds() {
+        return maxWaitNanos / 1_000_000_000.0;
+    }
+
+    /**
+     * Admission for a single request, which must be released when the
+     * request completes
+     */
+    public class Permit {
+
+        private final long admittedAt;
+        private boolean released;
+
+        private Permit(long admittedAt) { this.admittedAt = admittedAt; }
+
+        public void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            AdmissionController.this.release(this);
+        }
+    }
+
+    /**
+     * Thrown when a request could not be admitted
+     */
+    public static class RejectedException extends RuntimeException {
+
+        private final long retryAfter;
+
+        public RejectedException(long retryAfter) {
+            super("Request rejected, retry after " + retryAfter + " seconds",
+                  null, false, false);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return The number of seconds the client should wait before
+         *     retrying
+         */
+        public long retryAfter() { return retryAfter; }
+    }
+
+    private static class Waiter {
+
+        private final long queuedAt;
+        private final CompletableFuture<Permit> future =
+            new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+
+        Waiter(long queuedAt) { this.queuedAt = queuedAt; }
+    }
+}
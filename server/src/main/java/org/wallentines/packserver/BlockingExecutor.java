@@ -0,0 +1,131 @@
+package org.wallentines.packserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.wallentines.packserver.netty.ChannelType;
+
+/**
+ * Runs handlers which touch the filesystem, so a slow disk never stalls the
+ * event loops. Tasks run either on a fixed pool of platform threads with a
+ * bounded queue, or each on their own virtual thread up to a limit. Tasks
+ * submitted over the limit are rejected rather than run on the caller.
+ */
+public class BlockingExecutor implements Executor {
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final int threads;
+    private final int queueCapacity;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private BlockingExecutor(ExecutorService executor, ThreadPoolExecutor pool,
+                             int threads, int queueCapacity) {
+        this.executor = executor;
+        this.pool = pool;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Creates an executor backed by a fixed pool of platform threads
+     * @param threads The maximum number of threads to run tasks on
+     * @param queueCapacity The number of tasks which may wait for a thread
+     */
+    public static BlockingExecutor pooled(int threads, int queueCapacity) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            ChannelType.createThreadFactory("Blocking I/O"),
+            new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return new BlockingExecutor(pool, pool, threads, queueCapacity);
+    }
+
+    /**
+     * Creates an executor which starts a virtual thread for each task
+     * @param maxTasks The number of tasks which may run at once
+     */
+    public static BlockingExecutor virtual(int maxTasks) {
+        return new BlockingExecutor(
+            Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("Request #", 0).factory()),
+            null, maxTasks, 0);
+    }
+
+    /**
+     * Determines whether tasks run on virtual threads, and so may block
+     * without holding a platform thread
+     */
+    public boolean isVirtual() { return pool == null; }
+
+    @Override
+    public void execute(Runnable command) {
+
+        // Pools are bounded by their queue, virtual threads by a task count
+        if (pool == null && pending.incrementAndGet() > threads) {
+            pending.decrementAndGet();
+            rejected.increment();
+            throw new RejectedExecutionException("Too many requests");
+        }
+
+        try {
+            executor.execute(() -> run(command));
+        } catch (RejectedExecutionException ex) {
+            if (pool == null) {
+                pending.decrementAndGet();
+            }
+            rejected.increment();
+            throw ex;
+        }
+    }
+
+    private void run(Runnable command) {
+        active.incrementAndGet();
+        try {
+            command.run();
+        } finally {
+            active.decrementAndGet();
+            completed.increment();
+            if (pool == null) {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    public void shutdown() { executor.shutdown(); }
+
+    /**
+     * The number of tasks which may run at once
+     */
+    public int threads() { return threads; }
+
+    public int active() { return active.get(); }
+
+    public int queued() { return pool == null ? 0 : pool.getQueue().size(); }
+
+    public int queueCapacity() { return queueCapacity; }
+
+    public long completed() { return completed.sum(); }
+
+    public long rejected() { return rejected.sum(); }
+
+    @Override
+    public String toString() {
+        return (isVirtual() ? "virtual" : "pooled") + ", threads: " + active() +
+            "/" + threads() + ", queued: " + queued() + "/" + queueCapacity +
+            ", completed: " + completed() + ", rejected: " + rejected();
+    }
+}
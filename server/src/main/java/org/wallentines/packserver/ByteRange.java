@@ -0,0 +1,112 @@
+package org.wallentines.packserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An inclusive range of bytes requested through an HTTP Range header
+ * @param start The first byte in the range
+ * @param end The last byte in the range
+ */
+public record ByteRange(long start, long end) {
+
+    public static final int MAX_RANGES = 16;
+
+    public long length() { return end - start + 1; }
+
+    public String contentRange(long total) {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+
+    /**
+     * Parses the value of a Range header against a resource of the given
+     * length. Overlapping or adjacent ranges are merged.
+     * @param header The Range header value
+     * @param total The length of the resource
+     * @return The satisfiable ranges, an empty list if none of them are
+     *     satisfiable, or null if the header should be ignored
+     */
+    @Nullable
+    public static List<ByteRange> parse(String header, long total) {
+
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> out = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, total - suffix);
+                    end = total - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1
+                              ? total - 1
+                              : Long.parseLong(spec.substring(dash + 1));
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+
+            if (start >= total) {
+                continue;
+            }
+            out.add(new ByteRange(start, Math.min(end, total - 1)));
+        }
+
+        return merge(out);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        ranges.sort(Comparator.comparingLong(ByteRange::start));
+        List<ByteRange> out = new ArrayList<>(ranges.size());
+
+        ByteRange current = ranges.getFirst();
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start,
+                                        Math.max(current.end, next.end));
+            } else {
+                out.add(current);
+                current = next;
+            }
+        }
+        out.add(current);
+
+        return out;
+    }
+}
@@ -4,9 +4,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wallentines.packserver.netty.TrafficShaper;
 
 public class ConsoleHandler {
 
@@ -62,15 +63,76 @@ public class ConsoleHandler {
             System.out.println("New token: " + server.generateToken());
 
         } else if (command.equals("prune")) {
-            new Thread(() -> {
-                System.out.println("Starting prune of untagged packs...");
-                TagManager tm = server.tagManager().copy();
-                PackManager pm = server.packManager();
-
-                pm.prune(tm.getAllTaggedHashes().collect(
-                    Collectors.toUnmodifiableSet()));
-                System.out.println("Prune complete!");
-            }).start();
+            boolean dryRun = parts.length > 1 && parts[1].equals("--dry-run");
+            CompletableFuture<PackCollector.Report> report =
+                server.packCollector().start(dryRun);
+            if (report == null) {
+                System.out.println("A prune is already running");
+                return;
+            }
+            System.out.println("Starting prune of untagged packs...");
+            report.thenAccept(
+                r -> System.out.println("Prune complete: " + r));
+        } else if (command.equals("bandwidth")) {
+            TrafficShaper shaper = server.connectionManager().trafficShaper();
+            if (parts.length == 3 &&
+                (parts[1].equals("global") || parts[1].equals("connection"))) {
+                long limit;
+                try {
+                    limit = Long.parseLong(parts[2]);
+                } catch (NumberFormatException ex) {
+                    System.out.println("Expected a number of bytes per second");
+                    return;
+                }
+                if (parts[1].equals("global")) {
+                    shaper.setWriteLimit(limit);
+                } else {
+                    shaper.setWriteChannelLimit(limit);
+                }
+            } else if (parts.length != 1) {
+                System.out.println(
+                    "Usage: bandwidth [global|connection <bytes/s>]");
+                return;
+            }
+            System.out.println("Bandwidth: " + shaper);
+        } else if (command.equals("dedup")) {
+            if (!(server.packManager().storage() instanceof
+                  DedupPackStorage dedup)) {
+                System.out.println("Pack deduplication is disabled");
+                return;
+            }
+            try {
+                System.out.println("Deduplication: " + dedup.savings());
+            } catch (IOException ex) {
+                LOGGER.error("Unable to measure deduplication savings!", ex);
+            }
+        } else if (command.equals("scrub")) {
+            PackScrubber scrubber = server.packScrubber();
+            if (scrubber == null) {
+                System.out.println("Pack scrubbing is disabled");
+            } else if (parts.length > 1 && parts[1].equals("now")) {
+                if (scrubber.runNow()) {
+                    System.out.println("Starting a scrub of stored packs...");
+                } else {
+                    System.out.println("A scrub is already running");
+                }
+            } else {
+                PackScrubber.Progress progress = scrubber.progress();
+                System.out.println(
+                    "Scrub: " + (progress == null ? "idle" : progress) +
+                    ", " + scrubber.passes() + " passes finished, " +
+                    scrubber.corrupt() + " corrupt files quarantined");
+            }
+        } else if (command.equals("cache")) {
+            PackCache cache = server.packCache();
+            if (!cache.isEnabled()) {
+                System.out.println("The pack cache is disabled");
+            } else if (parts.length > 1 && parts[1].equals("clear")) {
+                cache.clear();
+                System.out.println("Cleared the pack cache");
+            } else {
+                System.out.println("Pack cache: " + cache);
+            }
         }
     }
 
@@ -0,0 +1,706 @@
+package org.wallentines.packserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps packs as recipes over chunks of zip entry data, so entries shared by
+ * many packs are only stored once. Packs are rebuilt from their chunks when
+ * they are downloaded. Packs which are requested often, and packs which are
+ * needed as files, such as by the optimiser, are also materialised into a
+ * hot-file area in the pack directory, which drops the least recently used
+ * packs once it holds more than a set number of bytes.
+ */
+public class DedupPackStorage implements PackStorage {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(DedupPackStorage.class);
+
+    private static final int MAX_TRACKED_REQUESTS = 1024;
+
+    // Bytes of parsed recipes kept in memory. Each segment is counted as a
+    // fixed overhead plus any data kept inline.
+    private static final long MAX_CACHED_RECIPE_BYTES = 16L * 1024 * 1024;
+    private static final long SEGMENT_OVERHEAD = 64;
+
+    private final Path chunkDir;
+    private final Path recipeDir;
+    private final LocalPackCache hot;
+    private final int materializeAfter;
+
+    // Requests for packs which are not materialised, most recent last
+    private final Map<String, Integer> requests =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Integer> eldest) {
+                return size() > MAX_TRACKED_REQUESTS;
+            }
+        };
+
+    // Parsed recipes of packs which are downloaded without being
+    // materialised, most recently used last
+    private final LinkedHashMap<String, CachedRecipe> recipes =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedRecipeBytes;
+
+    // Held for reading while packs are split, and for writing while unused
+    // chunks are deleted, so a chunk is never deleted between being reused
+    // and being referred to by a recipe
+    private final ReadWriteLock chunkLock = new ReentrantReadWriteLock();
+
+    private Thread importer;
+
+    /**
+     * Creates a deduplicating storage
+     * @param root The directory to keep chunks and recipes in
+     * @param hot The storage to materialise packs into
+     * @param hotCapacity The number of bytes to materialise, or 0 for no
+     *     limit
+     * @param materializeAfter The number of requests after which a pack is
+     *     materialised
+     */
+    public DedupPackStorage(Path root, LocalPackStorage hot, long hotCapacity,
+                            int materializeAfter) {
+        this.chunkDir = root.resolve("chunks");
+        this.recipeDir = root.resolve("recipes");
+        this.hot = new LocalPackCache(hot, hotCapacity, this::hasRecipe);
+        this.materializeAfter = materializeAfter;
+    }
+
+    public LocalPackStorage hot() { return hot.storage(); }
+
+    @Override
+    public List<StoredPack> list() throws IOException {
+
+        List<StoredPack> out = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        if (Files.isDirectory(recipeDir)) {
+            try (Stream<Path> files = Files.walk(recipeDir, 2)) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    String hash = file.getFileName().toString();
+                    if (!Util.isHexadecimal(hash) ||
+                        !Files.isRegularFile(file)) {
+                        continue;
+                    }
+                    StoredPack pack = statRecipe(hash);
+                    if (pack != null && seen.add(hash)) {
+                        out.add(pack);
+                    }
+                }
+            }
+        }
+
+        // Packs stored before deduplication was enabled, which have not been
+        // split yet
+        for (StoredPack pack : hot.storage().list()) {
+            if (seen.add(pack.hash())) {
+                out.add(pack);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public StoredPack stat(String hash) throws IOException {
+        StoredPack pack = statRecipe(hash);
+        return pack == null ? hot.storage().stat(hash) : pack;
+    }
+
+    @Override
+    public InputStream read(String hash) throws IOException {
+        Path file = hot.storage().localFile(hash);
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+        PackRecipe recipe = cachedRecipe(hash);
+        if (recipe == null) {
+            throw new NoSuchFileException(hash);
+        }
+        return recipe.open();
+    }
+
+    @Override
+    public InputStream read(String hash, long offset, long length)
+        throws IOException {
+        InputStream is = read(hash);
+        try {
+            is.skipNBytes(offset);
+        } catch (IOException ex) {
+            is.close();
+            throw ex;
+        }
+        return new LimitedInputStream(is, length);
+    }
+
+    @Override
+    public void write(String hash, InputStream data, long length)
+        throws IOException {
+        hot.storage().write(hash, data, length);
+        split(hash);
+    }
+
+    @Override
+    public void store(String hash, PushHandler.PendingPack pack)
+        throws IOException {
+        hot.storage().store(hash, pack);
+        split(hash);
+    }
+
+    @Override
+    public void delete(String hash) throws IOException {
+        Path recipe = recipePath(hash);
+        if (recipe != null) {
+            Files.deleteIfExists(recipe);
+        }
+        forgetRecipe(hash);
+        hot.remove(hash);
+        synchronized (requests) {
+            requests.remove(hash);
+        }
+    }
+
+    @Override
+    public boolean quarantine(String hash, Path target) throws IOException {
+
+        // A corrupt materialised copy can be rebuilt from the chunks
+        if (hot.quarantine(hash, target)) {
+            return true;
+        }
+        return quarantineRecipe(hash, target);
+    }
+
+    /**
+     * Gets the recipe a pack is stored as, without counting a request for it
+     * @return The recipe, or null if the pack has not been split
+     */
+    @Nullable
+    public PackRecipe storedRecipe(String hash) throws IOException {
+        return readRecipe(hash);
+    }
+
+    /**
+     * Moves a pack's recipe out of the storage, leaving any materialised copy
+     * in place
+     * @return True if there was a recipe to move
+     */
+    public boolean quarantineRecipe(String hash, Path target)
+        throws IOException {
+        Path recipe = recipePath(hash);
+        if (recipe == null || !Files.exists(recipe)) {
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(recipe, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException ex) {
+            return false;
+        } finally {
+            forgetRecipe(hash);
+        }
+        return true;
+    }
+
+    /**
+     * Moves a corrupt chunk out of the storage, so that it is written again
+     * by the next pack which contains it rather than reused
+     * @return True if there was a chunk to move
+     */
+    public boolean quarantineChunk(String chunk, Path target)
+        throws IOException {
+        if (!Util.isHexadecimal(chunk) || chunk.length() < 2) {
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        chunkLock.writeLock().lock();
+        try {
+            Files.move(chunkPath(chunk), target,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException ex) {
+            return false;
+        } finally {
+            chunkLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Splits a pack again from its materialised copy, replacing its recipe
+     * and any of its chunks which are missing
+     * @return False if the pack is not materialised, or could not be rebuilt
+     *     exactly from its new recipe
+     */
+    public boolean repair(String hash) throws IOException {
+        return split(hash);
+    }
+
+    @Override
+    public Path localFile(String hash) throws IOException {
+        return hot.get(hash, this::read);
+    }
+
+    @Override
+    public Path localPath(String hash) {
+        return hot.storage().localPath(hash);
+    }
+
+    @Override
+    public PackRecipe recipe(String hash) throws IOException {
+
+        Path file = hot.storage().localFile(hash);
+        if (file != null) {
+            hot.touch(hash);
+            return null;
+        }
+
+        int count;
+        synchronized (requests) {
+            count = requests.merge(hash, 1, Integer::sum);
+            if (count >= materializeAfter) {
+                requests.remove(hash);
+            }
+        }
+        if (count >= materializeAfter) {
+            // The caller falls back to the materialised file
+            return null;
+        }
+        return cachedRecipe(hash);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (importer != null) {
+                importer.interrupt();
+            }
+        }
+        hot.storage().close();
+    }
+
+    /**
+     * Starts splitting packs which were stored before deduplication was
+     * enabled, on a background thread
+     */
+    public synchronized void startImport() {
+        if (importer != null) {
+            return;
+        }
+        importer = new Thread(() -> {
+            try {
+                int imported = 0;
+                for (StoredPack pack : hot.storage().list()) {
+                    if (Thread.interrupted()) {
+                        return;
+                    }
+                    if (!hasRecipe(pack.hash())) {
+                        split(pack.hash());
+                        imported++;
+                    }
+                }
+                if (imported > 0) {
+                    log.info("Split {} existing packs into chunks", imported);
+                }
+            } catch (IOException ex) {
+                log.error("Unable to split existing packs!", ex);
+            }
+        }, "Pack Import");
+        importer.setDaemon(true);
+        importer.start();
+    }
+
+    /**
+     * Deletes chunks which no recipe refers to
+     * @param graceMillis How long after a chunk was written it is kept.
+     *     Chunks reused by packs which are being split are kept regardless.
+     * @return The number of bytes freed
+     */
+    public long sweepChunks(long graceMillis) throws IOException {
+
+        if (!Files.isDirectory(chunkDir)) {
+            return 0;
+        }
+
+        Set<String> scanned = new HashSet<>();
+        Set<String> referenced = new HashSet<>();
+        for (String hash : recipeHashes()) {
+            scanned.add(hash);
+            addChunks(hash, referenced);
+        }
+
+        long freed = 0;
+        int deleted = 0;
+        chunkLock.writeLock().lock();
+        try {
+            // Packs split since the recipes were scanned
+            for (String hash : recipeHashes()) {
+                if (!scanned.contains(hash)) {
+                    addChunks(hash, referenced);
+                }
+            }
+
+            long cutoff = System.currentTimeMillis() - graceMillis;
+            try (Stream<Path> files = Files.walk(chunkDir, 2)) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    String chunk = file.getFileName().toString();
+                    if (!Util.isHexadecimal(chunk) ||
+                        referenced.contains(chunk)) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs =
+                        Files.readAttributes(file, BasicFileAttributes.class);
+                    if (!attrs.isRegularFile() ||
+                        attrs.lastModifiedTime().toMillis() > cutoff) {
+                        continue;
+                    }
+                    Files.deleteIfExists(file);
+                    freed += attrs.size();
+                    deleted++;
+                }
+            }
+        } finally {
+            chunkLock.writeLock().unlock();
+        }
+        if (deleted > 0) {
+            log.info("Deleted {} unused chunks ({} bytes)", deleted, freed);
+        }
+        return freed;
+    }
+
+    /**
+     * Adds up how much space deduplication saves
+     */
+    public Savings savings() throws IOException {
+
+        long packBytes = 0;
+        long recipeBytes = 0;
+        int packs = 0;
+        if (Files.isDirectory(recipeDir)) {
+            try (Stream<Path> files = Files.walk(recipeDir, 2)) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    if (Util.isHexadecimal(file.getFileName().toString()) &&
+                        Files.isRegularFile(file)) {
+                        packBytes += PackRecipe.readSize(file);
+                        recipeBytes += Files.size(file);
+                        packs++;
+                    }
+                }
+            }
+        }
+
+        long chunkBytes = 0;
+        int chunks = 0;
+        if (Files.isDirectory(chunkDir)) {
+            try (Stream<Path> files = Files.walk(chunkDir, 2)) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    if (Util.isHexadecimal(file.getFileName().toString()) &&
+                        Files.isRegularFile(file)) {
+                        chunkBytes += Files.size(file);
+                        chunks++;
+                    }
+                }
+            }
+        }
+
+        return new Savings(packs, packBytes, chunks, chunkBytes, recipeBytes,
+                           hot.size());
+    }
+
+    /**
+     * Splits a pack held in the hot-file area into chunks and writes its
+     * recipe. The recipe is checked against the pack's hash before it is
+     * used, and packs which do not match are left as whole files.
+     * @return True if the recipe was written
+     */
+    private boolean split(String hash) throws IOException {
+
+        Path file = hot.storage().localFile(hash);
+        Path target = recipePath(hash);
+        if (file == null || target == null) {
+            return false;
+        }
+
+        PackRecipe recipe;
+        chunkLock.readLock().lock();
+        try {
+            recipe = PackRecipe.split(file, this::storeChunk, this::chunkPath);
+            String actual;
+            try (InputStream is = recipe.open()) {
+                actual = sha1(is);
+            }
+            if (!actual.equalsIgnoreCase(hash)) {
+                log.warn("Pack {} was not rebuilt exactly, so it will be " +
+                         "kept whole",
+                         hash);
+                return false;
+            }
+
+            Files.createDirectories(target.getParent());
+            Path tmp =
+                Files.createTempFile(target.getParent(), "recipe-", ".tmp");
+            try {
+                recipe.write(tmp);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            forgetRecipe(hash);
+        } finally {
+            chunkLock.readLock().unlock();
+        }
+        hot.added(hash, recipe.size());
+        return true;
+    }
+
+    private String storeChunk(FileChannel channel, long offset, long length)
+        throws IOException {
+
+        MessageDigest digest = getDigest("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long read = 0; read < length;) {
+            buffer.clear().limit((int)Math.min(buffer.capacity(),
+                                               length - read));
+            int r = channel.read(buffer, offset + read);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            digest.update(buffer.flip());
+            read += r;
+        }
+        String chunk = HexFormat.of().formatHex(digest.digest());
+
+        Path target = chunkPath(chunk);
+        if (Files.exists(target)) {
+            return chunk;
+        }
+
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), "chunk-", ".tmp");
+        try {
+            try (FileChannel out =
+                     FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long written = 0;
+                while (written < length) {
+                    written += channel.transferTo(offset + written,
+                                                  length - written, out);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ex) {
+            // Stored by another pack at the same time
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return chunk;
+    }
+
+    /**
+     * Lists the hashes of the packs which have a recipe
+     */
+    private List<String> recipeHashes() throws IOException {
+        List<String> out = new ArrayList<>();
+        if (!Files.isDirectory(recipeDir)) {
+            return out;
+        }
+        try (Stream<Path> files = Files.walk(recipeDir, 2)) {
+            for (Path file : (Iterable<Path>)files::iterator) {
+                String hash = file.getFileName().toString();
+                if (Util.isHexadecimal(hash) && Files.isRegularFile(file)) {
+                    out.add(hash);
+                }
+            }
+        }
+        return out;
+    }
+
+    private void addChunks(String hash, Set<String> chunks)
+        throws IOException {
+        PackRecipe recipe = readRecipe(hash);
+        if (recipe == null) {
+            return;
+        }
+        for (PackRecipe.Segment seg : recipe.segments()) {
+            if (seg.chunk() != null) {
+                chunks.add(seg.chunk());
+            }
+        }
+    }
+
+    @Nullable
+    private StoredPack statRecipe(String hash) throws IOException {
+        Path file = recipePath(hash);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new StoredPack(
+                hash, PackRecipe.readSize(file),
+                Files.getLastModifiedTime(file).toMillis());
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets a pack's recipe, parsing it only if it is not cached or its file
+     * has changed since it was cached
+     */
+    @Nullable
+    private PackRecipe cachedRecipe(String hash) throws IOException {
+        Path file = recipePath(hash);
+        if (file == null) {
+            return null;
+        }
+
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException ex) {
+            forgetRecipe(hash);
+            return null;
+        }
+        synchronized (recipes) {
+            CachedRecipe cached = recipes.get(hash);
+            if (cached != null && cached.modified() == modified) {
+                return cached.recipe();
+            }
+        }
+
+        // The file may be replaced while it is parsed, in which case the
+        // entry is stale and is parsed again on the next request
+        PackRecipe recipe = readRecipe(hash);
+        if (recipe == null) {
+            return null;
+        }
+        long bytes = recipe.inlineSize() +
+                     recipe.segments().size() * SEGMENT_OVERHEAD;
+        synchronized (recipes) {
+            CachedRecipe old =
+                recipes.put(hash, new CachedRecipe(recipe, modified, bytes));
+            if (old != null) {
+                cachedRecipeBytes -= old.bytes();
+            }
+            cachedRecipeBytes += bytes;
+            Iterator<CachedRecipe> it = recipes.values().iterator();
+            while (cachedRecipeBytes > MAX_CACHED_RECIPE_BYTES &&
+                   it.hasNext()) {
+                cachedRecipeBytes -= it.next().bytes();
+                it.remove();
+            }
+        }
+        return recipe;
+    }
+
+    private void forgetRecipe(String hash) {
+        synchronized (recipes) {
+            CachedRecipe old = recipes.remove(hash);
+            if (old != null) {
+                cachedRecipeBytes -= old.bytes();
+            }
+        }
+    }
+
+    @Nullable
+    private PackRecipe readRecipe(String hash) throws IOException {
+        Path file = recipePath(hash);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return PackRecipe.read(file, this::chunkPath);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private Path chunkPath(String chunk) {
+        return chunkDir.resolve(chunk.substring(0, 2)).resolve(chunk);
+    }
+
+    private boolean hasRecipe(String hash) {
+        Path file = recipePath(hash);
+        return file != null && Files.exists(file);
+    }
+
+    @Nullable
+    private Path recipePath(String hash) {
+        if (!Util.isHexadecimal(hash) || hash.length() < 2) {
+            return null;
+        }
+        return recipeDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static String sha1(InputStream is) throws IOException {
+        MessageDigest digest = getDigest("SHA-1");
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * How much space deduplication saves
+     * @param packs The number of packs split into chunks
+     * @param packBytes The total size of those packs
+     * @param chunks The number of stored chunks
+     * @param chunkBytes The total size of the stored chunks
+     * @param recipeBytes The total size of the recipes
+     * @param hotBytes The total size of the materialised packs
+     */
+    public record Savings(int packs, long packBytes, int chunks,
+                          long chunkBytes, long recipeBytes, long hotBytes) {
+
+        /**
+         * The number of bytes saved, not counting materialised packs
+         */
+        public long saved() { return packBytes - chunkBytes - recipeBytes; }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%d packs (%d bytes) stored as %d chunks (%d bytes) and " +
+                    "%d bytes of recipes, saving %d bytes; %d bytes " +
+                    "materialised",
+                packs, packBytes, chunks, chunkBytes, recipeBytes, saved(),
+                hotBytes);
+        }
+    }
+
+    private record CachedRecipe(PackRecipe recipe, long modified, long bytes) {}
+}
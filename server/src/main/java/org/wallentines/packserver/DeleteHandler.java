@@ -1,8 +1,8 @@
 package org.wallentines.packserver;
 
 import io.netty.buffer.ByteBufInputStream;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.*;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
@@ -10,6 +10,7 @@ import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 import org.wallentines.jwt.JWT;
 import org.wallentines.jwt.JWTReader;
 import org.wallentines.mdcfg.ConfigObject;
@@ -17,8 +18,10 @@ import org.wallentines.mdcfg.ConfigSection;
 import org.wallentines.mdcfg.Tuples;
 import org.wallentines.mdcfg.codec.DecodeException;
 import org.wallentines.mdcfg.codec.JSONCodec;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestHandler;
 
-public class DeleteHandler {
+public class DeleteHandler implements RequestHandler {
 
     private final WebServer server;
 
@@ -28,28 +31,21 @@ public class DeleteHandler {
     // token: <JWT>
     // name: <name>
     // tag: <tag>
-    public FullHttpResponse handle(FullHttpRequest req,
-                                   ChannelHandlerContext ctx) {
-
-        if (req.method() != HttpMethod.POST) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
-        }
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
 
         String token;
         String tag;
         String name;
-        try (InputStream is = new ByteBufInputStream(req.content())) {
+        try (InputStream is = new ByteBufInputStream(request.content())) {
             ConfigObject obj = JSONCodec.loadConfig(is);
             if (!obj.isSection()) {
-                return new DefaultFullHttpResponse(
-                    req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+                return request.respond(HttpResponseStatus.BAD_REQUEST);
             }
 
             ConfigSection sec = obj.asSection();
             if (!sec.has("token") || !sec.has("hash")) {
-                return new DefaultFullHttpResponse(
-                    req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+                return request.respond(HttpResponseStatus.BAD_REQUEST);
             }
 
             token = sec.getOrDefault("token", (String)null);
@@ -57,35 +53,28 @@ public class DeleteHandler {
             name = sec.getOrDefault("name", (String)null);
 
         } catch (IOException ex) {
-            return new DefaultFullHttpResponse(
-                req.protocolVersion(),
-                HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            return request.respond(HttpResponseStatus.INTERNAL_SERVER_ERROR);
         } catch (DecodeException ex) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         }
 
         if (tag == null && name == null) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         } else if (name != null) {
             Tuples.T2<String, String> parsed = Util.parseTag(name);
             if (parsed == null) {
-                return new DefaultFullHttpResponse(
-                    req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+                return request.respond(HttpResponseStatus.BAD_REQUEST);
             }
             name = parsed.p1;
         }
 
         if (token == null) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         }
 
         JWT jwt = JWTReader.readAny(token, server.keySupplier()).getOrNull();
         if (jwt == null || !server.jwtVerifier().verify(jwt)) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.FORBIDDEN);
+            return request.respond(HttpResponseStatus.FORBIDDEN);
         }
 
         if (tag != null) {
@@ -94,7 +83,6 @@ public class DeleteHandler {
             server.tagManager().removeAll(name);
         }
 
-        return new DefaultFullHttpResponse(req.protocolVersion(),
-                                           HttpResponseStatus.OK);
+        return request.respond(HttpResponseStatus.OK);
     }
 }
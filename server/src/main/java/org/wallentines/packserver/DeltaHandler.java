@@ -0,0 +1,392 @@
+package org.wallentines.packserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wallentines.mdcfg.Tuples;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestBody;
+import org.wallentines.packserver.netty.RequestHandler;
+
+/**
+ * Accepts packs as a delta against the version a tag currently points to.
+ * The client first sends a manifest of the new pack's entries, and is told
+ * which of them the server already holds. It then sends only the others,
+ * and the server rebuilds the pack, checks its hash, and stores it.
+ */
+public class DeltaHandler implements RequestHandler {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(DeltaHandler.class);
+    private static final int MAX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
+    private final WebServer server;
+
+    public DeltaHandler(WebServer server) { this.server = server; }
+
+    // POST /delta?tag=<TAG>
+    // <Manifest>
+    // -> <BASE HASH>, then the index of each entry the server has, one per
+    //    line
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
+
+        if (!isAuthorized(request)) {
+            return request.respond(HttpResponseStatus.FORBIDDEN);
+        }
+
+        String tag = request.param("tag");
+        if (tag == null || !Util.isValidTag(tag)) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+
+        String base = getBase(tag);
+        if (base == null) {
+            return request.respond(HttpResponseStatus.NOT_FOUND);
+        }
+        Path basePath = server.packManager().get(base);
+
+        ByteArrayOutputStream manifestData = new ByteArrayOutputStream();
+        return request.body()
+            .subscribe(content -> {
+                ByteBuf buf = content.content();
+                if (manifestData.size() + buf.readableBytes() >
+                    MAX_MANIFEST_SIZE) {
+                    throw new TooLongFrameException("Manifest is too large");
+                }
+                buf.readBytes(manifestData, buf.readableBytes());
+            })
+            .handle((v, error) -> {
+                if (error != null) {
+                    return request.respond(statusFor(error));
+                }
+                try {
+                    ZipManifest manifest = ZipManifest.read(new StringReader(
+                        manifestData.toString(StandardCharsets.UTF_8)));
+                    return respondHeld(request, base, basePath, manifest);
+                } catch (IllegalArgumentException ex) {
+                    return request.respond(HttpResponseStatus.BAD_REQUEST);
+                } catch (IOException ex) {
+                    log.error("Unable to read pack {}!", base, ex);
+                    return request.respond(
+                        HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                }
+            })
+            .thenCompose(Function.identity());
+    }
+
+    // POST /delta/push?tag=<TAG>&base=<BASE HASH>&hash=<HASH>
+    // manifest: <Manifest>
+    // entries: <Zip of the entries the server does not have>
+    public CompletionStage<ChannelFuture> push(Request request) {
+
+        if (!isAuthorized(request)) {
+            return request.respond(HttpResponseStatus.FORBIDDEN);
+        }
+
+        String tag = request.param("tag");
+        String base = request.param("base");
+        String hash = request.param("hash");
+        if (tag == null || base == null || hash == null ||
+            !Util.isValidTag(tag) || !Util.isHexadecimal(base) ||
+            !Util.isHexadecimal(hash)) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+        base = base.toLowerCase(Locale.ROOT);
+        hash = hash.toLowerCase(Locale.ROOT);
+
+        if (server.packManager().has(hash)) {
+            return server.pushHandler().tagged(request, tag, hash);
+        }
+        if (!server.packManager().has(base)) {
+            return request.respond(HttpResponseStatus.NOT_FOUND);
+        }
+        Path basePath = server.packManager().get(base);
+
+        DeltaUpload upload;
+        try {
+            upload = new DeltaUpload(request.body().head());
+        } catch (HttpPostRequestDecoder.ErrorDataDecoderException ex) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+
+        String expected = hash;
+        return request.body()
+            .subscribe(upload)
+            .handle((v, error) -> upload.complete(request, tag, basePath,
+                                                  expected, error))
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Finds the pack a delta for a tag is based on. That is the pack the tag
+     * points to, or the latest version of the same pack if the tag is new.
+     * @return The base pack's hash, or null if there is none
+     */
+    private String getBase(String tag) {
+        String base = server.tagManager().getHash(tag);
+        if (base == null) {
+            Tuples.T2<String, String> parsed = Util.parseTag(tag);
+            base = server.tagManager().getHash(parsed.p1);
+        }
+        if (base == null) {
+            return null;
+        }
+        return server.packManager().has(base) ? base : null;
+    }
+
+    private CompletionStage<ChannelFuture>
+    respondHeld(Request request, String base, Path basePath,
+                ZipManifest manifest) throws IOException {
+
+        StringBuilder out = new StringBuilder(base).append('\n');
+        try (ZipFile zip = new ZipFile(basePath.toFile())) {
+            List<ZipManifest.Entry> entries = manifest.entries();
+            for (int i = 0; i < entries.size(); i++) {
+                ZipManifest.Entry entry = entries.get(i);
+                ZipEntry ze = zip.getEntry(entry.name());
+                if (ze == null || !entry.matches(ze)) {
+                    continue;
+                }
+                try (InputStream is = zip.getInputStream(ze)) {
+                    if (ZipManifest.copy(is, OutputStream.nullOutputStream())
+                            .equalsIgnoreCase(entry.sha1())) {
+                        out.append(i).append('\n');
+                    }
+                }
+            }
+        }
+
+        ByteBuf buf = request.alloc().buffer();
+        buf.writeBytes(out.toString().getBytes(StandardCharsets.US_ASCII));
+        return request.respond(buf);
+    }
+
+    private boolean isAuthorized(Request request) {
+        String token = PushHandler.bearerToken(request);
+        return token != null && server.pushHandler().verify(token);
+    }
+
+    private static HttpResponseStatus statusFor(Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (error instanceof TooLongFrameException) {
+            return HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+        }
+        if (error instanceof HttpPostRequestDecoder.ErrorDataDecoderException ||
+            error instanceof IllegalArgumentException) {
+            return HttpResponseStatus.BAD_REQUEST;
+        }
+        if (error instanceof RejectedExecutionException) {
+            return HttpResponseStatus.SERVICE_UNAVAILABLE;
+        }
+        log.error("Unable to receive a delta upload!", error);
+        return HttpResponseStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Receives the manifest and new entries of a delta push
+     */
+    private class DeltaUpload implements RequestBody.Sink {
+
+        private final UploadDataFactory factory;
+        private final HttpPostRequestDecoder decoder;
+        private HashingFileUpload manifest;
+        private HashingFileUpload entries;
+
+        DeltaUpload(HttpRequest head) {
+            this.factory =
+                new UploadDataFactory(server.packManager().root());
+            this.decoder = new HttpPostRequestDecoder(factory, head);
+        }
+
+        @Override
+        public synchronized void onContent(HttpContent content) {
+            decoder.offer(content);
+            try {
+                while (decoder.hasNext()) {
+                    InterfaceHttpData part = decoder.next();
+                    if (part instanceof HashingFileUpload up) {
+                        if (part.getName().equals("manifest")) {
+                            manifest = up;
+                        } else if (part.getName().equals("entries")) {
+                            entries = up;
+                        }
+                    }
+                }
+            } catch (HttpPostRequestDecoder.EndOfDataDecoderException ex) {
+                // All parts have been read
+            }
+        }
+
+        /**
+         * Rebuilds and stores the pack once the whole body is received, and
+         * responds to the client
+         */
+        synchronized CompletionStage<ChannelFuture>
+        complete(Request request, String tag, Path basePath, String expected,
+                 Throwable error) {
+
+            Path temp = null;
+            try {
+                if (error != null) {
+                    return request.respond(statusFor(error));
+                }
+                if (manifest == null || entries == null) {
+                    return request.respond(HttpResponseStatus.BAD_REQUEST);
+                }
+
+                ZipManifest parsed;
+                try (InputStreamReader reader = new InputStreamReader(
+                         Files.newInputStream(manifest.getFile().toPath()),
+                         StandardCharsets.UTF_8)) {
+                    parsed = ZipManifest.read(reader);
+                }
+
+                temp = Files.createTempFile(server.packManager().root(),
+                                            "upload-", ".tmp");
+                String hash = rebuild(parsed, basePath,
+                                      entries.getFile().toPath(), temp);
+
+                // The client should fall back to pushing the whole pack
+                if (!hash.equals(expected)) {
+                    log.info("Rebuilt pack {} does not match its expected " +
+                                 "hash {}",
+                             hash, expected);
+                    return request.respond(HttpResponseStatus.CONFLICT);
+                }
+
+                Path source = temp;
+                return server.pushHandler()
+                    .store(hash,
+                           target
+                           -> Files.move(source, target,
+                                         StandardCopyOption.ATOMIC_MOVE,
+                                         StandardCopyOption.REPLACE_EXISTING),
+                           "delta", null)
+                    .handle((v, ex) -> {
+                        deleteQuietly(source);
+                        if (ex != null) {
+                            log.error("Unable to store pack {}!", hash, ex);
+                            return request.respond(
+                                HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                        }
+                        return server.pushHandler().tagged(request, tag,
+                                                           hash);
+                    })
+                    .thenCompose(Function.identity());
+
+            } catch (MissingEntryException ex) {
+                deleteQuietly(temp);
+                return request.respond(HttpResponseStatus.CONFLICT);
+            } catch (IllegalArgumentException ex) {
+                deleteQuietly(temp);
+                return request.respond(HttpResponseStatus.BAD_REQUEST);
+            } catch (IOException ex) {
+                log.error("Unable to rebuild a pack!", ex);
+                deleteQuietly(temp);
+                return request.respond(
+                    HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            } finally {
+                decoder.destroy();
+                factory.cleanUp();
+            }
+        }
+    }
+
+    /**
+     * Writes a pack from the entries of a base pack and the new entries sent
+     * by the client, in the order of the manifest
+     * @return The SHA-1 hash of the rebuilt pack
+     * @throws MissingEntryException If an entry is in neither zip, or does not
+     *     match the manifest
+     */
+    private static String rebuild(ZipManifest manifest, Path basePath,
+                                  Path entriesPath, Path out)
+        throws IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        try (ZipFile base = new ZipFile(basePath.toFile());
+             ZipFile added = new ZipFile(entriesPath.toFile());
+             ZipOutputStream zos = new ZipOutputStream(
+                 new DigestOutputStream(Files.newOutputStream(out), digest))) {
+
+            for (ZipManifest.Entry entry : manifest.entries()) {
+                ZipFile source = added;
+                ZipEntry ze = added.getEntry(entry.name());
+                if (ze == null) {
+                    source = base;
+                    ze = base.getEntry(entry.name());
+                }
+                if (ze == null || !entry.matches(ze)) {
+                    throw new MissingEntryException(entry.name());
+                }
+
+                zos.putNextEntry(ZipManifest.newZipEntry(entry.name()));
+                try (InputStream is = source.getInputStream(ze)) {
+                    if (!ZipManifest.copy(is, zos).equalsIgnoreCase(
+                            entry.sha1())) {
+                        throw new MissingEntryException(entry.name());
+                    }
+                }
+                zos.closeEntry();
+            }
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("Unable to delete {}!", file, ex);
+        }
+    }
+
+    private static class MissingEntryException extends IOException {
+        MissingEntryException(String name) {
+            super("Pack entry " + name + " is not available");
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.wallentines.packserver;
+
+/**
+ * Where request handlers run once a request has been decoded
+ */
+public enum ExecutionMode {
+
+    /**
+     * Handlers run directly on the connection's event loop. This has the
+     * least overhead, but any blocking work stalls every connection on the
+     * loop.
+     */
+    INLINE,
+
+    /**
+     * Handlers run on a fixed pool of platform threads with a bounded queue
+     */
+    POOL,
+
+    /**
+     * Each request is handled on its own virtual thread, so handlers may
+     * block freely without holding a platform thread
+     */
+    VIRTUAL;
+
+    public static ExecutionMode parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
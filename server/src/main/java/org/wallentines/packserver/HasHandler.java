@@ -1,12 +1,14 @@
 package org.wallentines.packserver;
 
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.*;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
+import java.util.concurrent.CompletionStage;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestHandler;
 
-public class HasHandler {
+public class HasHandler implements RequestHandler {
 
     private final WebServer server;
 
@@ -14,49 +16,53 @@ public class HasHandler {
 
     // GET /has?tag=<TAG>
     // GET /has?hash=<HASH>
-    public FullHttpResponse handle(FullHttpRequest req,
-                                   ChannelHandlerContext ctx) {
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
 
-        if (req.method() != HttpMethod.GET) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+        HttpResponseStatus status =
+            getStatus(request, "tag", server.tagManager());
+        if (status == null) {
+            status = getPackStatus(request);
         }
-
-        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
-        FullHttpResponse response =
-            getResponse(req, decoder, "tag", server.tagManager());
-        if (response == null) {
-            response = getResponse(req, decoder, "hash", server.packManager());
-        }
-        if (response == null) {
-            response = new DefaultFullHttpResponse(
-                req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+        if (status == null) {
+            status = HttpResponseStatus.BAD_REQUEST;
         }
 
-        return response;
+        return request.respond(status);
     }
 
-    private FullHttpResponse getResponse(FullHttpRequest req,
-                                         QueryStringDecoder decoder,
-                                         String param, FileSupplier supplier) {
+    private HttpResponseStatus getStatus(Request request, String param,
+                                         FileSupplier supplier) {
 
-        List<String> paramData = decoder.parameters().get(param);
-        if (paramData == null || paramData.isEmpty()) {
+        String name = request.param(param);
+        if (name == null) {
             return null;
         }
 
-        String name = paramData.getFirst();
         Path file = supplier.get(name);
 
         if (file == null) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+            return HttpResponseStatus.BAD_REQUEST;
         } else if (!Files.exists(file)) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.NOT_FOUND);
+            return HttpResponseStatus.NOT_FOUND;
+        }
+
+        return HttpResponseStatus.OK;
+    }
+
+    private HttpResponseStatus getPackStatus(Request request) {
+
+        String hash = request.param("hash");
+        if (hash == null) {
+            return null;
+        }
+
+        if (!Util.isHexadecimal(hash)) {
+            return HttpResponseStatus.BAD_REQUEST;
+        } else if (!server.packManager().has(hash)) {
+            return HttpResponseStatus.NOT_FOUND;
         }
 
-        return new DefaultFullHttpResponse(req.protocolVersion(),
-                                           HttpResponseStatus.OK);
+        return HttpResponseStatus.OK;
     }
 }
@@ -1,12 +1,14 @@
 package org.wallentines.packserver;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.*;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestHandler;
 
-import java.util.List;
+import java.util.concurrent.CompletionStage;
 
-public class HashHandler {
+public class HashHandler implements RequestHandler {
 
     private final WebServer server;
 
@@ -15,27 +17,22 @@ public class HashHandler {
     }
 
     // GET /hash?tag=<TAG>
-    public FullHttpResponse handle(FullHttpRequest req, ChannelHandlerContext ctx) {
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
 
-        if(req.method() != HttpMethod.GET) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+        String tag = request.param("tag");
+        if(tag == null) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         }
 
-        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
-        List<String> tagParam = decoder.parameters().get("tag");
-        if(tagParam == null || tagParam.isEmpty()) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
-        }
-
-        String tag = tagParam.getFirst();
         String hash = server.tagManager().getHash(tag);
 
         if(hash == null) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.NOT_FOUND);
+            return request.respond(HttpResponseStatus.NOT_FOUND);
         } else {
-            ByteBuf out = ctx.alloc().buffer();
+            ByteBuf out = request.alloc().buffer();
             out.writeBytes(hash.getBytes());
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.OK, out);
+            return request.respond(out);
         }
 
     }
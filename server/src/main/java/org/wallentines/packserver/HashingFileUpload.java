@@ -0,0 +1,94 @@
+package org.wallentines.packserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.multipart.DiskFileUpload;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * A file upload which is hashed as it is written to disk
+ */
+class HashingFileUpload extends DiskFileUpload
+    implements PushHandler.PendingPack {
+
+    private final MessageDigest digest;
+    private String hash;
+    private boolean moved;
+
+    HashingFileUpload(String name, String filename, String contentType,
+                      String contentTransferEncoding, Charset charset,
+                      long size, Path directory) {
+        super(name, filename, contentType, contentTransferEncoding, charset,
+              size, directory.toString(), false);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void addContent(ByteBuf buffer, boolean last) throws IOException {
+        if (buffer != null) {
+            for (ByteBuffer nio : buffer.nioBuffers()) {
+                digest.update(nio);
+            }
+        }
+        super.addContent(buffer, last);
+        if (last) {
+            hash = HexFormat.of().formatHex(digest.digest());
+        }
+    }
+
+    @Override
+    public void setContent(ByteBuf buffer) throws IOException {
+        digest.reset();
+        for (ByteBuffer nio : buffer.nioBuffers()) {
+            digest.update(nio);
+        }
+        super.setContent(buffer);
+        hash = HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * The SHA-1 hash of the file, in hexadecimal, once it is complete
+     */
+    String hash() { return hash; }
+
+    @Override
+    public void moveTo(Path target) throws IOException {
+        Files.move(getFile().toPath(), target, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        moved = true;
+    }
+
+    @Override
+    public void delete() {
+        if (!moved) {
+            super.delete();
+        }
+    }
+
+    // Temporary files are named so that they are never mistaken for packs
+    @Override
+    protected String getDiskFilename() {
+        return null;
+    }
+
+    @Override
+    protected String getPrefix() {
+        return "upload-";
+    }
+
+    @Override
+    protected String getPostfix() {
+        return ".tmp";
+    }
+}
@@ -0,0 +1,186 @@
+package org.wallentines.packserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Holds local copies of packs which are kept elsewhere, and deletes the
+ * least recently used copies once they take up more than a set number of
+ * bytes. Concurrent requests for a pack which is not held share one fetch.
+ */
+public class LocalPackCache {
+
+    private final LocalPackStorage storage;
+    private final long capacity;
+    private final Predicate<String> evictable;
+
+    // Packs in the cache and their sizes, least recently used first
+    private final LinkedHashMap<String, Long> cached =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private boolean indexed;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> fetching =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache
+     * @param storage The storage to keep copies in
+     * @param capacity The number of bytes to hold, or 0 for no limit
+     * @param evictable Determines whether the copy of a pack may be deleted
+     */
+    public LocalPackCache(LocalPackStorage storage, long capacity,
+                          Predicate<String> evictable) {
+        this.storage = storage;
+        this.capacity = capacity;
+        this.evictable = evictable;
+    }
+
+    public LocalPackStorage storage() { return storage; }
+
+    /**
+     * The number of bytes held in the cache
+     */
+    public synchronized long size() { return cachedBytes; }
+
+    /**
+     * Gets the copy of a pack, fetching it if it is not held
+     * @param fetcher Opens the pack's contents. It should throw
+     *     NoSuchFileException if the pack does not exist.
+     * @return The copy, or null if the pack does not exist
+     */
+    @Nullable
+    public Path get(String hash, Fetcher fetcher) throws IOException {
+
+        Path path = storage.localFile(hash);
+        if (path != null) {
+            touch(hash);
+            return path;
+        }
+
+        CompletableFuture<Path> fetch = new CompletableFuture<>();
+        CompletableFuture<Path> other = fetching.putIfAbsent(hash, fetch);
+        if (other != null) {
+            try {
+                return other.join();
+            } catch (CompletionException ex) {
+                throw new IOException("Unable to fetch pack " + hash,
+                                      ex.getCause());
+            }
+        }
+
+        try {
+            try (InputStream is = fetcher.open(hash)) {
+                storage.write(hash, is, -1);
+            } catch (NoSuchFileException ex) {
+                fetch.complete(null);
+                return null;
+            }
+            path = storage.localFile(hash);
+            if (path != null) {
+                added(hash, Files.size(path));
+            }
+            fetch.complete(path);
+            return path;
+        } catch (IOException | RuntimeException ex) {
+            fetch.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            fetching.remove(hash, fetch);
+        }
+    }
+
+    /**
+     * Records a use of a held copy
+     */
+    public synchronized void touch(String hash) throws IOException {
+        index();
+        cached.get(hash);
+    }
+
+    /**
+     * Records that a copy was put in the storage, and evicts other copies if
+     * the cache is too large
+     */
+    public synchronized void added(String hash, long size)
+        throws IOException {
+        index();
+        Long old = cached.put(hash, size);
+        cachedBytes += size - (old == null ? 0 : old);
+
+        if (capacity <= 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Long>> it = cached.entrySet().iterator();
+        while (cachedBytes > capacity && it.hasNext()) {
+            Map.Entry<String, Long> ent = it.next();
+            if (ent.getKey().equals(hash) || !evictable.test(ent.getKey())) {
+                continue;
+            }
+            // Requests which already opened the file can still read it
+            storage.delete(ent.getKey());
+            cachedBytes -= ent.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Deletes the copy of a pack, if there is one
+     */
+    public void remove(String hash) throws IOException {
+        synchronized (this) {
+            Long size = cached.remove(hash);
+            if (size != null) {
+                cachedBytes -= size;
+            }
+        }
+        storage.delete(hash);
+    }
+
+    /**
+     * Moves the copy of a corrupt pack out of the cache
+     * @return True if there was a copy to move
+     */
+    public boolean quarantine(String hash, Path target) throws IOException {
+        synchronized (this) {
+            Long size = cached.remove(hash);
+            if (size != null) {
+                cachedBytes -= size;
+            }
+        }
+        return storage.quarantine(hash, target);
+    }
+
+    private synchronized void index() throws IOException {
+        if (indexed) {
+            return;
+        }
+        List<PackStorage.StoredPack> packs = new ArrayList<>(storage.list());
+        packs.sort((a, b) -> Long.compare(a.modified(), b.modified()));
+        for (PackStorage.StoredPack pack : packs) {
+            cached.put(pack.hash(), pack.size());
+            cachedBytes += pack.size();
+        }
+        indexed = true;
+    }
+
+    /**
+     * Opens the contents of a pack which is not held
+     */
+    public interface Fetcher {
+        InputStream open(String hash) throws IOException;
+    }
+}
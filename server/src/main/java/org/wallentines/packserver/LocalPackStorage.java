@@ -0,0 +1,295 @@
+package org.wallentines.packserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps packs in a local directory. Packs are fanned out by the first two
+ * pairs of characters of their hash, so a pack with the hash abcdef... is
+ * stored at ab/cd/abcdef.... Older servers stored every pack directly in the
+ * pack directory. Those packs are moved in the background, and are found in
+ * either place until the migration finishes.
+ */
+public class LocalPackStorage implements PackStorage {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(LocalPackStorage.class);
+
+    private static final int MIGRATION_BATCH_SIZE = 256;
+    private static final long MIGRATION_GRACE_MILLIS = 5000;
+
+    private final Path root;
+    private volatile boolean migrated;
+    private Thread migration;
+
+    public LocalPackStorage(Path root) { this.root = root; }
+
+    public Path root() { return root; }
+
+    @Override
+    public Path localPath(String hash) {
+        if (!Util.isHexadecimal(hash) || hash.length() < 4) {
+            return null;
+        }
+        Path sharded = getSharded(hash);
+        if (!migrated && !Files.exists(sharded)) {
+            Path flat = root.resolve(hash);
+            if (Files.exists(flat)) {
+                return flat;
+            }
+        }
+        return sharded;
+    }
+
+    @Override
+    public Path localFile(String hash) {
+        Path path = localPath(hash);
+        return path == null || !Files.exists(path) ? null : path;
+    }
+
+    @Override
+    public List<StoredPack> list() throws IOException {
+        List<StoredPack> out = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        try (Stream<Path> files = Files.walk(root, 3)) {
+            for (Path file : (Iterable<Path>)files::iterator) {
+                String hash = file.getFileName().toString();
+                if (!Util.isHexadecimal(hash) || !seen.add(hash)) {
+                    continue;
+                }
+                StoredPack pack = stat(file, hash);
+                if (pack != null) {
+                    out.add(pack);
+                }
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public StoredPack stat(String hash) throws IOException {
+        Path path = localPath(hash);
+        return path == null ? null : stat(path, hash);
+    }
+
+    @Override
+    public InputStream read(String hash) throws IOException {
+        Path path = localPath(hash);
+        if (path == null) {
+            throw new NoSuchFileException(hash);
+        }
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public InputStream read(String hash, long offset, long length)
+        throws IOException {
+        Path path = localPath(hash);
+        if (path == null) {
+            throw new NoSuchFileException(hash);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        channel.position(offset);
+        return new LimitedInputStream(Channels.newInputStream(channel),
+                                      length);
+    }
+
+    @Override
+    public void write(String hash, InputStream data, long length)
+        throws IOException {
+        Path target = localPath(hash);
+        if (target == null) {
+            throw new IOException("Invalid pack hash " + hash);
+        }
+        Path tmp = Files.createTempFile(root, "upload-", ".tmp");
+        try {
+            Files.copy(data, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.createDirectories(target.getParent());
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public void store(String hash, PushHandler.PendingPack pack)
+        throws IOException {
+        Path target = localPath(hash);
+        if (target == null) {
+            throw new IOException("Invalid pack hash " + hash);
+        }
+        Files.createDirectories(target.getParent());
+        pack.moveTo(target);
+    }
+
+    @Override
+    public void delete(String hash) throws IOException {
+        if (!Util.isHexadecimal(hash) || hash.length() < 4) {
+            return;
+        }
+        Files.deleteIfExists(getSharded(hash));
+        Files.deleteIfExists(root.resolve(hash));
+    }
+
+    @Override
+    public boolean quarantine(String hash, Path target) throws IOException {
+        Path path = localFile(hash);
+        if (path == null) {
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        stopMigration();
+    }
+
+    /**
+     * Determines whether all packs are in the sharded layout
+     */
+    public boolean isMigrated() { return migrated; }
+
+    /**
+     * Starts moving packs from the flat layout on a background thread
+     */
+    public synchronized void startMigration() {
+        if (migration != null) {
+            return;
+        }
+        migration = new Thread(() -> {
+            try {
+                migrate();
+            } catch (IOException ex) {
+                log.error("Unable to migrate the pack directory!", ex);
+            } catch (InterruptedException ex) {
+                log.info("Pack migration interrupted");
+            }
+        }, "Pack Migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    public synchronized void stopMigration() {
+        if (migration != null) {
+            migration.interrupt();
+        }
+    }
+
+    /**
+     * Moves every pack in the flat layout into the sharded layout. Packs are
+     * hard linked into place in batches, and the old links are only removed
+     * after a short delay, so requests which found a pack in its old place
+     * just before it moved can still open it.
+     */
+    public void migrate() throws IOException, InterruptedException {
+
+        List<String> flat;
+        try (Stream<Path> files = Files.list(root)) {
+            flat = files.filter(Files::isRegularFile)
+                       .map(p -> p.getFileName().toString())
+                       .filter(name -> Util.isHexadecimal(name) &&
+                                       name.length() >= 4)
+                       .toList();
+        }
+
+        if (!flat.isEmpty()) {
+            log.info("Migrating {} packs to the sharded layout", flat.size());
+        }
+
+        for (int i = 0; i < flat.size(); i += MIGRATION_BATCH_SIZE) {
+
+            List<Path> linked = new ArrayList<>();
+            for (String hash : flat.subList(
+                     i, Math.min(flat.size(), i + MIGRATION_BATCH_SIZE))) {
+                Path source = root.resolve(hash);
+                if (link(source, getSharded(hash))) {
+                    linked.add(source);
+                }
+            }
+
+            if (!linked.isEmpty()) {
+                Thread.sleep(MIGRATION_GRACE_MILLIS);
+                for (Path source : linked) {
+                    Files.deleteIfExists(source);
+                }
+            }
+        }
+
+        migrated = true;
+        if (!flat.isEmpty()) {
+            log.info("Pack migration complete");
+        }
+    }
+
+    /**
+     * Links a pack into its sharded location, or moves it there if the file
+     * system does not support hard links
+     * @return True if the old file is still there and should be deleted
+     */
+    private boolean link(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (FileAlreadyExistsException ex) {
+            // Packs are named by their content, so the copies are the same
+            return true;
+        } catch (NoSuchFileException ex) {
+            // Deleted since the directory was listed
+            return false;
+        } catch (UnsupportedOperationException | IOException ex) {
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException ex2) {
+                // Deleted since the directory was listed
+            }
+            return false;
+        }
+    }
+
+    private Path getSharded(String hash) {
+        return root.resolve(hash.substring(0, 2))
+            .resolve(hash.substring(2, 4))
+            .resolve(hash);
+    }
+
+    @Nullable
+    private static StoredPack stat(Path path, String hash) throws IOException {
+        try {
+            BasicFileAttributes attrs =
+                Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return new StoredPack(hash, attrs.size(),
+                                  attrs.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+}
@@ -6,7 +6,6 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.Map;
-import java.util.stream.Collectors;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import org.slf4j.Logger;
@@ -34,33 +33,34 @@ public class Main {
 
         if (args.length >= 1 && args[0].equals("prune")) {
 
+            ServerConfig config = ServerConfig.fromEnvironment();
             TagManager tm = new TagManager(tagDir);
-            PackManager pm = new PackManager(packDir);
+            PackManager pm =
+                new PackManager(packDir, PackStorage.create(config, packDir));
+            try {
+                pm.open();
+            } catch (IOException ex) {
+                log.error("Could not load the pack catalog", ex);
+                return;
+            }
 
+            boolean dryRun = args.length >= 2 && args[1].equals("--dry-run");
             log.info("Beginning prune of untagged packs...");
 
-            pm.prune(tm.getAllTaggedHashes().collect(
-                Collectors.toUnmodifiableSet()));
+            PackCollector collector = new PackCollector(
+                pm, tm, null, cwd.resolve("aliases"), config.gcGracePeriod(),
+                config.gcThreads());
+            try {
+                collector.collect(dryRun);
+            } catch (IOException ex) {
+                log.error("Could not list stored packs", ex);
+            }
+            pm.close();
 
             log.info("Prune complete!");
             return;
         }
 
-        String portStr = System.getenv("PACK_SERVER_PORT");
-        String baseUrlStr = System.getenv("PACK_SERVER_BASE_URL");
-
-        int port = 8080;
-        String baseUrl = "/";
-        if (portStr != null) {
-            port = Integer.parseInt(portStr);
-        }
-        if (baseUrlStr != null) {
-            baseUrl = baseUrlStr;
-            if (!baseUrl.startsWith("/")) {
-                baseUrl = "/" + baseUrl;
-            }
-        }
-
         FileKeyStore ks = new FileKeyStore(cwd, Map.of(KeyType.AES, "key"));
         if (ks.getKey("jwt", KeyType.AES) == null) {
 
@@ -77,8 +77,9 @@ public class Main {
             ks.setKey("jwt", KeyType.AES, key);
         }
 
-        WebServer ws = new WebServer(
-            port, baseUrl, ks.supplier("jwt", KeyType.AES), packDir, tagDir);
+        WebServer ws =
+            new WebServer(ServerConfig.fromEnvironment(),
+                          ks.supplier("jwt", KeyType.AES), packDir, tagDir);
         try {
             ws.start();
         } catch (Throwable th) {
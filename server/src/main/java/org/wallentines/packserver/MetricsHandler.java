@@ -0,0 +1,190 @@
+package org.wallentines.packserver;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.*;
+import java.util.concurrent.CompletionStage;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestHandler;
+
+/**
+ * Reports server metrics in the Prometheus text format
+ */
+public class MetricsHandler implements RequestHandler {
+
+    private static final String CONTENT_TYPE =
+        "text/plain; version=0.0.4; charset=utf-8";
+
+    private final WebServer server;
+
+    public MetricsHandler(WebServer server) { this.server = server; }
+
+    // GET /metrics
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
+
+        StringBuilder out = new StringBuilder();
+        writeAdmission(out, server.downloadAdmission(),
+                       server.metadataAdmission(), server.uploadAdmission());
+        if (server.blockingExecutor() != null) {
+            writeExecutor(out, server.blockingExecutor());
+        }
+        writeCache(out, server.packCache());
+        metric(out, "packserver_packs", "gauge", "Packs stored",
+               server.packManager().catalog().count());
+        metric(out, "packserver_pack_bytes", "gauge",
+               "Total size of stored packs",
+               server.packManager().catalog().totalSize());
+        metric(out, "packserver_upload_sessions", "gauge",
+               "Resumable upload sessions currently open",
+               server.uploadSessions().count());
+        metric(out, "packserver_gc_collected_packs_total", "counter",
+               "Untagged packs deleted by the collector",
+               server.packCollector().collected());
+        metric(out, "packserver_gc_reclaimed_bytes_total", "counter",
+               "Bytes freed by the collector",
+               server.packCollector().reclaimedBytes());
+        if (server.packScrubber() != null) {
+            writeScrubber(out, server.packScrubber());
+        }
+        if (server.packOptimizer() != null) {
+            writeOptimizer(out, server.packOptimizer());
+        }
+
+        FullHttpResponse res = new DefaultFullHttpResponse(
+            request.version(), HttpResponseStatus.OK,
+            ByteBufUtil.writeUtf8(request.alloc(), out));
+        res.headers()
+            .set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE)
+            .set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        return request.respond(res);
+    }
+
+    private static void writeAdmission(StringBuilder out,
+                                       AdmissionController... controllers) {
+
+        header(out, "packserver_admission_active", "gauge",
+               "Requests currently admitted");
+        for (AdmissionController ac : controllers) {
+            sample(out, "packserver_admission_active", ac, ac.active());
+        }
+
+        header(out, "packserver_admission_queued", "gauge",
+               "Requests waiting for admission");
+        for (AdmissionController ac : controllers) {
+            sample(out, "packserver_admission_queued", ac, ac.queued());
+        }
+
+        header(out, "packserver_admission_admitted_total", "counter",
+               "Requests admitted");
+        for (AdmissionController ac : controllers) {
+            sample(out, "packserver_admission_admitted_total", ac,
+                   ac.admitted());
+        }
+
+        header(out, "packserver_admission_rejected_total", "counter",
+               "Requests rejected because the queue was full");
+        for (AdmissionController ac : controllers) {
+            sample(out, "packserver_admission_rejected_total", ac,
+                   ac.rejected());
+        }
+
+        header(out, "packserver_admission_timeouts_total", "counter",
+               "Requests rejected after waiting too long");
+        for (AdmissionController ac : controllers) {
+            sample(out, "packserver_admission_timeouts_total", ac,
+                   ac.timedOut());
+        }
+
+        header(out, "packserver_admission_wait_seconds_total", "counter",
+               "Time queued requests spent waiting for admission");
+        for (AdmissionController ac : controllers) {
+            sample(out, "packserver_admission_wait_seconds_total", ac,
+                   ac.totalWaitSeconds());
+        }
+
+        header(out, "packserver_admission_wait_seconds_max", "gauge",
+               "Longest time a request has waited for admission");
+        for (AdmissionController ac : controllers) {
+            sample(out, "packserver_admission_wait_seconds_max", ac,
+                   ac.maxWaitSeconds());
+        }
+    }
+
+    private static void writeExecutor(StringBuilder out,
+                                      BlockingExecutor executor) {
+        metric(out, "packserver_io_threads", "gauge",
+               "Threads available for blocking I/O", executor.threads());
+        metric(out, "packserver_io_active", "gauge",
+               "Blocking I/O tasks currently running", executor.active());
+        metric(out, "packserver_io_queued", "gauge",
+               "Blocking I/O tasks waiting for a thread", executor.queued());
+        metric(out, "packserver_io_queue_capacity", "gauge",
+               "Blocking I/O tasks which may wait for a thread",
+               executor.queueCapacity());
+        metric(out, "packserver_io_completed_total", "counter",
+               "Blocking I/O tasks completed", executor.completed());
+        metric(out, "packserver_io_rejected_total", "counter",
+               "Blocking I/O tasks rejected because the queue was full",
+               executor.rejected());
+    }
+
+    private static void writeCache(StringBuilder out, PackCache cache) {
+        metric(out, "packserver_cache_hits_total", "counter",
+               "Pack cache hits", cache.hits());
+        metric(out, "packserver_cache_misses_total", "counter",
+               "Pack cache misses", cache.misses());
+        metric(out, "packserver_cache_evictions_total", "counter",
+               "Packs evicted from the cache", cache.evictions());
+        metric(out, "packserver_cache_bytes", "gauge",
+               "Bytes of pack data in the cache", cache.size());
+        metric(out, "packserver_cache_entries", "gauge",
+               "Packs in the cache", cache.count());
+    }
+
+    private static void writeOptimizer(StringBuilder out,
+                                       PackOptimizer optimizer) {
+        metric(out, "packserver_optimized_packs_total", "counter",
+               "Pushed packs made smaller by the optimiser",
+               optimizer.optimized());
+        metric(out, "packserver_optimizer_saved_bytes_total", "counter",
+               "Bytes removed from pushed packs by the optimiser",
+               optimizer.bytesSaved());
+    }
+
+    private static void writeScrubber(StringBuilder out,
+                                      PackScrubber scrubber) {
+        metric(out, "packserver_scrub_checked_packs_total", "counter",
+               "Stored packs checked by the scrubber", scrubber.checked());
+        metric(out, "packserver_scrub_read_bytes_total", "counter",
+               "Bytes read by the scrubber", scrubber.checkedBytes());
+        metric(out, "packserver_scrub_quarantined_total", "counter",
+               "Corrupt packs, recipes and chunks quarantined by the scrubber",
+               scrubber.corrupt());
+        metric(out, "packserver_scrub_passes_total", "counter",
+               "Full passes finished by the scrubber", scrubber.passes());
+    }
+
+    private static void header(StringBuilder out, String name, String type,
+                               String help) {
+        out.append("# HELP ").append(name).append(' ').append(help);
+        out.append("\n# TYPE ").append(name).append(' ').append(type);
+        out.append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name,
+                               AdmissionController ac, Number value) {
+        out.append(name)
+            .append("{class=\"")
+            .append(ac.name())
+            .append("\"} ")
+            .append(value)
+            .append('\n');
+    }
+
+    private static void metric(StringBuilder out, String name, String type,
+                               String help, Number value) {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
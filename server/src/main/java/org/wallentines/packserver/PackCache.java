@@ -0,0 +1,235 @@
+package org.wallentines.packserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wallentines.packserver.netty.ChannelType;
+
+/**
+ * A bounded in-memory cache of pack contents held in direct buffers. Packs are
+ * evicted in least-recently-used order once the byte budget is exceeded.
+ * Since a pack which is only requested once is not worth holding, packs are
+ * only loaded after a second request, or when they are preloaded because a
+ * tag was pointed at them.
+ */
+public class PackCache {
+
+    private static final Logger log = LoggerFactory.getLogger(PackCache.class);
+    private static final int MAX_TRACKED_MISSES = 1024;
+
+    private final PackManager packManager;
+    private final long capacity;
+    private final ExecutorService loader;
+
+    private final LinkedHashMap<String, ByteBuf> entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Boolean> recentMisses =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean
+            removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_TRACKED_MISSES;
+            }
+        };
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a pack cache
+     * @param packManager The pack manager to load packs from
+     * @param capacity The maximum number of bytes to hold, or 0 to disable
+     *     the cache
+     */
+    public PackCache(PackManager packManager, long capacity) {
+        this.packManager = packManager;
+        this.capacity = capacity;
+        this.loader = capacity > 0
+                          ? Executors.newSingleThreadExecutor(
+                                ChannelType.createThreadFactory("Pack Loader"))
+                          : null;
+    }
+
+    public boolean isEnabled() { return capacity > 0; }
+
+    /**
+     * Gets the contents of a cached pack
+     * @param hash The pack's hash
+     * @return A retained duplicate of the pack's contents, which the caller
+     *     must release, or null if the pack is not cached
+     */
+    @Nullable
+    public ByteBuf get(String hash) {
+
+        if (!isEnabled()) {
+            return null;
+        }
+
+        boolean admit;
+        synchronized (this) {
+            ByteBuf buf = entries.get(hash);
+            if (buf != null) {
+                hits.increment();
+                return buf.retainedDuplicate();
+            }
+            admit = recentMisses.put(hash, Boolean.TRUE) != null;
+        }
+
+        misses.increment();
+        if (admit) {
+            load(hash);
+        }
+        return null;
+    }
+
+    /**
+     * Loads a pack into the cache in the background
+     * @param hash The pack's hash
+     */
+    public void preload(String hash) {
+        if (isEnabled()) {
+            load(hash);
+        }
+    }
+
+    public synchronized void invalidate(String hash) {
+        ByteBuf buf = entries.remove(hash);
+        if (buf != null) {
+            size -= buf.readableBytes();
+            buf.release();
+        }
+    }
+
+    public synchronized void clear() {
+        for (ByteBuf buf : entries.values()) {
+            buf.release();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    public void shutdown() {
+        if (loader != null) {
+            loader.shutdownNow();
+        }
+        clear();
+    }
+
+    public long hits() { return hits.sum(); }
+
+    public long misses() { return misses.sum(); }
+
+    public long evictions() { return evictions.sum(); }
+
+    public synchronized long size() { return size; }
+
+    public synchronized int count() { return entries.size(); }
+
+    public long capacity() { return capacity; }
+
+    private void load(String hash) {
+
+        if (!loading.add(hash)) {
+            return;
+        }
+        synchronized (this) {
+            if (entries.containsKey(hash)) {
+                loading.remove(hash);
+                return;
+            }
+        }
+
+        loader.execute(() -> {
+            try {
+                ByteBuf buf = read(hash);
+                if (buf != null) {
+                    put(hash, buf);
+                }
+            } catch (NoSuchFileException ex) {
+                // Ignore
+            } catch (IOException ex) {
+                log.warn("Unable to load pack {} into the cache", hash, ex);
+            } finally {
+                loading.remove(hash);
+            }
+        });
+    }
+
+    @Nullable
+    private ByteBuf read(String hash) throws IOException {
+
+        Path path = packManager.get(hash);
+        if (path == null) {
+            return null;
+        }
+
+        try (FileChannel channel =
+                 FileChannel.open(path, StandardOpenOption.READ)) {
+
+            long length = channel.size();
+            if (length > capacity || length > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            ByteBuf buf = Unpooled.directBuffer((int)length, (int)length);
+            try {
+                while (buf.writerIndex() < length) {
+                    int read = buf.writeBytes(channel, buf.writerIndex(),
+                                              buf.writableBytes());
+                    if (read < 0) {
+                        throw new EOFException("Unexpected end of " + path);
+                    }
+                }
+            } catch (IOException ex) {
+                buf.release();
+                throw ex;
+            }
+            return buf;
+        }
+    }
+
+    private synchronized void put(String hash, ByteBuf buf) {
+
+        invalidate(hash);
+
+        long length = buf.readableBytes();
+        Iterator<ByteBuf> it = entries.values().iterator();
+        while (size + length > capacity && it.hasNext()) {
+            ByteBuf evicted = it.next();
+            it.remove();
+            size -= evicted.readableBytes();
+            evicted.release();
+            evictions.increment();
+        }
+
+        entries.put(hash, buf);
+        size += length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d packs cached (%d/%d bytes), %d hits, %d "
+                                 + "misses, %d evictions",
+                             count(), size(), capacity, hits(), misses(),
+                             evictions());
+    }
+}
@@ -0,0 +1,338 @@
+package org.wallentines.packserver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the metadata of every stored pack in memory, so requests can check
+ * whether a pack exists and how large it is without touching the file
+ * system. Changes are appended to a log file, which is replayed and compacted
+ * when the catalog is opened, and compacted again whenever it grows to
+ * several times the number of packs. Downloads only update the last-served
+ * time in memory, and those times are written to the log when it is flushed.
+ */
+public class PackCatalog {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(PackCatalog.class);
+
+    private static final String ZIP = "application/zip";
+    private static final String OCTET_STREAM = "application/octet-stream";
+
+    // The log is compacted once it holds this many lines for each pack, and
+    // at least the minimum
+    private static final int COMPACT_RATIO = 4;
+    private static final int MIN_COMPACT_LINES = 4096;
+
+    private final Path file;
+    private final ConcurrentHashMap<String, PackInfo> packs =
+        new ConcurrentHashMap<>();
+    private final Set<String> served = ConcurrentHashMap.newKeySet();
+    private BufferedWriter writer;
+    private long lines;
+
+    public PackCatalog(Path file) { this.file = file; }
+
+    /**
+     * Loads the catalog from its log, or from the packs in the storage if
+     * there is no log yet, and rewrites the log with one line per pack
+     */
+    public synchronized void open(PackStorage storage) throws IOException {
+
+        if (writer != null) {
+            return;
+        }
+        if (Files.exists(file)) {
+            replay();
+        } else {
+            scan(storage);
+        }
+        compact();
+        log.info("Loaded {} packs from the catalog", packs.size());
+    }
+
+    /**
+     * Writes last-served times to the log and closes it
+     */
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            flush();
+            writer.close();
+        } catch (IOException ex) {
+            log.error("Unable to close the pack catalog!", ex);
+        }
+        writer = null;
+    }
+
+    @Nullable
+    public PackInfo get(String hash) {
+        return packs.get(hash);
+    }
+
+    public boolean contains(String hash) { return packs.containsKey(hash); }
+
+    /**
+     * The number of packs in the catalog
+     */
+    public int count() { return packs.size(); }
+
+    /**
+     * The total size of all packs in the catalog, in bytes
+     */
+    public long totalSize() {
+        return packs.values().stream().mapToLong(PackInfo::size).sum();
+    }
+
+    /**
+     * Adds a newly stored pack, unless it is already in the catalog
+     * @param packFile The stored pack
+     * @param origin What stored the pack, such as "push"
+     */
+    public synchronized PackInfo add(String hash, Path packFile,
+                                     String origin) throws IOException {
+
+        PackInfo existing = packs.get(hash);
+        if (existing != null) {
+            return existing;
+        }
+
+        BasicFileAttributes attrs =
+            Files.readAttributes(packFile, BasicFileAttributes.class);
+        PackInfo info =
+            new PackInfo(hash, attrs.size(), System.currentTimeMillis(), 0,
+                         getContentType(packFile), origin);
+        append(info.toLine());
+        packs.put(hash, info);
+        return info;
+    }
+
+    /**
+     * Adds a pack which was found in the storage rather than stored by this
+     * server, unless it is already in the catalog
+     * @param origin Where the pack was found
+     */
+    public synchronized PackInfo addStored(PackStorage.StoredPack pack,
+                                           String origin) throws IOException {
+
+        PackInfo existing = packs.get(pack.hash());
+        if (existing != null) {
+            return existing;
+        }
+
+        PackInfo info = new PackInfo(pack.hash(), pack.size(), pack.modified(),
+                                     0, ZIP, origin);
+        append(info.toLine());
+        packs.put(pack.hash(), info);
+        return info;
+    }
+
+    /**
+     * Removes a deleted pack
+     */
+    public synchronized void remove(String hash) throws IOException {
+        if (packs.remove(hash) != null) {
+            served.remove(hash);
+            append("remove " + hash);
+        }
+    }
+
+    /**
+     * Records that a pack was downloaded. This is only written to the log
+     * when the catalog is flushed.
+     */
+    public void markServed(String hash) {
+        PackInfo info = packs.computeIfPresent(
+            hash, (k, v) -> v.withLastServed(System.currentTimeMillis()));
+        if (info != null) {
+            served.add(hash);
+        }
+    }
+
+    /**
+     * Writes the last-served times which changed since the last flush, and
+     * compacts the log if it has grown too large
+     */
+    public synchronized void flush() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        for (String hash : List.copyOf(served)) {
+            served.remove(hash);
+            PackInfo info = packs.get(hash);
+            if (info != null) {
+                writer.write("served " + hash + " " + info.lastServed());
+                writer.newLine();
+                lines++;
+            }
+        }
+        writer.flush();
+
+        if (lines > Math.max(MIN_COMPACT_LINES,
+                             (long)packs.size() * COMPACT_RATIO)) {
+            // The old log stays open until the new one has replaced it
+            BufferedWriter old = writer;
+            compact();
+            old.close();
+        }
+    }
+
+    private synchronized void append(String line) throws IOException {
+        if (writer == null) {
+            throw new IOException("The pack catalog is not open");
+        }
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+        lines++;
+    }
+
+    private void replay() throws IOException {
+        int invalid = 0;
+        try (BufferedReader reader =
+                 Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!apply(line.split(" "))) {
+                    invalid++;
+                }
+            }
+        }
+        if (invalid > 0) {
+            // Most likely a line cut short when the server stopped
+            log.warn("Skipped {} invalid lines in the pack catalog", invalid);
+        }
+    }
+
+    private boolean apply(String[] parts) {
+        try {
+            switch (parts[0]) {
+            case "add" -> {
+                if (parts.length != 7 || !Util.isHexadecimal(parts[1])) {
+                    return false;
+                }
+                packs.put(parts[1], new PackInfo(parts[1],
+                                                 Long.parseLong(parts[2]),
+                                                 Long.parseLong(parts[3]),
+                                                 Long.parseLong(parts[4]),
+                                                 parts[5], parts[6]));
+            }
+            case "served" -> {
+                if (parts.length != 3) {
+                    return false;
+                }
+                long time = Long.parseLong(parts[2]);
+                packs.computeIfPresent(parts[1],
+                                       (k, v) -> v.withLastServed(time));
+            }
+            case "remove" -> {
+                if (parts.length != 2) {
+                    return false;
+                }
+                packs.remove(parts[1]);
+            }
+            default -> {
+                return false;
+            }
+            }
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    private void scan(PackStorage storage) throws IOException {
+        List<PackStorage.StoredPack> stored = storage.list();
+        log.info("Building the pack catalog from {} packs", stored.size());
+        for (PackStorage.StoredPack pack : stored) {
+            // Packs which are not held locally are assumed to be zips
+            Path packFile = storage.localPath(pack.hash());
+            String contentType = packFile != null && Files.exists(packFile)
+                                     ? getContentType(packFile)
+                                     : ZIP;
+            packs.put(pack.hash(),
+                      new PackInfo(pack.hash(), pack.size(), pack.modified(),
+                                   0, contentType, "scan"));
+        }
+    }
+
+    /**
+     * Replaces the log with one which holds only the current state
+     */
+    private void compact() throws IOException {
+
+        // Packs served from here on are written by the next flush
+        served.clear();
+        List<String> current = new ArrayList<>(packs.size());
+        for (PackInfo info : packs.values()) {
+            current.add(info.toLine());
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, current, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                         StandardOpenOption.APPEND);
+        lines = current.size();
+    }
+
+    private static String getContentType(Path packFile) throws IOException {
+        byte[] magic;
+        try (InputStream is = Files.newInputStream(packFile)) {
+            magic = is.readNBytes(4);
+        }
+        // Local file header, or the end of an empty archive
+        if (Arrays.equals(magic, new byte[] {'P', 'K', 3, 4}) ||
+            Arrays.equals(magic, new byte[] {'P', 'K', 5, 6})) {
+            return ZIP;
+        }
+        return OCTET_STREAM;
+    }
+
+    /**
+     * The metadata of a stored pack
+     * @param hash The pack's SHA-1 hash
+     * @param size The pack's size, in bytes
+     * @param created When the pack was stored, in milliseconds since the
+     *     epoch
+     * @param lastServed When the pack was last downloaded, in milliseconds
+     *     since the epoch, or 0 if it has not been
+     * @param contentType The pack's media type
+     * @param origin What stored the pack, such as "push" or "upload"
+     */
+    public record PackInfo(String hash, long size, long created,
+                           long lastServed, String contentType,
+                           String origin) {
+
+        PackInfo withLastServed(long time) {
+            return new PackInfo(hash, size, created,
+                                Math.max(lastServed, time), contentType,
+                                origin);
+        }
+
+        String toLine() {
+            return "add " + hash + " " + size + " " + created + " " +
+                lastServed + " " + contentType + " " + origin;
+        }
+    }
+}
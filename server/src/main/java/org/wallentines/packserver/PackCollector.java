@@ -0,0 +1,309 @@
+package org.wallentines.packserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wallentines.packserver.netty.ChannelType;
+
+/**
+ * Deletes packs which no tag points to. A collection lists the storage once
+ * and sweeps it in batches, marking the tagged packs again before each batch
+ * and whenever a tag is pushed, so that tags pushed during a long collection
+ * are still honoured. Packs the optimiser rewrote into a tagged pack are kept
+ * along with their aliases, so the original hash still resolves. Packs which
+ * were stored or downloaded within the grace period are kept, so downloads
+ * which are still running are never cut off.
+ */
+public class PackCollector {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(PackCollector.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final PackManager packManager;
+    private final TagManager tagManager;
+    @Nullable private final PackCache packCache;
+    private final Path aliasDir;
+    private final long graceMillis;
+    private final int threads;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean stopped;
+    private final LongAdder collected = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    private final Object markLock = new Object();
+    private Set<String> marked;
+    private long markedPushes;
+
+    /**
+     * Creates a collector
+     * @param packCache The cache to drop deleted packs from, if any
+     * @param aliasDir The directory the optimiser keeps aliases in
+     * @param graceSeconds How long after a pack was stored or downloaded it
+     *     is kept, even if it is not tagged
+     * @param threads The number of packs to delete at once
+     */
+    public PackCollector(PackManager packManager, TagManager tagManager,
+                         @Nullable PackCache packCache, Path aliasDir,
+                         long graceSeconds, int threads) {
+        this.packManager = packManager;
+        this.tagManager = tagManager;
+        this.packCache = packCache;
+        this.aliasDir = aliasDir;
+        this.graceMillis = graceSeconds * 1000L;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Starts a collection on a background thread
+     * @param dryRun Whether to only report which packs would be deleted
+     * @return The collection's report, or null if a collection is already
+     *     running
+     */
+    @Nullable
+    public CompletableFuture<Report> start(boolean dryRun) {
+        if (!running.compareAndSet(false, true)) {
+            return null;
+        }
+        CompletableFuture<Report> out = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                out.complete(run(dryRun));
+            } catch (Throwable th) {
+                log.error("Pack collection failed!", th);
+                out.completeExceptionally(th);
+            } finally {
+                running.set(false);
+            }
+        }, "Pack Collector");
+        thread.setDaemon(true);
+        thread.start();
+        return out;
+    }
+
+    /**
+     * Runs a collection on the calling thread
+     * @param dryRun Whether to only report which packs would be deleted
+     * @throws IllegalStateException If a collection is already running
+     */
+    public Report collect(boolean dryRun) throws IOException {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A collection is already running");
+        }
+        try {
+            return run(dryRun);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Stops a running collection after its current batch
+     */
+    public void stop() { stopped = true; }
+
+    public boolean isRunning() { return running.get(); }
+
+    /**
+     * The number of packs deleted by collections
+     */
+    public long collected() { return collected.sum(); }
+
+    /**
+     * The number of bytes freed by collections
+     */
+    public long reclaimedBytes() { return reclaimedBytes.sum(); }
+
+    private Report run(boolean dryRun) throws IOException {
+
+        stopped = false;
+        List<PackStorage.StoredPack> stored = packManager.storage().list();
+        log.info("Collecting untagged packs from {} stored packs{}",
+                 stored.size(), dryRun ? " (dry run)" : "");
+
+        AtomicInteger tagged = new AtomicInteger();
+        AtomicInteger recent = new AtomicInteger();
+        AtomicInteger deleted = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            threads, ChannelType.createThreadFactory("Pack Collector"));
+        try {
+            for (int i = 0; i < stored.size() && !stopped; i += BATCH_SIZE) {
+
+                // Tags may also be changed by other servers sharing the
+                // tag directory
+                Set<String> marked = mark(true);
+                long cutoff = System.currentTimeMillis() - graceMillis;
+
+                List<CompletableFuture<Void>> sweeps = new ArrayList<>();
+                for (PackStorage.StoredPack pack : stored.subList(
+                         i, Math.min(stored.size(), i + BATCH_SIZE))) {
+
+                    if (marked.contains(pack.hash())) {
+                        tagged.incrementAndGet();
+                        continue;
+                    }
+                    if (lastUsed(pack) > cutoff) {
+                        recent.incrementAndGet();
+                        continue;
+                    }
+                    if (dryRun) {
+                        deleted.incrementAndGet();
+                        bytes.addAndGet(pack.size());
+                        continue;
+                    }
+                    sweeps.add(CompletableFuture.runAsync(() -> {
+                        // The pack may have been tagged or pushed again since
+                        // the batch began
+                        if (isMarked(pack.hash())) {
+                            tagged.incrementAndGet();
+                        } else if (lastUsed(pack) > cutoff) {
+                            recent.incrementAndGet();
+                        } else if (sweep(pack.hash())) {
+                            deleted.incrementAndGet();
+                            bytes.addAndGet(pack.size());
+                            collected.increment();
+                            reclaimedBytes.add(pack.size());
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    }, executor));
+                }
+                CompletableFuture
+                    .allOf(sweeps.toArray(CompletableFuture[] ::new))
+                    .join();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Chunks can only be deleted once no remaining recipe refers to them
+        if (!dryRun && !stopped && deleted.get() > 0 &&
+            packManager.storage() instanceof DedupPackStorage dedup) {
+            dedup.sweepChunks(graceMillis);
+        }
+
+        Report report = new Report(stored.size(), tagged.get(), recent.get(),
+                                   deleted.get(), failed.get(), bytes.get(),
+                                   dryRun, stopped);
+        log.info("Pack collection finished: {}", report);
+        return report;
+    }
+
+    /**
+     * Gets the hashes of tagged packs, and of the packs the optimiser turned
+     * into them
+     * @param force Whether to mark again even if no tag has been pushed
+     *     through this server since the last mark
+     */
+    private Set<String> mark(boolean force) throws IOException {
+        synchronized (markLock) {
+            long pushes = tagManager.pushes();
+            if (!force && marked != null && pushes == markedPushes) {
+                return marked;
+            }
+
+            Set<String> out =
+                tagManager.getAllTaggedHashes().collect(Collectors.toSet());
+            Set<String> sources = new HashSet<>();
+            if (Files.isDirectory(aliasDir)) {
+                try (Stream<Path> files = Files.list(aliasDir)) {
+                    for (Path file : (Iterable<Path>)files::iterator) {
+                        try {
+                            if (out.contains(Files.readString(file).trim())) {
+                                sources.add(file.getFileName().toString());
+                            }
+                        } catch (NoSuchFileException ex) {
+                            // Removed since the directory was listed
+                        }
+                    }
+                }
+            }
+            out.addAll(sources);
+
+            marked = out;
+            markedPushes = pushes;
+            return out;
+        }
+    }
+
+    private boolean isMarked(String hash) {
+        try {
+            return mark(false).contains(hash);
+        } catch (IOException ex) {
+            log.error("Unable to mark tagged packs, so {} is kept", hash, ex);
+            return true;
+        }
+    }
+
+    private long lastUsed(PackStorage.StoredPack pack) {
+        PackCatalog.PackInfo info = packManager.catalog().get(pack.hash());
+        if (info == null) {
+            return pack.modified();
+        }
+        return Math.max(info.created(), info.lastServed());
+    }
+
+    private boolean sweep(String hash) {
+        try {
+            packManager.delete(hash);
+            Files.deleteIfExists(aliasDir.resolve(hash));
+        } catch (IOException ex) {
+            log.error("Unable to delete pack {}!", hash, ex);
+            return false;
+        }
+        if (packCache != null) {
+            packCache.invalidate(hash);
+        }
+        return true;
+    }
+
+    /**
+     * The outcome of a collection
+     * @param scanned The number of stored packs
+     * @param tagged The number of packs kept because a tag points to them
+     * @param recent The number of packs kept because they were stored or
+     *     downloaded within the grace period
+     * @param collected The number of packs deleted, or which would be
+     *     deleted by a dry run
+     * @param failed The number of packs which could not be deleted
+     * @param bytes The number of bytes freed, or which would be freed by a
+     *     dry run
+     * @param dryRun Whether packs were left in place
+     * @param stopped Whether the collection was stopped before it finished
+     */
+    public record Report(int scanned, int tagged, int recent, int collected,
+                         int failed, long bytes, boolean dryRun,
+                         boolean stopped) {
+
+        @Override
+        public String toString() {
+            return (dryRun ? "would delete " : "deleted ") + collected +
+                " of " + scanned + " packs (" + bytes + " bytes), kept " +
+                tagged + " tagged and " + recent + " recent" +
+                (failed > 0 ? ", " + failed + " failed" : "") +
+                (stopped ? ", stopped early" : "");
+        }
+    }
+}
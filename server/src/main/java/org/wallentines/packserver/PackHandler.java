@@ -1,72 +1,291 @@
 package org.wallentines.packserver;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.DateFormatter;
 import io.netty.handler.codec.http.*;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.File;
 import java.nio.file.Path;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestHandler;
+import org.wallentines.packserver.netty.ResponseBody;
+
+public class PackHandler implements RequestHandler {
 
-public class PackHandler {
+    // Responses addressed by hash can never change, while tags can be moved
+    // to another pack at any time
+    private static final String IMMUTABLE_CACHE_CONTROL =
+        "public, max-age=31536000, immutable";
+    private static final String TAG_CACHE_CONTROL = "public, max-age=60";
 
     private final WebServer server;
 
-    public PackHandler(WebServer server) {
-        this.server = server;
-    }
+    public PackHandler(WebServer server) { this.server = server; }
 
     // GET /pack?hash=<HASH>
-    public FullHttpResponse handle(FullHttpRequest req, ChannelHandlerContext ctx) {
+    // GET /pack?tag=<TAG>
+    // HEAD /pack?hash=<HASH>
+    // HEAD /pack?tag=<TAG>
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
+
+        FullHttpRequest req = request.http();
+        boolean head = req.method() == HttpMethod.HEAD;
+
+        PackRef ref = getPackRef(request);
+        PackCatalog.PackInfo info =
+            ref == null ? null : server.packManager().stat(ref.hash);
+        if (info == null) {
+            return request.respond(HttpResponseStatus.NOT_FOUND);
+        }
+
+        long length = info.size();
+        long modified = info.created();
+        String contentType = info.contentType();
+
+        String etag = "\"" + ref.hash + "\"";
+        HttpHeaders cacheHeaders =
+            new DefaultHttpHeaders()
+                .set(HttpHeaderNames.ETAG, etag)
+                .set(HttpHeaderNames.LAST_MODIFIED, new Date(modified))
+                .set(HttpHeaderNames.CACHE_CONTROL,
+                     ref.immutable ? IMMUTABLE_CACHE_CONTROL
+                                   : TAG_CACHE_CONTROL);
+
+        if (isNotModified(req, etag, modified)) {
+            FullHttpResponse res = new DefaultFullHttpResponse(
+                req.protocolVersion(), HttpResponseStatus.NOT_MODIFIED);
+            res.headers().add(cacheHeaders);
+            return request.respond(res);
+        }
+
+        if (head) {
+            FullHttpResponse res = new DefaultFullHttpResponse(
+                req.protocolVersion(), HttpResponseStatus.OK);
+            res.headers()
+                .add(cacheHeaders)
+                .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                .set(HttpHeaderNames.CONTENT_DISPOSITION,
+                     "inline; filename=\"pack.zip\"")
+                .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            HttpUtil.setContentLength(res, length);
+            return request.respond(res);
+        }
 
-        if(req.method() != HttpMethod.GET) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+        // Packs are addressed by their SHA-1, so ranges are only ignored if
+        // the client's validator refers to a different pack
+        List<ByteRange> ranges = null;
+        String rangeHeader = req.headers().get(HttpHeaderNames.RANGE);
+        if (rangeHeader != null && isIfRangeSatisfied(req, etag, modified)) {
+            ranges = ByteRange.parse(rangeHeader, length);
         }
 
-        Path packFile = getPackPath(req);
+        if (ranges != null && ranges.isEmpty()) {
+            FullHttpResponse res = new DefaultFullHttpResponse(
+                req.protocolVersion(),
+                HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            res.headers().set(HttpHeaderNames.CONTENT_RANGE,
+                              "bytes */" + length);
+            return request.respond(res);
+        }
 
-        if(packFile == null || !Files.exists(packFile)) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.NOT_FOUND);
+        // Packs which are only stored as chunks are rebuilt as they are sent
+        ByteBuf cached = server.packCache().get(ref.hash);
+        PackRecipe recipe =
+            cached == null ? server.packManager().recipe(ref.hash) : null;
+        File file = null;
+        if (cached == null && recipe == null) {
+            Path packFile = server.packManager().get(ref.hash);
+            if (packFile == null) {
+                return request.respond(HttpResponseStatus.NOT_FOUND);
+            }
+            file = packFile.toFile();
         }
 
-        ByteBuf out = ctx.alloc().buffer();
-        int length = 0;
-        try(InputStream is = Files.newInputStream(packFile)) {
-            while(is.available() > 0) {
-                length += out.writeBytes(is, is.available());
+        ResponseBody body = new ResponseBody();
+        HttpResponse res;
+
+        if (ranges == null) {
+            res = new DefaultHttpResponse(req.protocolVersion(),
+                                          HttpResponseStatus.OK);
+            res.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                .set(HttpHeaderNames.CONTENT_DISPOSITION,
+                     "inline; filename=\"pack.zip\"");
+            addContent(body, file, cached, recipe, 0, length);
+
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.getFirst();
+            res = new DefaultHttpResponse(req.protocolVersion(),
+                                          HttpResponseStatus.PARTIAL_CONTENT);
+            res.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                .set(HttpHeaderNames.CONTENT_RANGE,
+                     range.contentRange(length));
+            addContent(body, file, cached, recipe, range.start(),
+                       range.length());
+
+        } else {
+            String boundary =
+                Long.toHexString(ThreadLocalRandom.current().nextLong());
+            res = new DefaultHttpResponse(req.protocolVersion(),
+                                          HttpResponseStatus.PARTIAL_CONTENT);
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE,
+                              "multipart/byteranges; boundary=" + boundary);
+
+            for (ByteRange range : ranges) {
+                String partHeader = "\r\n--" + boundary + "\r\n" +
+                                    "Content-Type: " + contentType + "\r\n" +
+                                    "Content-Range: " +
+                                    range.contentRange(length) + "\r\n\r\n";
+                body.addBuffer(encode(request, partHeader));
+                addContent(body, file, cached, recipe, range.start(),
+                           range.length());
             }
-        } catch (IOException ex) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            body.addBuffer(encode(request, "\r\n--" + boundary + "--\r\n"));
+        }
+
+        if (cached != null) {
+            cached.release();
         }
 
-        DefaultFullHttpResponse res = new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.OK, out);
         res.headers()
-                .add(HttpHeaderNames.CONTENT_TYPE, "application/zip")
-                .add(HttpHeaderNames.CONTENT_LENGTH, length)
-                .add(HttpHeaderNames.CONTENT_DISPOSITION, "inline; filename=\"pack.zip\"");
+            .add(cacheHeaders)
+            .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        server.packManager().catalog().markServed(ref.hash);
+        return request.stream(res, body);
+    }
+
+    /**
+     * Adds part of a pack to a response body, taking it from the pack cache
+     * if it is loaded, or from the chunks of its recipe if it is not stored
+     * whole
+     */
+    private static void addContent(ResponseBody body, File file,
+                                   ByteBuf cached, PackRecipe recipe,
+                                   long offset, long length) {
+        if (cached != null) {
+            body.addBuffer(cached.retainedSlice(cached.readerIndex() +
+                                                    (int)offset,
+                                                (int)length));
+        } else if (recipe != null) {
+            addRecipe(body, recipe, offset, length);
+        } else {
+            body.addFile(file, offset, length);
+        }
+    }
+
+    private static void addRecipe(ResponseBody body, PackRecipe recipe,
+                                  long offset, long length) {
+        long end = offset + length;
+        long position = 0;
+        for (PackRecipe.Segment seg : recipe.segments()) {
+            long segEnd = position + seg.length();
+            if (segEnd > offset && position < end) {
+                long from = Math.max(offset, position) - position;
+                long to = Math.min(end, segEnd) - position;
+                if (seg.chunk() == null) {
+                    body.addBuffer(Unpooled.wrappedBuffer(
+                        seg.data(), (int)from, (int)(to - from)));
+                } else {
+                    body.addFile(recipe.chunkFile(seg).toFile(), from,
+                                 to - from);
+                }
+            }
+            position = segEnd;
+            if (position >= end) {
+                break;
+            }
+        }
+    }
+
+    private static ByteBuf encode(Request request, String str) {
+        return ByteBufUtil.writeAscii(request.alloc(), str);
+    }
+
+    /**
+     * Checks the request's conditional headers to determine whether the client
+     * already has the pack. If-Modified-Since is only considered when
+     * If-None-Match is absent.
+     */
+    private static boolean isNotModified(FullHttpRequest req, String etag,
+                                         long modified) {
+
+        String ifNoneMatch = req.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince =
+            req.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            Date date = DateFormatter.parseHttpDate(ifModifiedSince);
+            return date != null && date.getTime() / 1000 >= modified / 1000;
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks an If-Range header against the pack's entity tag and
+     * modification time. Range requests without If-Range always pass.
+     */
+    private static boolean isIfRangeSatisfied(FullHttpRequest req,
+                                              String etag, long modified) {
+
+        String ifRange = req.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Weak tags never match for range requests
+            return ifRange.equals(etag);
+        }
 
-        return res;
+        Date date = DateFormatter.parseHttpDate(ifRange);
+        return date != null && date.getTime() / 1000 == modified / 1000;
     }
 
-    private Path getPackPath(FullHttpRequest req) {
+    private PackRef getPackRef(Request request) {
 
-        QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
-        List<String> hashParam = decoder.parameters().get("hash");
-        if(hashParam != null && !hashParam.isEmpty()) {
-            return server.packManager().get(hashParam.getFirst());
+        String hashParam = request.param("hash");
+        if (hashParam != null) {
+            return new PackRef(hashParam, true);
         }
 
-        List<String> tagParam = decoder.parameters().get("tag");
-        if(tagParam != null && !tagParam.isEmpty()) {
-            String hash = server.tagManager().getHash(tagParam.getFirst());
-            if(hash == null) return null;
+        String tagParam = request.param("tag");
+        if (tagParam != null) {
+            String hash = server.tagManager().getHash(tagParam);
+            if (hash == null)
+                return null;
 
-            return server.packManager().get(hash);
+            return new PackRef(hash, false);
         }
 
         return null;
     }
 
+    /**
+     * A pack requested by a client
+     * @param hash The pack's SHA-1
+     * @param immutable Whether the client addressed the pack by its hash
+     */
+    private record PackRef(String hash, boolean immutable) {}
 }
@@ -1,36 +1,226 @@
 package org.wallentines.packserver;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Finds packs in a pack storage. The pack directory holds temporary files
+ * and the catalog, and, depending on the storage, either the packs
+ * themselves or a cache of them. Whether a pack exists, and its size, is
+ * looked up in the catalog rather than in the storage.
+ */
 public class PackManager implements FileSupplier {
 
+    private static final Logger log =
+        LoggerFactory.getLogger(PackManager.class);
+
+    // The number of hashes a shared storage did not have to remember
+    private static final int MAX_MISSING = 65536;
+
+    // The number of milliseconds to remember that a shared storage did not
+    // have a hash, so packs stored by other servers are soon found
+    private static final long MISSING_TTL = 10000;
+
     private final Path root;
-    public PackManager(Path root) { this.root = root; }
+    private final PackStorage storage;
+    private final PackCatalog catalog;
+
+    // Hashes a shared storage did not have, and when to ask about them again
+    private final ConcurrentHashMap<String, Long> missing =
+        new ConcurrentHashMap<>();
+
+    public PackManager(Path root) { this(root, new LocalPackStorage(root)); }
+
+    public PackManager(Path root, PackStorage storage) {
+        this.root = root;
+        this.storage = storage;
+        this.catalog = new PackCatalog(root.resolve("catalog.log"));
+    }
+
+    public Path root() { return root; }
+
+    public PackStorage storage() { return storage; }
 
+    public PackCatalog catalog() { return catalog; }
+
+    /**
+     * Loads the pack catalog. This must be called before packs are looked
+     * up or stored.
+     */
+    public void open() throws IOException { catalog.open(storage); }
+
+    /**
+     * Gets a local file with a pack's contents, fetching it from the storage
+     * if it is in the catalog but not held locally
+     * @return The pack's path, or null if the hash is invalid
+     */
     @Override
     public Path get(String hash) {
-        if (!Util.isHexadecimal(hash)) {
-            return null;
+        Path path = storage.localPath(hash);
+        if (path == null || !catalog.contains(hash)) {
+            return path;
+        }
+        try {
+            Path file = storage.localFile(hash);
+            return file == null ? path : file;
+        } catch (IOException ex) {
+            log.error("Unable to fetch pack {}!", hash, ex);
+            return path;
+        }
+    }
+
+    /**
+     * Determines whether a pack is stored. Storages which are shared with
+     * other servers are asked about packs which are not in the catalog, and
+     * hashes they do not have are remembered for a short time.
+     */
+    public boolean has(String hash) {
+        if (catalog.contains(hash)) {
+            return true;
+        }
+        if (storage instanceof LocalPackStorage || !Util.isHexadecimal(hash)) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        Long expires = missing.get(hash);
+        if (expires != null) {
+            if (expires > now) {
+                return false;
+            }
+            missing.remove(hash, expires);
+        }
+
+        try {
+            PackStorage.StoredPack pack = storage.stat(hash);
+            if (pack == null) {
+                remember(hash, now);
+                return false;
+            }
+            catalog.addStored(pack, "remote");
+            return true;
+        } catch (IOException ex) {
+            log.error("Unable to look up pack {}!", hash, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Remembers that the storage does not have a hash, unless too many hashes
+     * are already remembered
+     */
+    private void remember(String hash, long now) {
+        if (missing.size() >= MAX_MISSING) {
+            missing.values().removeIf(expires -> expires <= now);
+            if (missing.size() >= MAX_MISSING) {
+                return;
+            }
+        }
+        missing.put(hash, now + MISSING_TTL);
+    }
+
+    /**
+     * Gets the metadata of a stored pack
+     * @return The pack's metadata, or null if it is not stored
+     */
+    @Nullable
+    public PackCatalog.PackInfo stat(String hash) {
+        return has(hash) ? catalog.get(hash) : null;
+    }
+
+    /**
+     * Stores a received pack and adds it to the catalog, unless it is
+     * already stored
+     * @param origin What stored the pack, such as "push"
+     */
+    public void store(String hash, PushHandler.PendingPack pack, String origin)
+        throws IOException {
+        if (has(hash)) {
+            refresh(hash);
+            return;
         }
-        return root.resolve(hash);
+        storage.store(hash, pack);
+        catalog.add(hash, storage.localPath(hash), origin);
+        missing.remove(hash);
     }
 
-    public void prune(Set<String> toKeep) {
+    /**
+     * Counts a stored pack which was pushed again as recently used, so the
+     * collector keeps it for its grace period while it is tagged
+     */
+    public void refresh(String hash) { catalog.markServed(hash); }
+
+    /**
+     * Gets the recipe to rebuild a pack from while it is sent, if the
+     * storage splits packs into chunks and the pack is not materialised
+     * @return The recipe, or null if the pack should be sent from its file
+     */
+    @Nullable
+    public PackRecipe recipe(String hash) {
         try {
-            Files.list(root)
-                .filter(p -> !toKeep.contains(p.toString()))
-                .forEach(p -> {
-                    try {
-                        Files.delete(p);
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                });
+            return storage.recipe(hash);
         } catch (IOException ex) {
-            throw new RuntimeException(ex);
+            log.error("Unable to read the recipe for pack {}!", hash, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Lists the hashes of all stored packs
+     */
+    public List<String> hashes() throws IOException {
+        return storage.list()
+            .stream()
+            .map(PackStorage.StoredPack::hash)
+            .toList();
+    }
+
+    /**
+     * Deletes a pack from the storage and the catalog
+     */
+    public void delete(String hash) throws IOException {
+        catalog.remove(hash);
+        storage.delete(hash);
+    }
+
+    /**
+     * Moves this server's copy of a corrupt pack aside, and removes the pack
+     * from the catalog if no other copy is stored
+     * @param target Where to move the pack's data, for inspection
+     * @return True if there was a copy to move
+     */
+    public boolean quarantine(String hash, Path target) throws IOException {
+        if (!storage.quarantine(hash, target)) {
+            return false;
         }
+        if (storage.stat(hash) == null) {
+            catalog.remove(hash);
+        }
+        return true;
+    }
+
+    /**
+     * Starts moving locally held packs from the flat layout on a background
+     * thread, and splitting packs stored before deduplication was enabled
+     */
+    public void startMigration() {
+        if (storage instanceof LocalPackStorage local) {
+            local.startMigration();
+        } else if (storage instanceof S3PackStorage s3) {
+            s3.cache().startMigration();
+        } else if (storage instanceof DedupPackStorage dedup) {
+            dedup.hot().startMigration();
+            dedup.startImport();
+        }
+    }
+
+    public void close() {
+        catalog.close();
+        storage.close();
     }
 }
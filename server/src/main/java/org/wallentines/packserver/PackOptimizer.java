@@ -0,0 +1,263 @@
+package org.wallentines.packserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites pushed packs so they are smaller to download and cheaper to load.
+ * Entries are deflated at the highest level, except media which is already
+ * compressed, which is stored as-is. JSON is minified, and files left behind
+ * by file managers are dropped. The result is stored as a new pack, and the
+ * original hash is kept as an alias of it, so pushing the same pack again
+ * publishes the same result without rewriting it.
+ */
+public class PackOptimizer {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(PackOptimizer.class);
+
+    private static final int MAX_MINIFY_SIZE = 16 * 1024 * 1024;
+    private static final Set<String> COMPRESSED_EXTENSIONS =
+        Set.of("png", "ogg", "jpg", "jpeg", "gz", "zip");
+    private static final Set<String> JSON_EXTENSIONS =
+        Set.of("json", "mcmeta");
+    private static final Set<String> JUNK_FILES =
+        Set.of(".DS_Store", "Thumbs.db", "desktop.ini");
+
+    private final WebServer server;
+    private final Path aliasDir;
+    private final AtomicLong optimized = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public PackOptimizer(WebServer server, Path aliasDir) {
+        this.server = server;
+        this.aliasDir = aliasDir;
+    }
+
+    /**
+     * The number of packs which were made smaller
+     */
+    public long optimized() { return optimized.get(); }
+
+    /**
+     * The total number of bytes removed from optimised packs
+     */
+    public long bytesSaved() { return bytesSaved.get(); }
+
+    /**
+     * Optimises a stored pack, unless it has been optimised before
+     * @return The hash to publish the pack as. This is the original hash if
+     *     the pack could not be made smaller.
+     */
+    public String optimize(String hash) throws IOException {
+
+        String alias = getAlias(hash);
+        if (alias != null) {
+            return alias;
+        }
+
+        Path source = server.packManager().get(hash);
+        Path tmp = Files.createTempFile(server.packManager().root(), "upload-",
+                                        ".tmp");
+        try {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+
+            try (ZipFile zip = new ZipFile(source.toFile());
+                 ZipOutputStream zos = new ZipOutputStream(
+                     new DigestOutputStream(new BufferedOutputStream(
+                                                Files.newOutputStream(tmp)),
+                                            digest))) {
+                zos.setLevel(Deflater.BEST_COMPRESSION);
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry ze = entries.nextElement();
+                    if (!isJunk(ze.getName())) {
+                        write(zip, ze, zos);
+                    }
+                }
+            }
+
+            long originalSize = Files.size(source);
+            long size = Files.size(tmp);
+            if (size >= originalSize) {
+                log.info("Pack {} could not be made smaller", hash);
+                setAlias(hash, hash);
+                return hash;
+            }
+
+            String out = HexFormat.of().formatHex(digest.digest());
+            try {
+                server.pushHandler()
+                    .store(out,
+                           target
+                           -> Files.move(tmp, target,
+                                         StandardCopyOption.ATOMIC_MOVE,
+                                         StandardCopyOption.REPLACE_EXISTING),
+                           "optimize", null)
+                    .join();
+            } catch (CompletionException ex) {
+                throw new IOException("Unable to store optimised pack",
+                                      ex.getCause());
+            }
+
+            optimized.incrementAndGet();
+            bytesSaved.addAndGet(originalSize - size);
+            log.info("Optimised pack {} to {}: {} -> {} bytes ({}% smaller)",
+                     hash, out, originalSize, size,
+                     (originalSize - size) * 100 / originalSize);
+
+            setAlias(out, out);
+            setAlias(hash, out);
+            return out;
+
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Finds the pack a pack was optimised to
+     * @return The optimised pack's hash, or null if the pack has not been
+     *     optimised or the result no longer exists
+     */
+    private String getAlias(String hash) throws IOException {
+        Path file = aliasDir.resolve(hash);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        String alias = Files.readString(file).trim();
+        return server.packManager().has(alias) ? alias : null;
+    }
+
+    private void setAlias(String hash, String alias) throws IOException {
+        Files.createDirectories(aliasDir);
+        Files.writeString(aliasDir.resolve(hash), alias);
+    }
+
+    private static void write(ZipFile zip, ZipEntry ze, ZipOutputStream zos)
+        throws IOException {
+
+        ZipEntry out = ZipManifest.newZipEntry(ze.getName());
+        String extension = getExtension(ze.getName());
+
+        if (ze.isDirectory()) {
+            zos.putNextEntry(out);
+
+        } else if (COMPRESSED_EXTENSIONS.contains(extension)) {
+            // Deflating these again saves almost nothing, and costs every
+            // client time inflating them
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try (InputStream is = zip.getInputStream(ze)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                    size += read;
+                }
+            }
+            out.setMethod(ZipEntry.STORED);
+            out.setSize(size);
+            out.setCompressedSize(size);
+            out.setCrc(crc.getValue());
+            zos.putNextEntry(out);
+            try (InputStream is = zip.getInputStream(ze)) {
+                is.transferTo(zos);
+            }
+
+        } else if (JSON_EXTENSIONS.contains(extension) &&
+                   ze.getSize() <= MAX_MINIFY_SIZE) {
+            byte[] data;
+            try (InputStream is = zip.getInputStream(ze)) {
+                data = is.readAllBytes();
+            }
+            zos.putNextEntry(out);
+            zos.write(minifyJson(data));
+
+        } else {
+            zos.putNextEntry(out);
+            try (InputStream is = zip.getInputStream(ze)) {
+                is.transferTo(zos);
+            }
+        }
+        zos.closeEntry();
+    }
+
+    /**
+     * Removes whitespace outside of strings from a JSON document. The data is
+     * UTF-8, in which bytes of multibyte characters never look like ASCII, so
+     * it does not need to be decoded.
+     * @return The minified document, or the original data if it has comments
+     *     or an unterminated string
+     */
+    static byte[] minifyJson(byte[] data) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        boolean inString = false;
+        boolean escaped = false;
+        for (byte b : data) {
+            if (inString) {
+                out.write(b);
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+                out.write(b);
+            } else if (b == '/') {
+                // Comments are not JSON, but some loaders accept them, and
+                // removing line breaks would change what they cover
+                return data;
+            } else if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                out.write(b);
+            }
+        }
+        return inString ? data : out.toByteArray();
+    }
+
+    private static boolean isJunk(String name) {
+        if (name.startsWith("__MACOSX/")) {
+            return true;
+        }
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        return JUNK_FILES.contains(fileName) || fileName.startsWith("._");
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot == -1 || dot < name.lastIndexOf('/')) {
+            return "";
+        }
+        return name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
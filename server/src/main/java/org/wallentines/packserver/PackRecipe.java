@@ -0,0 +1,446 @@
+package org.wallentines.packserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Describes how to rebuild the exact bytes of a pack from the compressed data
+ * of its zip entries, which are stored once each as chunks named by their
+ * SHA-256, and the bytes between them, such as entry headers and the central
+ * directory, which are kept in the recipe itself. Packs which cannot be
+ * split, such as zip64 archives, become a single chunk.
+ */
+public class PackRecipe {
+
+    // Segments shorter than this are kept in the recipe
+    static final int MIN_CHUNK_SIZE = 1024;
+
+    // Neighbouring inline segments are stored together as a chunk once they
+    // reach this many bytes
+    static final int MAX_INLINE_RUN = 64 * 1024;
+
+    private static final int MAGIC = 0x504b5250;
+    private static final int VERSION = 1;
+    private static final byte INLINE = 0;
+    private static final byte CHUNK = 1;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int MAX_COMMENT = 0xffff;
+
+    private final List<Segment> segments;
+    private final ChunkLocator chunks;
+    private final long size;
+
+    /**
+     * Creates a recipe
+     * @param chunks Finds the file each chunk is stored in
+     */
+    public PackRecipe(List<Segment> segments, ChunkLocator chunks) {
+        this.segments = List.copyOf(segments);
+        this.chunks = chunks;
+        this.size = segments.stream().mapToLong(Segment::length).sum();
+    }
+
+    public List<Segment> segments() { return segments; }
+
+    /**
+     * The size of the rebuilt pack, in bytes
+     */
+    public long size() { return size; }
+
+    /**
+     * The number of bytes kept in the recipe rather than in chunks
+     */
+    public long inlineSize() {
+        return segments.stream()
+            .filter(seg -> seg.chunk() == null)
+            .mapToLong(Segment::length)
+            .sum();
+    }
+
+    /**
+     * Gets the file a segment's chunk is stored in
+     * @throws IllegalArgumentException If the segment is kept in the recipe
+     */
+    public Path chunkFile(Segment segment) {
+        if (segment.chunk() == null) {
+            throw new IllegalArgumentException("The segment is not a chunk");
+        }
+        return chunks.locate(segment.chunk());
+    }
+
+    /**
+     * Opens a stream of the rebuilt pack. Chunks are opened as they are
+     * reached.
+     */
+    public InputStream open() {
+        Iterator<Segment> it = segments.iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                Segment seg = it.next();
+                if (seg.chunk() == null) {
+                    return new ByteArrayInputStream(seg.data());
+                }
+                return new LazyChunkStream(chunkFile(seg));
+            }
+        });
+    }
+
+    /**
+     * Splits a zip into segments, storing the compressed data of each large
+     * enough entry as a chunk
+     * @param sink Stores chunks
+     * @param chunks Finds the file each chunk is stored in
+     */
+    public static PackRecipe split(Path file, ChunkSink sink,
+                                   ChunkLocator chunks) throws IOException {
+
+        try (FileChannel channel =
+                 FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long size = channel.size();
+            List<long[]> regions = findEntryData(channel, size);
+
+            Builder builder = new Builder(channel, sink, chunks);
+            long position = 0;
+            for (long[] region : regions) {
+                builder.add(position, region[0] - position);
+                builder.add(region[0], region[1]);
+                position = region[0] + region[1];
+            }
+            builder.add(position, size - position);
+            return builder.build();
+        }
+    }
+
+    /**
+     * Reads a recipe written by {@link #write(Path)}
+     * @param chunks Finds the file each chunk is stored in
+     */
+    public static PackRecipe read(Path file, ChunkLocator chunks)
+        throws IOException {
+        try (DataInputStream dis = new DataInputStream(
+                 new BufferedInputStream(Files.newInputStream(file)))) {
+
+            readHeader(dis, file);
+            int count = dis.readInt();
+            List<Segment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte kind = dis.readByte();
+                if (kind == INLINE) {
+                    byte[] data = new byte[dis.readInt()];
+                    dis.readFully(data);
+                    segments.add(new Segment(data.length, data, null));
+                } else if (kind == CHUNK) {
+                    byte[] hash = new byte[32];
+                    dis.readFully(hash);
+                    segments.add(new Segment(
+                        dis.readLong(), null,
+                        HexFormat.of().formatHex(hash)));
+                } else {
+                    throw new IOException("Invalid pack recipe " + file);
+                }
+            }
+            return new PackRecipe(segments, chunks);
+        }
+    }
+
+    /**
+     * Writes the recipe to a file
+     */
+    public void write(Path file) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(
+                 new BufferedOutputStream(
+                     Files.newOutputStream(file)))) {
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeLong(size);
+            dos.writeInt(segments.size());
+            for (Segment seg : segments) {
+                if (seg.chunk() == null) {
+                    dos.writeByte(INLINE);
+                    dos.writeInt(seg.data().length);
+                    dos.write(seg.data());
+                } else {
+                    dos.writeByte(CHUNK);
+                    dos.write(HexFormat.of().parseHex(seg.chunk()));
+                    dos.writeLong(seg.length());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads just the size of the pack a recipe rebuilds
+     */
+    public static long readSize(Path file) throws IOException {
+        try (DataInputStream dis =
+                 new DataInputStream(Files.newInputStream(file))) {
+            return readHeader(dis, file);
+        }
+    }
+
+    private static long readHeader(DataInputStream dis, Path file)
+        throws IOException {
+        if (dis.readInt() != MAGIC || dis.readUnsignedByte() != VERSION) {
+            throw new IOException("Invalid pack recipe " + file);
+        }
+        return dis.readLong();
+    }
+
+    /**
+     * Finds the compressed data of each entry through the central directory
+     * @return The offset and length of each entry's data, in order, or an
+     *     empty list if the file is not a zip which can be split
+     */
+    private static List<long[]> findEntryData(FileChannel channel, long size)
+        throws IOException {
+
+        if (size < 22) {
+            return List.of();
+        }
+
+        int tailLength = (int)Math.min(size, 22 + MAX_COMMENT);
+        ByteBuffer tail = read(channel, size - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY &&
+                i + 22 + Short.toUnsignedInt(tail.getShort(i + 20)) ==
+                    tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            return List.of();
+        }
+
+        int entries = Short.toUnsignedInt(tail.getShort(end + 10));
+        long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+        long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+        if (entries == 0xffff || directorySize == 0xffffffffL ||
+            directoryOffset == 0xffffffffL ||
+            directoryOffset + directorySize > size - tailLength + end ||
+            directorySize > Integer.MAX_VALUE) {
+            // Zip64, or not a zip at all
+            return List.of();
+        }
+
+        ByteBuffer directory =
+            read(channel, directoryOffset, (int)directorySize);
+        List<long[]> out = new ArrayList<>(entries);
+        int position = 0;
+        for (int i = 0; i < entries; i++) {
+            if (position + 46 > directorySize ||
+                directory.getInt(position) != CENTRAL_HEADER) {
+                return List.of();
+            }
+            long compressedSize =
+                Integer.toUnsignedLong(directory.getInt(position + 20));
+            int nameLength =
+                Short.toUnsignedInt(directory.getShort(position + 28));
+            int extraLength =
+                Short.toUnsignedInt(directory.getShort(position + 30));
+            int commentLength =
+                Short.toUnsignedInt(directory.getShort(position + 32));
+            long headerOffset =
+                Integer.toUnsignedLong(directory.getInt(position + 42));
+            if (compressedSize == 0xffffffffL || headerOffset == 0xffffffffL ||
+                headerOffset + 30 > directoryOffset) {
+                return List.of();
+            }
+
+            ByteBuffer header = read(channel, headerOffset, 30);
+            if (header.getInt(0) != LOCAL_HEADER) {
+                return List.of();
+            }
+            long dataOffset = headerOffset + 30 +
+                              Short.toUnsignedInt(header.getShort(26)) +
+                              Short.toUnsignedInt(header.getShort(28));
+            if (dataOffset + compressedSize > directoryOffset) {
+                return List.of();
+            }
+            out.add(new long[] {dataOffset, compressedSize});
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+        out.sort((a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 1; i < out.size(); i++) {
+            if (out.get(i)[0] < out.get(i - 1)[0] + out.get(i - 1)[1]) {
+                return List.of();
+            }
+        }
+        return out;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long offset,
+                                   int length) throws IOException {
+        ByteBuffer buf =
+            ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buf.flip();
+    }
+
+    /**
+     * Collects segments, merging neighbouring inline segments. Runs of inline
+     * segments which grow past {@link #MAX_INLINE_RUN} are stored as chunks
+     * instead, so packs of many small entries do not keep all of their data
+     * in the recipe.
+     */
+    private static class Builder {
+
+        private final FileChannel channel;
+        private final ChunkSink sink;
+        private final ChunkLocator chunks;
+        private final List<Segment> segments = new ArrayList<>();
+        private final ByteArrayOutputStream inline =
+            new ByteArrayOutputStream();
+        private long inlineOffset;
+
+        Builder(FileChannel channel, ChunkSink sink, ChunkLocator chunks) {
+            this.channel = channel;
+            this.sink = sink;
+            this.chunks = chunks;
+        }
+
+        void add(long offset, long length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            if (length < MIN_CHUNK_SIZE) {
+                if (inline.size() == 0) {
+                    inlineOffset = offset;
+                }
+                inline.write(read(channel, offset, (int)length).array());
+                if (inline.size() >= MAX_INLINE_RUN) {
+                    // Segments are added in file order, so the run is one
+                    // contiguous range of the pack
+                    long size = inline.size();
+                    inline.reset();
+                    segments.add(new Segment(
+                        size, null, sink.store(channel, inlineOffset, size)));
+                }
+                return;
+            }
+            flush();
+            segments.add(
+                new Segment(length, null, sink.store(channel, offset, length)));
+        }
+
+        PackRecipe build() {
+            flush();
+            return new PackRecipe(segments, chunks);
+        }
+
+        private void flush() {
+            if (inline.size() > 0) {
+                byte[] data = inline.toByteArray();
+                segments.add(new Segment(data.length, data, null));
+                inline.reset();
+            }
+        }
+    }
+
+    /**
+     * Opens a chunk when it is first read, so a recipe does not hold every
+     * chunk open at once
+     */
+    private static class LazyChunkStream extends InputStream {
+
+        private final Path file;
+        private InputStream in;
+
+        LazyChunkStream(Path file) { this.file = file; }
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return open().read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return open().skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (in == null) {
+                in = Files.newInputStream(file);
+            }
+            return in;
+        }
+    }
+
+    /**
+     * A part of a pack
+     * @param length The number of bytes in the part
+     * @param data The part's bytes, if they are kept in the recipe
+     * @param chunk The SHA-256 of the chunk holding the part, in hexadecimal,
+     *     if it is stored as a chunk
+     */
+    public record Segment(long length, @Nullable byte[] data,
+                          @Nullable String chunk) {}
+
+    /**
+     * Stores chunks while a pack is split
+     */
+    public interface ChunkSink {
+
+        /**
+         * Stores part of a file as a chunk, unless it is already stored
+         * @return The chunk's SHA-256, in hexadecimal
+         */
+        String store(FileChannel channel, long offset, long length)
+            throws IOException;
+    }
+
+    /**
+     * Finds the files chunks are stored in
+     */
+    public interface ChunkLocator {
+        Path locate(String chunk);
+    }
+}
@@ -0,0 +1,439 @@
+package org.wallentines.packserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks stored packs for corruption in the background by hashing them again
+ * and comparing the result to the hash they are stored under. Packs are read
+ * sequentially in large blocks on a low-priority thread, and reads are paced
+ * to stay under a set number of bytes per second, so a pass does not compete
+ * with downloads for the disk. Corrupt packs are moved to a quarantine
+ * directory rather than deleted, so they can be inspected. Only data this
+ * server holds is checked: packs kept in an object store are only checked
+ * while they are cached. Deduplicated packs are rebuilt from their chunks,
+ * and each chunk is checked against its own hash, whether or not the pack is
+ * also materialised.
+ */
+public class PackScrubber {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(PackScrubber.class);
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final PackManager packManager;
+    @Nullable private final PackCache packCache;
+    private final Path quarantineDir;
+    private final long bytesPerSecond;
+    private final long intervalMillis;
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private boolean requested;
+    private volatile boolean stopped;
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder checkedBytes = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+    private final LongAdder passes = new LongAdder();
+
+    private volatile Progress progress;
+    private volatile long lastPass;
+
+    /**
+     * Creates a scrubber. The scrubber does not run until it is started.
+     * @param packCache The cache to drop corrupt packs from, if any
+     * @param quarantineDir The directory to move corrupt packs to
+     * @param bytesPerSecond The number of bytes to read per second
+     * @param intervalSeconds The number of seconds between the start of each
+     *     pass
+     */
+    public PackScrubber(PackManager packManager, @Nullable PackCache packCache,
+                        Path quarantineDir, long bytesPerSecond,
+                        long intervalSeconds) {
+        this.packManager = packManager;
+        this.packCache = packCache;
+        this.quarantineDir = quarantineDir;
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.intervalMillis = Math.max(1, intervalSeconds) * 1000L;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (thread != null) {
+                return;
+            }
+            thread = new Thread(this::loop, "Pack Scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the scrubber, abandoning a running pass
+     */
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts a full pass as soon as possible
+     * @return False if a pass is already running
+     */
+    public boolean runNow() {
+        synchronized (lock) {
+            if (progress != null) {
+                return false;
+            }
+            requested = true;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * The running pass, or null if the scrubber is waiting for the next one
+     */
+    @Nullable
+    public Progress progress() { return progress; }
+
+    /**
+     * When the last pass finished, or 0 if none has finished yet
+     */
+    public long lastPass() { return lastPass; }
+
+    /**
+     * The number of packs checked
+     */
+    public long checked() { return checked.sum(); }
+
+    /**
+     * The number of bytes read while checking packs
+     */
+    public long checkedBytes() { return checkedBytes.sum(); }
+
+    /**
+     * The number of corrupt packs, recipes and chunks quarantined
+     */
+    public long corrupt() { return corrupt.sum(); }
+
+    /**
+     * The number of passes finished
+     */
+    public long passes() { return passes.sum(); }
+
+    /**
+     * Runs a full pass on the calling thread
+     * @return The finished pass
+     * @throws IllegalStateException If a pass is already running
+     */
+    public Progress scrub() throws IOException {
+        Progress current = begin();
+        if (current == null) {
+            throw new IllegalStateException("A scrub is already running");
+        }
+        run(current);
+        return current;
+    }
+
+    private void loop() {
+        long next = System.currentTimeMillis() + intervalMillis;
+        while (true) {
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                while (!stopped && !requested && now < next) {
+                    try {
+                        lock.wait(next - now);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    now = System.currentTimeMillis();
+                }
+                if (stopped) {
+                    return;
+                }
+                requested = false;
+            }
+
+            next = System.currentTimeMillis() + intervalMillis;
+            Progress current = begin();
+            if (current == null) {
+                continue;
+            }
+            try {
+                run(current);
+            } catch (Throwable th) {
+                log.error("Unable to scrub stored packs!", th);
+            }
+        }
+    }
+
+    @Nullable
+    private Progress begin() {
+        synchronized (lock) {
+            if (progress != null) {
+                return null;
+            }
+            progress = new Progress();
+            return progress;
+        }
+    }
+
+    private void run(Progress current) throws IOException {
+
+        try {
+            List<PackStorage.StoredPack> stored = packManager.storage().list();
+            current.total = stored.size();
+            log.info("Scrubbing {} stored packs at up to {} bytes/s",
+                     stored.size(), bytesPerSecond);
+
+            for (PackStorage.StoredPack pack : stored) {
+                if (stopped) {
+                    log.info("Scrub stopped after {}", current);
+                    return;
+                }
+                try {
+                    check(pack.hash(), current);
+                } catch (NoSuchFileException ex) {
+                    // Deleted since the storage was listed
+                } catch (IOException ex) {
+                    log.warn("Unable to scrub pack {}", pack.hash(), ex);
+                }
+                current.packs++;
+            }
+
+            lastPass = System.currentTimeMillis();
+            passes.increment();
+            log.info("Scrub finished in {} s: {}",
+                     (lastPass - current.started) / 1000, current);
+        } finally {
+            progress = null;
+        }
+    }
+
+    private void check(String hash, Progress current) throws IOException {
+
+        PackStorage storage = packManager.storage();
+        Path path = storage.localPath(hash);
+        boolean held = path != null && Files.isRegularFile(path);
+        boolean good = true;
+
+        if (held) {
+            MessageDigest digest = getDigest("SHA-1");
+            try (InputStream is = Files.newInputStream(path)) {
+                if (!read(is, current, digest)) {
+                    return;
+                }
+            }
+            String actual = HexFormat.of().formatHex(digest.digest());
+            if (!actual.equalsIgnoreCase(hash)) {
+                good = false;
+                quarantine(hash, "its contents hash to " + actual, current);
+            }
+        }
+
+        // Materialised packs are also kept as chunks, which are checked
+        // separately
+        if (storage instanceof DedupPackStorage dedup &&
+            !checkRecipe(dedup, hash, held && good, current)) {
+            return;
+        }
+        checked.increment();
+    }
+
+    /**
+     * Rebuilds a pack from its recipe, checking each chunk against its hash
+     * along the way. Corrupt chunks are quarantined. A recipe which cannot
+     * rebuild the pack is quarantined, and the pack is split again if it has
+     * an intact materialised copy.
+     * @param intact Whether the pack has a materialised copy which matches
+     *     its hash
+     * @return False if the scrubber was stopped
+     */
+    private boolean checkRecipe(DedupPackStorage dedup, String hash,
+                                boolean intact, Progress current)
+        throws IOException {
+
+        PackRecipe recipe = dedup.storedRecipe(hash);
+        if (recipe == null) {
+            return true;
+        }
+
+        MessageDigest digest = getDigest("SHA-1");
+        List<String> corruptChunks = new ArrayList<>();
+        boolean missing = false;
+        for (PackRecipe.Segment seg : recipe.segments()) {
+            if (seg.chunk() == null) {
+                digest.update(seg.data());
+                continue;
+            }
+            MessageDigest chunkDigest = getDigest("SHA-256");
+            try (InputStream is = Files.newInputStream(recipe.chunkFile(seg))) {
+                if (!read(is, current, digest, chunkDigest)) {
+                    return false;
+                }
+            } catch (NoSuchFileException ex) {
+                missing = true;
+                continue;
+            }
+            String actual = HexFormat.of().formatHex(chunkDigest.digest());
+            if (!actual.equalsIgnoreCase(seg.chunk())) {
+                corruptChunks.add(seg.chunk());
+            }
+        }
+
+        for (String chunk : corruptChunks) {
+            Path target = quarantineDir.resolve("chunk-" + chunk + "-" +
+                                                System.currentTimeMillis());
+            try {
+                if (dedup.quarantineChunk(chunk, target)) {
+                    corrupt.increment();
+                    current.corrupt++;
+                    log.error("Chunk {} of pack {} is corrupt, so it was " +
+                              "moved to {}",
+                              chunk, hash, target);
+                }
+            } catch (IOException ex) {
+                log.error("Chunk {} of pack {} is corrupt, and it could not " +
+                          "be quarantined!",
+                          chunk, hash, ex);
+            }
+        }
+
+        String actual = HexFormat.of().formatHex(digest.digest());
+        if (corruptChunks.isEmpty() && !missing &&
+            actual.equalsIgnoreCase(hash)) {
+            return true;
+        }
+
+        String reason = missing ? "its recipe refers to missing chunks"
+                                : "its recipe rebuilds a pack which hashes " +
+                                      "to " + actual;
+        if (!intact) {
+            quarantine(hash, reason, current);
+            return true;
+        }
+
+        // The materialised copy is intact, so the recipe and chunks can be
+        // written again from it
+        Path target =
+            quarantineDir.resolve(hash + "-" + System.currentTimeMillis());
+        if (dedup.quarantineRecipe(hash, target)) {
+            corrupt.increment();
+            current.corrupt++;
+            log.error("Pack {} is corrupt ({}), so its recipe was moved to {}",
+                      hash, reason, target);
+        }
+        if (dedup.repair(hash)) {
+            log.info("Split pack {} into chunks again", hash);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a stream to its end, pacing reads to the rate limit
+     * @return False if the scrubber was stopped before the end
+     */
+    private boolean read(InputStream is, Progress current,
+                         MessageDigest... digests) throws IOException {
+        byte[] buffer = new byte[BLOCK_SIZE];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            for (MessageDigest digest : digests) {
+                digest.update(buffer, 0, read);
+            }
+            checkedBytes.add(read);
+            current.bytes += read;
+            throttle(current);
+            if (stopped) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sleeps until the bytes read in this pass are within the rate limit
+     */
+    private void throttle(Progress current) {
+        long due = current.started + current.bytes * 1000L / bytesPerSecond;
+        long wait = due - System.currentTimeMillis();
+        if (wait <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            try {
+                // Stopping the scrubber wakes it
+                lock.wait(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+    }
+
+    private void quarantine(String hash, String reason, Progress current) {
+        Path target =
+            quarantineDir.resolve(hash + "-" + System.currentTimeMillis());
+        try {
+            if (!packManager.quarantine(hash, target)) {
+                return;
+            }
+        } catch (IOException ex) {
+            log.error("Pack {} is corrupt ({}), and it could not be " +
+                      "quarantined!",
+                      hash, reason, ex);
+            return;
+        }
+        corrupt.increment();
+        current.corrupt++;
+        if (packCache != null) {
+            packCache.invalidate(hash);
+        }
+        log.error("Pack {} is corrupt ({}), so it was moved to {}", hash,
+                  reason, target);
+    }
+
+    private static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * The state of a running pass
+     */
+    public static class Progress {
+
+        private final long started = System.currentTimeMillis();
+        private volatile int total;
+        private volatile int packs;
+        private volatile long bytes;
+        private volatile int corrupt;
+
+        @Override
+        public String toString() {
+            return "checked " + packs + " of " + total + " packs (" + bytes +
+                " bytes), " + corrupt + " corrupt";
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.wallentines.packserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Where packs are kept. Packs are always served from local files, so that
+ * they can be sent without copying and opened as zips, but a storage may
+ * keep the packs themselves elsewhere and hold local copies in a cache.
+ */
+public interface PackStorage {
+
+    /**
+     * Lists every stored pack
+     */
+    List<StoredPack> list() throws IOException;
+
+    /**
+     * Looks up a stored pack
+     * @return The pack, or null if it is not stored
+     */
+    @Nullable
+    StoredPack stat(String hash) throws IOException;
+
+    /**
+     * Opens a stored pack for reading
+     * @throws java.nio.file.NoSuchFileException If the pack is not stored
+     */
+    InputStream read(String hash) throws IOException;
+
+    /**
+     * Opens part of a stored pack for reading
+     * @param offset The index of the first byte to read
+     * @param length The number of bytes to read
+     * @throws java.nio.file.NoSuchFileException If the pack is not stored
+     */
+    InputStream read(String hash, long offset, long length) throws IOException;
+
+    /**
+     * Stores a pack from a stream
+     * @param length The number of bytes in the stream
+     */
+    void write(String hash, InputStream data, long length) throws IOException;
+
+    /**
+     * Stores a pack which has been fully received into the pack directory.
+     * The pending file may be moved rather than copied.
+     */
+    void store(String hash, PushHandler.PendingPack pack) throws IOException;
+
+    /**
+     * Deletes a stored pack, if it exists
+     */
+    void delete(String hash) throws IOException;
+
+    /**
+     * Moves this server's copy of a corrupt pack out of the storage. Storages
+     * which also keep the pack elsewhere still hold it afterwards.
+     * @param target Where to move the pack's data, for inspection
+     * @return True if there was a copy to move
+     */
+    boolean quarantine(String hash, Path target) throws IOException;
+
+    /**
+     * Gets a local file with the contents of a pack. Storages which keep
+     * packs elsewhere fetch the pack into their cache first.
+     * @return The file, or null if the pack is not stored
+     */
+    @Nullable
+    Path localFile(String hash) throws IOException;
+
+    /**
+     * Gets the path a pack is, or would be, kept at locally, without
+     * fetching it
+     * @return The path, or null if the hash is invalid
+     */
+    @Nullable
+    Path localPath(String hash);
+
+    /**
+     * Gets the recipe to rebuild a pack from while it is sent, for storages
+     * which split packs into chunks. Each call counts as a request for the
+     * pack.
+     * @return The recipe, or null if the pack should be sent from its local
+     *     file
+     */
+    @Nullable
+    default PackRecipe recipe(String hash) throws IOException { return null; }
+
+    /**
+     * Stops any background work
+     */
+    default void close() {}
+
+    /**
+     * Creates the storage a server is configured to use
+     * @param root The pack directory
+     */
+    static PackStorage create(ServerConfig config, Path root) {
+        LocalPackStorage local = new LocalPackStorage(root);
+        return switch (config.storage()) {
+            case "local" -> local;
+            case "s3" -> {
+                if (config.s3Endpoint() == null || config.s3Bucket() == null ||
+                    config.s3AccessKey() == null ||
+                    config.s3SecretKey() == null) {
+                    throw new IllegalArgumentException(
+                        "The S3 endpoint, bucket and keys must be set");
+                }
+                yield new S3PackStorage(
+                    URI.create(config.s3Endpoint()), config.s3Region(),
+                    config.s3Bucket(), config.s3Prefix(),
+                    config.s3AccessKey(), config.s3SecretKey(), local,
+                    config.s3CacheSize());
+            }
+            case "dedup" -> new DedupPackStorage(
+                root.resolveSibling("dedup"), local, config.dedupHotSize(),
+                config.dedupMaterializeAfter());
+            default -> throw new IllegalArgumentException(
+                "Unknown pack storage " + config.storage());
+        };
+    }
+
+    /**
+     * A stored pack
+     * @param hash The pack's hash
+     * @param size The pack's size, in bytes
+     * @param modified When the pack was stored, in milliseconds since the
+     *     epoch
+     */
+    record StoredPack(String hash, long size, long modified) {}
+}
@@ -1,131 +1,418 @@
 package org.wallentines.packserver;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.*;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.multipart.*;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
-import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wallentines.jwt.JWT;
 import org.wallentines.jwt.JWTReader;
 import org.wallentines.mdcfg.serializer.SerializeResult;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestBody;
+import org.wallentines.packserver.netty.RequestHandler;
 
-public class PushHandler {
+/**
+ * Accepts pack uploads. The multipart body is decoded as it arrives, and the
+ * pack is hashed while it is written to a temporary file in the pack
+ * directory, which is renamed into place once the upload completes. Packs
+ * are stored once: an upload of a pack which already exists is discarded,
+ * and concurrent uploads of the same pack wait for the first.
+ */
+public class PushHandler implements RequestHandler {
 
     private static final Logger log =
         LoggerFactory.getLogger(PushHandler.class);
+
+    private static final String BEARER = "Bearer ";
+
     private final WebServer server;
 
+    // Pushes which are storing a pack, by hash
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlight =
+        new ConcurrentHashMap<>();
+
     public PushHandler(WebServer server) { this.server = server; }
 
-    // POST /push
-    // token: <JWT>
+    // POST /push[?hash=<HASH>&tag=<TAG>]
+    // Authorization: Bearer <JWT>
+    // token: <JWT> (if there is no Authorization header)
     // data: <Zip Data>
-    // tag: <Tag>
-    public FullHttpResponse handle(FullHttpRequest req,
-                                   ChannelHandlerContext ctx) {
-
-        if (req.method() != HttpMethod.POST) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
-        }
-
-        HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(req);
-        String token = null;
-        ByteBuf fileData = null;
-        String tag = null;
-
-        while (decoder.hasNext() &&
-               (token == null || fileData == null || tag == null)) {
-            InterfaceHttpData data = decoder.next();
-            if (data.getName().equals("data")) {
-                if (!(data instanceof FileUpload up)) {
-                    return new DefaultFullHttpResponse(
-                        req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
-                }
-                fileData = up.content();
-            } else if (data.getName().equals("token")) {
-                ByteBuf tokenData = ((HttpData)data).content();
-                token = tokenData.toString(StandardCharsets.US_ASCII);
-            } else if (data.getName().equals("tag")) {
-                ByteBuf tagData = ((HttpData)data).content();
-                tag = tagData.toString(StandardCharsets.US_ASCII);
+    // tag: <Tag> (if it is not in the query)
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
+
+        // A token in the header is checked before the client is told to send
+        // the body
+        String bearer = bearerToken(request);
+        boolean authorized = false;
+        if (bearer != null) {
+            if (!verify(bearer)) {
+                return request.respond(HttpResponseStatus.FORBIDDEN);
             }
+            authorized = true;
         }
 
-        if (token == null || fileData == null || tag == null) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+        String expected = request.param("hash");
+        String tag = request.param("tag");
+        if (expected != null) {
+            if (!Util.isHexadecimal(expected)) {
+                return request.respond(HttpResponseStatus.BAD_REQUEST);
+            }
+            expected = expected.toLowerCase(Locale.ROOT);
+        }
+        if (tag != null && !Util.isValidTag(tag)) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         }
 
+        // A client which says what it is sending up front does not need to
+        // send a pack the server already has, or is already receiving
+        if (authorized && expected != null && tag != null) {
+            if (server.packManager().has(expected)) {
+                return tagged(request, tag, expected);
+            }
+            CompletableFuture<Void> leader = inFlight.get(expected);
+            if (leader != null) {
+                String hash = expected;
+                return leader
+                    .handle((v, error) -> error == null
+                                              ? tagged(request, tag, hash)
+                                              : receive(request, true, hash,
+                                                        tag))
+                    .thenCompose(Function.identity());
+            }
+        }
+
+        return receive(request, authorized, expected, tag);
+    }
+
+    /**
+     * Reads the pack from the request body
+     * @param expected The hash the client says the pack has, if any
+     * @param tag The tag given in the query, if any
+     */
+    private CompletionStage<ChannelFuture> receive(Request request,
+                                                   boolean authorized,
+                                                   String expected,
+                                                   String tag) {
+        PackUpload upload;
+        try {
+            upload = new PackUpload(request.body().head(), authorized,
+                                    expected, tag);
+        } catch (HttpPostRequestDecoder.ErrorDataDecoderException ex) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+
+        return request.body()
+            .subscribe(upload)
+            .handle((v, error) -> upload.complete(request, expected, error))
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Moves an uploaded pack into place, unless it is already there. Only
+     * one upload of each pack is moved at a time, and any others wait for it.
+     * @param origin What is storing the pack, recorded in the catalog
+     * @param claim A claim this upload already holds on the hash, if any
+     * @return A future which completes once the pack is stored
+     */
+    CompletableFuture<Void> store(String hash, PendingPack data,
+                                  String origin,
+                                  CompletableFuture<Void> claim) {
+
+        if (claim == null) {
+            claim = new CompletableFuture<>();
+            CompletableFuture<Void> other = inFlight.putIfAbsent(hash, claim);
+            if (other != null) {
+                // Fall back to this upload if the other one fails
+                return other.exceptionallyCompose(
+                    ex -> store(hash, data, origin, null));
+            }
+        }
+
+        Throwable error = null;
+        try {
+            server.packManager().store(hash, data, origin);
+        } catch (IOException ex) {
+            error = ex;
+        }
+
+        // Waiters which fall back to their own upload must not find this
+        // claim again
+        inFlight.remove(hash, claim);
+        if (error == null) {
+            claim.complete(null);
+        } else {
+            claim.completeExceptionally(error);
+        }
+        return claim;
+    }
+
+    /**
+     * Publishes a stored pack, tags it if a tag is given, and responds with
+     * the hash it was published as
+     */
+    CompletionStage<ChannelFuture> tagged(Request request, String tag,
+                                          String hash) {
+        // A pack which was already stored may be about to be collected
+        server.packManager().refresh(hash);
+        hash = publish(hash);
+        server.packManager().refresh(hash);
+        if (tag != null) {
+            server.tagManager().pushTag(tag, hash);
+        }
+        server.packCache().preload(hash);
+
+        ByteBuf out = request.alloc().buffer();
+        out.writeBytes(hash.getBytes(StandardCharsets.US_ASCII));
+        return request.respond(out);
+    }
+
+    /**
+     * Runs a stored pack through the optimiser, if it is enabled. A pack
+     * which cannot be optimised is published as it is. Packs which were
+     * optimised before resolve to the same result without being rewritten.
+     * @return The hash to publish the pack as
+     */
+    String publish(String hash) {
+        PackOptimizer optimizer = server.packOptimizer();
+        if (optimizer == null) {
+            return hash;
+        }
+        try {
+            return optimizer.optimize(hash);
+        } catch (IOException ex) {
+            log.warn("Unable to optimise pack {}!", hash, ex);
+            return hash;
+        }
+    }
+
+    /**
+     * Gets the token from a request's Authorization header
+     * @return The bearer token, or null if there is none
+     */
+    static String bearerToken(Request request) {
+        String header = request.headers().get(HttpHeaderNames.AUTHORIZATION);
+        if (header == null || !header.startsWith(BEARER)) {
+            return null;
+        }
+        return header.substring(BEARER.length());
+    }
+
+    /**
+     * Determines whether a token allows packs to be pushed
+     */
+    boolean verify(String token) {
         SerializeResult<JWT> jwt =
             JWTReader.readAny(token, server.keySupplier());
         if (!jwt.isComplete() ||
             !server.jwtVerifier().verify(jwt.getOrNull())) {
             log.info("Attempt to push pack with invalid JWT {}", token);
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+    private static HttpResponseStatus statusFor(Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (error instanceof ForbiddenException) {
+            return HttpResponseStatus.FORBIDDEN;
+        }
+        if (error instanceof TooLongFrameException) {
+            return HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+        }
+        if (error instanceof HttpPostRequestDecoder.ErrorDataDecoderException) {
+            return HttpResponseStatus.BAD_REQUEST;
+        }
+        if (error instanceof RejectedExecutionException) {
+            return HttpResponseStatus.SERVICE_UNAVAILABLE;
         }
+        log.error("Unable to receive a pack upload!", error);
+        return HttpResponseStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Receives the multipart body of a single push. Chunks are passed in one
+     * at a time, but may arrive on different threads, and the body may fail
+     * while a chunk is being decoded, so access is synchronized.
+     */
+    private class PackUpload implements RequestBody.Sink {
+
+        private final UploadDataFactory factory;
+        private final HttpPostRequestDecoder decoder;
+        private final String expected;
+        private boolean authorized;
+        private String tag;
+        private HashingFileUpload data;
+        private String claimedHash;
+        private CompletableFuture<Void> claim;
 
-        if (!Util.isValidTag(tag)) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+        PackUpload(HttpRequest head, boolean authorized, String expected,
+                   String tag) {
+            this.factory =
+                new UploadDataFactory(server.packManager().root());
+            this.decoder = new HttpPostRequestDecoder(factory, head);
+            this.authorized = authorized;
+            this.expected = expected;
+            this.tag = tag;
+            if (authorized) {
+                claim();
+            }
         }
 
-        ByteBuf sha1Buf = fileData.asReadOnly();
-        byte[] copyBuffer = new byte[4096];
-        byte[] sha1;
-        try (InputStream is = new ByteBufInputStream(sha1Buf)) {
+        /**
+         * Lets later pushes of the expected pack wait for this one rather
+         * than sending it again. Only called once the client is authorized,
+         * so an unauthorized client cannot hold other pushes up.
+         */
+        private void claim() {
+            if (expected == null || claim != null) {
+                return;
+            }
+            CompletableFuture<Void> pending = new CompletableFuture<>();
+            if (inFlight.putIfAbsent(expected, pending) == null) {
+                claimedHash = expected;
+                claim = pending;
+            }
+        }
 
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            int bytesRead;
-            while ((bytesRead = is.read(copyBuffer)) > 0) {
-                digest.update(copyBuffer, 0, bytesRead);
+        @Override
+        public synchronized void onContent(HttpContent content)
+            throws IOException {
+
+            decoder.offer(content);
+            try {
+                while (decoder.hasNext()) {
+                    accept(decoder.next());
+                }
+            } catch (HttpPostRequestDecoder.EndOfDataDecoderException ex) {
+                // All parts have been read
             }
-            sha1 = digest.digest();
 
-        } catch (IOException | GeneralSecurityException ex) {
-            return new DefaultFullHttpResponse(req.protocolVersion(),
-                                               HttpResponseStatus.BAD_REQUEST);
+            // Nothing is written for an unauthorized client
+            if (!authorized &&
+                decoder.currentPartialHttpData() instanceof FileUpload) {
+                throw new ForbiddenException();
+            }
         }
 
-        String hashHex = HexFormat.of().formatHex(sha1);
-        Path packPath = server.packManager().get(hashHex);
-        if (packPath == null) {
-            return new DefaultFullHttpResponse(
-                req.protocolVersion(),
-                HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        private void accept(InterfaceHttpData part) throws IOException {
+            switch (part.getName()) {
+            case "token" -> {
+                if (!authorized) {
+                    if (!(part instanceof Attribute attr) ||
+                        !verify(attr.getValue())) {
+                        throw new ForbiddenException();
+                    }
+                    authorized = true;
+                    claim();
+                }
+            }
+            case "tag" -> {
+                if (tag == null && part instanceof Attribute attr) {
+                    tag = attr.getValue();
+                }
+            }
+            case "data" -> {
+                if (!authorized) {
+                    throw new ForbiddenException();
+                }
+                if (!(part instanceof HashingFileUpload up)) {
+                    throw new HttpPostRequestDecoder.ErrorDataDecoderException(
+                        "Pack data must be sent as a file");
+                }
+                data = up;
+            }
+            default -> {}
+            }
         }
 
-        try (OutputStream os = Files.newOutputStream(packPath);
-             InputStream is = new ByteBufInputStream(fileData)) {
+        /**
+         * Stores the pack once the whole body is received, and responds to
+         * the client
+         * @param expected The hash the client says the pack has, if any
+         * @param error The error the body failed with, if any
+         */
+        synchronized CompletionStage<ChannelFuture>
+        complete(Request request, String expected, Throwable error) {
 
-            int bytesRead;
-            while ((bytesRead = is.read(copyBuffer)) > 0) {
-                os.write(copyBuffer, 0, bytesRead);
+            HttpResponseStatus status = null;
+            if (error != null) {
+                status = statusFor(error);
+            } else if (data == null || tag == null || !authorized ||
+                       !Util.isValidTag(tag)) {
+                status = HttpResponseStatus.BAD_REQUEST;
+            } else if (expected != null && !expected.equals(data.hash())) {
+                log.info("Pushed pack {} does not match its expected hash {}",
+                         data.hash(), expected);
+                status = HttpResponseStatus.BAD_REQUEST;
             }
-        } catch (IOException ex) {
-            return new DefaultFullHttpResponse(
-                req.protocolVersion(),
-                HttpResponseStatus.INTERNAL_SERVER_ERROR);
+
+            if (status != null) {
+                release();
+                return request.respond(status);
+            }
+
+            String hash = data.hash();
+            return store(hash, data, "push",
+                         hash.equals(claimedHash) ? claim : null)
+                .handle((v, ex) -> {
+                    release();
+                    if (ex != null) {
+                        log.error("Unable to store pack {}!", hash, ex);
+                        return request.respond(
+                            HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                    }
+                    return tagged(request, tag, hash);
+                })
+                .thenCompose(Function.identity());
         }
 
-        server.tagManager().pushTag(tag, hashHex);
+        /**
+         * Deletes any temporary file, and lets pushes waiting on this one
+         * know if it did not store its pack
+         */
+        private synchronized void release() {
+            decoder.destroy();
+            factory.cleanUp();
+            if (claim != null && !claim.isDone()) {
+                inFlight.remove(claimedHash, claim);
+                claim.completeExceptionally(
+                    new IOException("The upload did not complete"));
+            }
+        }
+    }
 
-        ByteBuf out = ctx.alloc().buffer();
-        out.writeBytes(hashHex.getBytes(StandardCharsets.US_ASCII));
+    /**
+     * A fully received pack, waiting to be moved into the pack directory
+     */
+    interface PendingPack {
+
+        /**
+         * Atomically renames the pack, replacing any existing file with the
+         * same content
+         */
+        void moveTo(Path target) throws IOException;
+    }
 
-        return new DefaultFullHttpResponse(req.protocolVersion(),
-                                           HttpResponseStatus.OK, out);
+    private static class ForbiddenException extends IOException {
+        ForbiddenException() { super("The upload is not authorized"); }
     }
 }
@@ -0,0 +1,519 @@
+package org.wallentines.packserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Keeps packs in an S3-compatible object store, such as AWS S3 or MinIO.
+ * Requests use path-style addressing and are signed with AWS Signature
+ * Version 4. Packs are served from a local read-through cache, which drops
+ * the least recently used packs once it holds more than a set number of
+ * bytes. Packs larger than one part are sent as a multipart upload, so only
+ * one part is held in memory at a time.
+ */
+public class S3PackStorage implements PackStorage {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(S3PackStorage.class);
+
+    /**
+     * The size of each part of a multipart upload. Packs up to this size are
+     * sent in a single request.
+     */
+    public static final int PART_SIZE = 8 * 1024 * 1024;
+
+    private static final String EMPTY_SHA256 =
+        "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String SIGNED_HEADERS =
+        "host;x-amz-content-sha256;x-amz-date";
+    private static final DateTimeFormatter AMZ_DATE =
+        DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private final URI endpoint;
+    private final String region;
+    private final String bucket;
+    private final String prefix;
+    private final String accessKey;
+    private final String secretKey;
+    private final LocalPackCache cache;
+    private final HttpClient client;
+
+    /**
+     * Creates an object store backed storage
+     * @param endpoint The URL of the object store, such as
+     *     https://s3.us-east-1.amazonaws.com
+     * @param region The region to sign requests for
+     * @param bucket The bucket to keep packs in
+     * @param prefix A prefix for the keys of packs in the bucket
+     * @param accessKey The access key ID to sign requests with
+     * @param secretKey The secret access key to sign requests with
+     * @param cache The local storage to cache packs in
+     * @param cacheCapacity The number of bytes to hold in the cache, or 0 for
+     *     no limit
+     */
+    public S3PackStorage(URI endpoint, String region, String bucket,
+                         String prefix, String accessKey, String secretKey,
+                         LocalPackStorage cache, long cacheCapacity) {
+        this.endpoint = endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.cache = new LocalPackCache(cache, cacheCapacity, hash -> true);
+        this.client = HttpClient.newBuilder()
+                          .version(HttpClient.Version.HTTP_1_1)
+                          .connectTimeout(Duration.ofSeconds(10))
+                          .build();
+    }
+
+    public LocalPackStorage cache() { return cache.storage(); }
+
+    @Override
+    public List<StoredPack> list() throws IOException {
+
+        List<StoredPack> out = new ArrayList<>();
+        String token = null;
+        do {
+            Map<String, String> params = new TreeMap<>();
+            params.put("list-type", "2");
+            params.put("prefix", prefix);
+            if (token != null) {
+                params.put("continuation-token", token);
+            }
+
+            HttpResponse<byte[]> res = send(
+                signed("GET", null, params, EMPTY_SHA256).GET().build());
+            checkStatus(res, "list packs");
+            Document doc = parseXml(res.body());
+
+            NodeList contents = doc.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element ent = (Element)contents.item(i);
+                String key = getText(ent, "Key");
+                if (key == null || !key.startsWith(prefix)) {
+                    continue;
+                }
+                String hash = key.substring(prefix.length());
+                if (!Util.isHexadecimal(hash)) {
+                    continue;
+                }
+                long size;
+                try {
+                    size = Long.parseLong(getText(ent, "Size"));
+                } catch (NumberFormatException ex) {
+                    // Some stores leave the size out, so it is looked up
+                    // separately
+                    StoredPack pack = stat(hash);
+                    if (pack != null) {
+                        out.add(pack);
+                    }
+                    continue;
+                }
+                String modified = getText(ent, "LastModified");
+                out.add(new StoredPack(
+                    hash, size,
+                    modified == null ? 0
+                                     : Instant.parse(modified).toEpochMilli()));
+            }
+
+            token = "true".equals(getText(doc.getDocumentElement(),
+                                          "IsTruncated"))
+                        ? getText(doc.getDocumentElement(),
+                                  "NextContinuationToken")
+                        : null;
+        } while (token != null);
+
+        return out;
+    }
+
+    @Override
+    public StoredPack stat(String hash) throws IOException {
+
+        HttpResponse<byte[]> res = send(
+            signed("HEAD", key(hash), Map.of(), EMPTY_SHA256)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build());
+        if (res.statusCode() == 404) {
+            return null;
+        }
+        checkStatus(res, "look up pack " + hash);
+
+        long size =
+            res.headers().firstValueAsLong("Content-Length").orElse(0);
+        long modified = res.headers()
+                            .firstValue("Last-Modified")
+                            .map(v
+                                 -> ZonedDateTime
+                                        .parse(v, DateTimeFormatter
+                                                      .RFC_1123_DATE_TIME)
+                                        .toInstant()
+                                        .toEpochMilli())
+                            .orElse(0L);
+        return new StoredPack(hash, size, modified);
+    }
+
+    @Override
+    public InputStream read(String hash) throws IOException {
+        return get(hash, null);
+    }
+
+    @Override
+    public InputStream read(String hash, long offset, long length)
+        throws IOException {
+        if (length <= 0) {
+            return InputStream.nullInputStream();
+        }
+        return get(hash, "bytes=" + offset + "-" + (offset + length - 1));
+    }
+
+    @Override
+    public void write(String hash, InputStream data, long length)
+        throws IOException {
+        if (length <= PART_SIZE) {
+            putObject(hash, data.readNBytes((int)length));
+        } else {
+            putMultipart(hash, data);
+        }
+    }
+
+    @Override
+    public void store(String hash, PushHandler.PendingPack pack)
+        throws IOException {
+
+        // The pack is moved into the cache, which is where it is served from
+        // anyway, and uploaded from there
+        cache.storage().store(hash, pack);
+        Path path = cache.storage().localPath(hash);
+        long size = Files.size(path);
+        try (InputStream is = Files.newInputStream(path)) {
+            write(hash, is, size);
+        } catch (IOException ex) {
+            cache.storage().delete(hash);
+            throw ex;
+        }
+        cache.added(hash, size);
+    }
+
+    @Override
+    public void delete(String hash) throws IOException {
+        HttpResponse<byte[]> res = send(
+            signed("DELETE", key(hash), Map.of(), EMPTY_SHA256)
+                .DELETE()
+                .build());
+        if (res.statusCode() != 404) {
+            checkStatus(res, "delete pack " + hash);
+        }
+        cache.remove(hash);
+    }
+
+    @Override
+    public boolean quarantine(String hash, Path target) throws IOException {
+        // The object store keeps its own checksums, so only the cached copy
+        // can be corrupt
+        return cache.quarantine(hash, target);
+    }
+
+    @Override
+    public Path localFile(String hash) throws IOException {
+        return cache.get(hash, this::read);
+    }
+
+    @Override
+    public Path localPath(String hash) {
+        return cache.storage().localPath(hash);
+    }
+
+    @Override
+    public void close() {
+        cache.storage().close();
+        client.close();
+    }
+
+    private InputStream get(String hash, @Nullable String range)
+        throws IOException {
+
+        HttpRequest.Builder builder =
+            signed("GET", key(hash), Map.of(), EMPTY_SHA256).GET();
+        if (range != null) {
+            builder.header("Range", range);
+        }
+
+        HttpResponse<InputStream> res;
+        try {
+            res = client.send(builder.build(),
+                              HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading pack " + hash);
+        }
+
+        if (res.statusCode() == 404) {
+            res.body().close();
+            throw new NoSuchFileException(hash);
+        }
+        if (res.statusCode() / 100 != 2) {
+            res.body().close();
+            throw new IOException("Unable to read pack " + hash + " (" +
+                                  res.statusCode() + ")");
+        }
+        return res.body();
+    }
+
+    private void putObject(String hash, byte[] data) throws IOException {
+        HttpResponse<byte[]> res = send(
+            signed("PUT", key(hash), Map.of(), UNSIGNED_PAYLOAD)
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(data))
+                .build());
+        checkStatus(res, "store pack " + hash);
+    }
+
+    private void putMultipart(String hash, InputStream data)
+        throws IOException {
+
+        String key = key(hash);
+        HttpResponse<byte[]> res =
+            send(signed("POST", key, Map.of("uploads", ""), EMPTY_SHA256)
+                     .POST(HttpRequest.BodyPublishers.noBody())
+                     .build());
+        checkStatus(res, "start upload of pack " + hash);
+        String uploadId =
+            getText(parseXml(res.body()).getDocumentElement(), "UploadId");
+        if (uploadId == null) {
+            throw new IOException("The object store did not return an " +
+                                  "upload ID");
+        }
+
+        try {
+            StringBuilder complete =
+                new StringBuilder("<CompleteMultipartUpload>");
+            byte[] part;
+            int number = 1;
+            while ((part = data.readNBytes(PART_SIZE)).length > 0) {
+                res = send(
+                    signed("PUT", key,
+                           Map.of("partNumber", Integer.toString(number),
+                                  "uploadId", uploadId),
+                           UNSIGNED_PAYLOAD)
+                        .PUT(HttpRequest.BodyPublishers.ofByteArray(part))
+                        .build());
+                checkStatus(res, "upload part " + number + " of " + hash);
+                String etag = res.headers().firstValue("ETag").orElseThrow(
+                    () -> new IOException("The object store did not return "
+                                          + "an ETag"));
+                complete.append("<Part><PartNumber>")
+                    .append(number)
+                    .append("</PartNumber><ETag>")
+                    .append(etag)
+                    .append("</ETag></Part>");
+                number++;
+            }
+            complete.append("</CompleteMultipartUpload>");
+
+            byte[] body = complete.toString().getBytes(StandardCharsets.UTF_8);
+            res = send(signed("POST", key, Map.of("uploadId", uploadId),
+                              HexFormat.of().formatHex(sha256(body)))
+                           .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                           .build());
+            checkStatus(res, "complete upload of pack " + hash);
+
+            // Errors can also be reported after a 200 status
+            if (parseXml(res.body()).getDocumentElement().getTagName().equals(
+                    "Error")) {
+                throw new IOException("Unable to complete upload of pack " +
+                                      hash);
+            }
+
+        } catch (IOException | RuntimeException ex) {
+            try {
+                send(signed("DELETE", key, Map.of("uploadId", uploadId),
+                            EMPTY_SHA256)
+                         .DELETE()
+                         .build());
+            } catch (IOException ex2) {
+                log.warn("Unable to abort upload of pack {}", hash, ex2);
+            }
+            throw ex;
+        }
+    }
+
+    private String key(String hash) { return prefix + hash; }
+
+    private HttpResponse<byte[]> send(HttpRequest req) throws IOException {
+        try {
+            return client.send(req, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while contacting the object " +
+                                  "store");
+        }
+    }
+
+    private static void checkStatus(HttpResponse<byte[]> res, String action)
+        throws IOException {
+        if (res.statusCode() / 100 != 2) {
+            throw new IOException("Unable to " + action + " (" +
+                                  res.statusCode() + ")");
+        }
+    }
+
+    /**
+     * Creates a request signed with AWS Signature Version 4
+     * @param key The object key, or null for a request on the bucket
+     * @param params The query parameters
+     * @param payloadHash The SHA-256 of the body in hexadecimal, or
+     *     UNSIGNED-PAYLOAD
+     */
+    private HttpRequest.Builder signed(String method, @Nullable String key,
+                                       Map<String, String> params,
+                                       String payloadHash) {
+
+        String path = "/" + encode(bucket, false);
+        if (key != null) {
+            path += "/" + encode(key, true);
+        }
+
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> ent : new TreeMap<>(params).entrySet()) {
+            if (!query.isEmpty()) {
+                query.append('&');
+            }
+            query.append(encode(ent.getKey(), false))
+                .append('=')
+                .append(encode(ent.getValue(), false));
+        }
+
+        String host = endpoint.getHost();
+        int port = endpoint.getPort();
+        boolean defaultPort = port == -1 ||
+                              (port == 80 && endpoint.getScheme().equals(
+                                                 "http")) ||
+                              (port == 443 && endpoint.getScheme().equals(
+                                                  "https"));
+        if (!defaultPort) {
+            host += ":" + port;
+        }
+
+        String amzDate = AMZ_DATE.format(Instant.now());
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+
+        String canonicalRequest = method + "\n" + path + "\n" + query + "\n" +
+                                  "host:" + host + "\n" +
+                                  "x-amz-content-sha256:" + payloadHash +
+                                  "\n" +
+                                  "x-amz-date:" + amzDate + "\n\n" +
+                                  SIGNED_HEADERS + "\n" + payloadHash;
+        String stringToSign =
+            "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" +
+            HexFormat.of().formatHex(
+                sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] signingKey =
+            hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature =
+            HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+        String base = endpoint.toString();
+        if (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        URI uri = URI.create(base + path +
+                             (query.isEmpty() ? "" : "?" + query));
+
+        return HttpRequest.newBuilder(uri)
+            .timeout(Duration.ofMinutes(5))
+            .header("x-amz-date", amzDate)
+            .header("x-amz-content-sha256", payloadHash)
+            .header("Authorization",
+                    "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope +
+                        ", SignedHeaders=" + SIGNED_HEADERS +
+                        ", Signature=" + signature);
+    }
+
+    /**
+     * URI encodes a string as described for Signature Version 4
+     * @param keepSlashes Whether to leave slashes in an object key alone
+     */
+    private static String encode(String value, boolean keepSlashes) {
+        String out = URLEncoder.encode(value, StandardCharsets.UTF_8)
+                         .replace("+", "%20")
+                         .replace("*", "%2A")
+                         .replace("%7E", "~");
+        return keepSlashes ? out.replace("%2F", "/") : out;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Document parseXml(byte[] data) throws IOException {
+        try {
+            DocumentBuilderFactory factory =
+                DocumentBuilderFactory.newInstance();
+            factory.setFeature(
+                "http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(
+                new ByteArrayInputStream(data));
+        } catch (Exception ex) {
+            throw new IOException("Invalid response from the object store",
+                                  ex);
+        }
+    }
+
+    @Nullable
+    private static String getText(Element parent, String name) {
+        NodeList nodes = parent.getElementsByTagName(name);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+}
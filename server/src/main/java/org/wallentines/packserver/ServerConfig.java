@@ -0,0 +1,367 @@
+package org.wallentines.packserver;
+
+import java.util.Map;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Server settings, read from PACK_SERVER_* environment variables
+ */
+public class ServerConfig {
+
+    private final Map<String, String> env;
+
+    public ServerConfig(Map<String, String> env) { this.env = env; }
+
+    public static ServerConfig fromEnvironment() {
+        return new ServerConfig(System.getenv());
+    }
+
+    public int port() { return getInt("PACK_SERVER_PORT", 8080); }
+
+    public String baseUrl() {
+        String baseUrl = env.get("PACK_SERVER_BASE_URL");
+        if (baseUrl == null) {
+            return "/";
+        }
+        if (!baseUrl.startsWith("/")) {
+            baseUrl = "/" + baseUrl;
+        }
+        return baseUrl;
+    }
+
+    /**
+     * The number of seconds an idle keep-alive connection is held open
+     */
+    public int idleTimeout() { return getInt("PACK_SERVER_IDLE_TIMEOUT", 60); }
+
+    /**
+     * The number of requests served on one connection before it is closed,
+     * or 0 for no limit
+     */
+    public int maxRequestsPerConnection() {
+        return getInt("PACK_SERVER_MAX_REQUESTS", 1000);
+    }
+
+    /**
+     * The number of bytes of pack data to hold in memory, or 0 to disable the
+     * pack cache. Set in megabytes.
+     */
+    public long cacheSize() {
+        return getInt("PACK_SERVER_CACHE_SIZE", 0) * 1024L * 1024L;
+    }
+
+    /**
+     * Whether clients may use HTTP/2, either through h2c or through ALPN
+     */
+    public boolean http2() { return getBoolean("PACK_SERVER_HTTP2", true); }
+
+    /**
+     * The path to a PEM certificate chain. TLS is enabled when this and the
+     * key are both set.
+     */
+    @Nullable
+    public String tlsCertificate() {
+        return env.get("PACK_SERVER_TLS_CERT");
+    }
+
+    /**
+     * The path to a PKCS#8 PEM private key
+     */
+    @Nullable
+    public String tlsKey() {
+        return env.get("PACK_SERVER_TLS_KEY");
+    }
+
+    /**
+     * Whether to accept HTTP/3 connections over QUIC
+     */
+    public boolean http3() { return getBoolean("PACK_SERVER_HTTP3", false); }
+
+    /**
+     * The UDP port to accept HTTP/3 connections on
+     */
+    public int http3Port() { return getInt("PACK_SERVER_HTTP3_PORT", port()); }
+
+    /**
+     * The total number of bytes per second to send, or 0 for no limit
+     */
+    public long globalBandwidth() {
+        return getLong("PACK_SERVER_BANDWIDTH_GLOBAL", 0);
+    }
+
+    /**
+     * The number of bytes per second to send on each connection, or 0 for no
+     * limit
+     */
+    public long connectionBandwidth() {
+        return getLong("PACK_SERVER_BANDWIDTH_CONNECTION", 0);
+    }
+
+    /**
+     * The number of pack downloads which may run at once, or 0 for no limit
+     */
+    public int maxDownloads() {
+        return getInt("PACK_SERVER_MAX_DOWNLOADS", 256);
+    }
+
+    /**
+     * The number of pack downloads which may wait for a free slot before
+     * further downloads are rejected
+     */
+    public int downloadQueueSize() {
+        return getInt("PACK_SERVER_DOWNLOAD_QUEUE", 1024);
+    }
+
+    /**
+     * The number of milliseconds a pack download may wait for a free slot
+     */
+    public long downloadQueueTimeout() {
+        return getLong("PACK_SERVER_DOWNLOAD_QUEUE_TIMEOUT", 30000);
+    }
+
+    /**
+     * The number of uploads, such as pushes and upload session chunks, which
+     * may run at once, or 0 for no limit. Uploads hold their slot while the
+     * body is received, so they are limited apart from metadata requests.
+     */
+    public int maxUploads() {
+        return getInt("PACK_SERVER_MAX_UPLOADS", 64);
+    }
+
+    /**
+     * The number of uploads which may wait for a free slot before further
+     * uploads are rejected
+     */
+    public int uploadQueueSize() {
+        return getInt("PACK_SERVER_UPLOAD_QUEUE", 256);
+    }
+
+    /**
+     * The number of milliseconds an upload may wait for a free slot
+     */
+    public long uploadQueueTimeout() {
+        return getLong("PACK_SERVER_UPLOAD_QUEUE_TIMEOUT", 30000);
+    }
+
+    /**
+     * The number of metadata requests, such as tag lookups and upload
+     * commits, which may run at once, or 0 for no limit
+     */
+    public int maxMetadataRequests() {
+        return getInt("PACK_SERVER_MAX_METADATA", 1024);
+    }
+
+    /**
+     * The number of metadata requests which may wait for a free slot before
+     * further requests are rejected
+     */
+    public int metadataQueueSize() {
+        return getInt("PACK_SERVER_METADATA_QUEUE", 4096);
+    }
+
+    /**
+     * The number of milliseconds a metadata request may wait for a free slot
+     */
+    public long metadataQueueTimeout() {
+        return getLong("PACK_SERVER_METADATA_QUEUE_TIMEOUT", 5000);
+    }
+
+    /**
+     * Where request handlers run: inline on the event loop, on a pool of
+     * platform threads, or on a virtual thread per request
+     */
+    public ExecutionMode executionMode() {
+        String value = env.get("PACK_SERVER_EXECUTION_MODE");
+        if (value == null) {
+            return ExecutionMode.POOL;
+        }
+        return ExecutionMode.parse(value);
+    }
+
+    /**
+     * The number of threads which run filesystem work for handlers. These
+     * are separate from the event loops, so a slow disk only delays requests
+     * which need it.
+     */
+    public int ioThreads() { return getInt("PACK_SERVER_IO_THREADS", 16); }
+
+    /**
+     * The number of handler tasks which may wait for an I/O thread before
+     * further requests are rejected
+     */
+    public int ioQueueSize() {
+        return getInt("PACK_SERVER_IO_QUEUE", 1024);
+    }
+
+    /**
+     * The number of virtual threads which may handle requests at once, when
+     * using the virtual execution mode
+     */
+    public int maxVirtualThreads() {
+        return getInt("PACK_SERVER_MAX_VIRTUAL_THREADS", 10000);
+    }
+
+    /**
+     * The number of resumable upload sessions which may be open at once
+     */
+    public int maxUploadSessions() {
+        return getInt("PACK_SERVER_MAX_UPLOAD_SESSIONS", 64);
+    }
+
+    /**
+     * How long an upload session may go without activity before it is
+     * abandoned and its partial file deleted, in seconds
+     */
+    public long uploadSessionTimeout() {
+        return getLong("PACK_SERVER_UPLOAD_SESSION_TIMEOUT", 3600);
+    }
+
+    /**
+     * Whether pushed packs are rewritten to make them smaller. Tags point to
+     * the rewritten pack, which has a different hash.
+     */
+    public boolean optimizePacks() {
+        return getBoolean("PACK_SERVER_OPTIMIZE", false);
+    }
+
+    /**
+     * Where packs are kept: "local" for the pack directory, "dedup" for
+     * chunks of zip entries shared between packs, or "s3" for an
+     * S3-compatible object store
+     */
+    public String storage() {
+        return env.getOrDefault("PACK_SERVER_STORAGE", "local");
+    }
+
+    /**
+     * The URL of the object store, such as https://s3.us-east-1.amazonaws.com
+     * or http://localhost:9000
+     */
+    @Nullable
+    public String s3Endpoint() {
+        return env.get("PACK_SERVER_S3_ENDPOINT");
+    }
+
+    /**
+     * The region to sign object store requests for
+     */
+    public String s3Region() {
+        return env.getOrDefault("PACK_SERVER_S3_REGION", "us-east-1");
+    }
+
+    /**
+     * The bucket to keep packs in
+     */
+    @Nullable
+    public String s3Bucket() {
+        return env.get("PACK_SERVER_S3_BUCKET");
+    }
+
+    /**
+     * A prefix for the keys of packs in the bucket
+     */
+    public String s3Prefix() {
+        return env.getOrDefault("PACK_SERVER_S3_PREFIX", "");
+    }
+
+    @Nullable
+    public String s3AccessKey() {
+        return env.get("PACK_SERVER_S3_ACCESS_KEY");
+    }
+
+    @Nullable
+    public String s3SecretKey() {
+        return env.get("PACK_SERVER_S3_SECRET_KEY");
+    }
+
+    /**
+     * The number of bytes of packs to keep in the local cache when using an
+     * object store, or 0 for no limit. Set in megabytes.
+     */
+    public long s3CacheSize() {
+        return getLong("PACK_SERVER_S3_CACHE_SIZE", 1024) * 1024L * 1024L;
+    }
+
+    /**
+     * The number of bytes of whole packs the deduplicating storage keeps
+     * materialised, or 0 for no limit. Set in megabytes.
+     */
+    public long dedupHotSize() {
+        return getLong("PACK_SERVER_DEDUP_HOT_SIZE", 1024) * 1024L * 1024L;
+    }
+
+    /**
+     * The number of requests after which the deduplicating storage
+     * materialises a pack rather than rebuilding it for each download
+     */
+    public int dedupMaterializeAfter() {
+        return getInt("PACK_SERVER_DEDUP_MATERIALIZE_AFTER", 3);
+    }
+
+    /**
+     * How long after a pack was stored or last downloaded the collector keeps
+     * it, even if no tag points to it, in seconds
+     */
+    public long gcGracePeriod() {
+        return getLong("PACK_SERVER_GC_GRACE", 3600);
+    }
+
+    /**
+     * The number of packs the collector deletes at once
+     */
+    public int gcThreads() { return getInt("PACK_SERVER_GC_THREADS", 4); }
+
+    /**
+     * Rules for removing old versions of tags, or null to keep every version.
+     * See {@link TagRetention} for the format.
+     */
+    @Nullable
+    public String retentionRules() { return env.get("PACK_SERVER_RETENTION"); }
+
+    /**
+     * How often tag retention rules are applied, in seconds
+     */
+    public long retentionInterval() {
+        return getLong("PACK_SERVER_RETENTION_INTERVAL", 3600);
+    }
+
+    /**
+     * The number of bytes per second the scrubber reads while checking
+     * stored packs, or 0 to disable scrubbing. Set in megabytes. Scrubbing is
+     * disabled by default.
+     */
+    public long scrubRate() {
+        return getLong("PACK_SERVER_SCRUB_RATE", 0) * 1024L * 1024L;
+    }
+
+    /**
+     * How often the scrubber starts a pass over the stored packs, in seconds
+     */
+    public long scrubInterval() {
+        return getLong("PACK_SERVER_SCRUB_INTERVAL", 86400);
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        String value = env.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = env.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = env.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(value);
+    }
+}
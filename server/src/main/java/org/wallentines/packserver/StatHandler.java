@@ -0,0 +1,57 @@
+package org.wallentines.packserver;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.*;
+import java.util.concurrent.CompletionStage;
+import org.wallentines.mdcfg.ConfigSection;
+import org.wallentines.mdcfg.codec.JSONCodec;
+import org.wallentines.mdcfg.serializer.ConfigContext;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestHandler;
+
+/**
+ * Reports the catalog entry of a stored pack, for tooling
+ */
+public class StatHandler implements RequestHandler {
+
+    private final WebServer server;
+
+    public StatHandler(WebServer server) { this.server = server; }
+
+    // GET /stat?hash=<HASH>
+    // -> {"hash":...,"size":...,"created":...,"last_served":...,
+    //     "content_type":...,"origin":...}
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
+
+        String hash = request.param("hash");
+        if (hash == null || !Util.isHexadecimal(hash)) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+
+        PackCatalog.PackInfo info = server.packManager().stat(hash);
+        if (info == null) {
+            return request.respond(HttpResponseStatus.NOT_FOUND);
+        }
+
+        String json = JSONCodec.minified().encodeToString(
+            ConfigContext.INSTANCE, new ConfigSection()
+                                        .with("hash", info.hash())
+                                        .with("size", info.size())
+                                        .with("created", info.created())
+                                        .with("last_served", info.lastServed())
+                                        .with("content_type",
+                                              info.contentType())
+                                        .with("origin", info.origin()));
+
+        FullHttpResponse res = new DefaultFullHttpResponse(
+            request.version(), HttpResponseStatus.OK,
+            ByteBufUtil.writeUtf8(request.alloc(), json));
+        res.headers()
+            .set(HttpHeaderNames.CONTENT_TYPE,
+                 HttpHeaderValues.APPLICATION_JSON)
+            .set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        return request.respond(res);
+    }
+}
@@ -1,21 +1,23 @@
 package org.wallentines.packserver;
 
 import io.netty.buffer.ByteBufInputStream;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.*;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import org.wallentines.mdcfg.ConfigObject;
 import org.wallentines.mdcfg.ConfigSection;
 import org.wallentines.mdcfg.codec.DecodeException;
 import org.wallentines.mdcfg.codec.JSONCodec;
 import org.wallentines.jwt.JWT;
 import org.wallentines.jwt.JWTReader;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestHandler;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.CompletionStage;
 
-public class TagHandler {
+public class TagHandler implements RequestHandler {
 
     private final WebServer server;
 
@@ -27,24 +29,21 @@ public class TagHandler {
     // token: <JWT>
     // hash: <hash>
     // tag: <tag>
-    public FullHttpResponse handle(FullHttpRequest req, ChannelHandlerContext ctx) {
-
-        if(req.method() != HttpMethod.POST) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
-        }
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
 
         String token;
         String hash;
         String tag;
-        try(InputStream is = new ByteBufInputStream(req.content())) {
+        try(InputStream is = new ByteBufInputStream(request.content())) {
             ConfigObject obj = JSONCodec.loadConfig(is);
             if(!obj.isSection()) {
-                return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+                return request.respond(HttpResponseStatus.BAD_REQUEST);
             }
 
             ConfigSection sec = obj.asSection();
             if(!sec.has("token") || !sec.has("hash")) {
-                return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+                return request.respond(HttpResponseStatus.BAD_REQUEST);
             }
 
             token = sec.getOrDefault("token", (String) null);
@@ -52,31 +51,35 @@ public class TagHandler {
             tag = sec.getOrDefault("tag", (String) null);
 
         } catch (IOException ex) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            return request.respond(HttpResponseStatus.INTERNAL_SERVER_ERROR);
         } catch (DecodeException ex) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         }
 
         if(hash == null || token == null || tag == null) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         }
 
         Path packFile = server.packManager().get(hash);
         if(packFile == null) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.BAD_REQUEST);
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
         }
 
         JWT jwt = JWTReader.readAny(token, server.keySupplier()).getOrNull();
         if(jwt == null || !server.jwtVerifier().verify(jwt)) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.FORBIDDEN);
+            return request.respond(HttpResponseStatus.FORBIDDEN);
         }
 
-        if(!Files.exists(packFile)) {
-            return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.NOT_FOUND);
+        if(!server.packManager().has(hash)) {
+            return request.respond(HttpResponseStatus.NOT_FOUND);
         }
 
+        // Clients tag the hash they pushed, which may have been optimised
+        hash = server.pushHandler().publish(hash);
+        server.packManager().refresh(hash);
         server.tagManager().pushTag(tag, hash);
-        return new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.OK);
+        server.packCache().preload(hash);
+        return request.respond(HttpResponseStatus.OK);
     }
 
 
@@ -2,22 +2,68 @@ package org.wallentines.packserver;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 import org.jetbrains.annotations.Nullable;
 import org.wallentines.mdcfg.Tuples;
 
+/**
+ * Maps tags to the hashes of the packs they point to. Tags are kept as files
+ * in the tag directory, and lookups are cached per name. Cached lookups do
+ * not lock. A tag's file is only written, deleted or read into the cache
+ * while its cache entry is locked, so the cache always agrees with the tag
+ * directory. Lookups of versions which do not exist are also cached, for a
+ * short time so that tags written by other servers sharing the directory are
+ * still found. Lookups of names which do not exist are not cached.
+ */
 public class TagManager implements FileSupplier {
 
+    // The number of versions which do not exist to remember
+    private static final int MAX_MISSING = 65536;
+
+    // How long a version which does not exist is remembered by default, in
+    // milliseconds
+    private static final long MISSING_TTL = 10000;
+
+    // How many times a tag is written while its name is being removed before
+    // giving up
+    private static final int MAX_WRITE_ATTEMPTS = 8;
+
     private final Path root;
-    private final Map<String, Map<String, String>> cache = new HashMap<>();
+    private final long missingTtl;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>
+        cache = new ConcurrentHashMap<>();
+    private final AtomicInteger missing = new AtomicInteger();
+    private final AtomicLong pushes = new AtomicLong();
 
-    public TagManager(Path root) { this.root = root; }
+    public TagManager(Path root) { this(root, MISSING_TTL); }
+
+    /**
+     * Creates a tag manager
+     * @param missingTtl How long a lookup of a version which does not exist
+     *     is cached, in milliseconds
+     */
+    public TagManager(Path root, long missingTtl) {
+        this.root = root;
+        this.missingTtl = missingTtl;
+    }
 
     @Override
     public Path get(String tag) {
@@ -38,32 +84,48 @@ public class TagManager implements FileSupplier {
 
         Path dir = root.resolve(parsed.p1);
         Path file = dir.resolve(parsed.p2);
-
-        try {
-            Files.createDirectories(dir);
-            try (OutputStream os = Files.newOutputStream(file)) {
-                os.write(hash.getBytes());
-            }
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
-        cache.computeIfAbsent(parsed.p1, k -> new HashMap<>())
-            .put(parsed.p2, hash);
+        versions(parsed.p1).compute(parsed.p2, (k, old) -> {
+            write(dir, file, hash);
+            return replace(old, hash);
+        });
+        pushes.incrementAndGet();
     }
 
+    /**
+     * The number of tags pushed through this manager, for noticing that tags
+     * may have changed
+     */
+    public long pushes() { return pushes.get(); }
+
     public void removeAll(String name) {
-        cache.remove(name);
+        if (!Util.isValidTag(name)) {
+            return;
+        }
+        Set<String> versions = new HashSet<>(versions(name).keySet());
+        for (Version version : getVersions(name)) {
+            versions.add(version.version());
+        }
+        for (String version : versions) {
+            removeTag(name + ":" + version);
+        }
         try {
             Files.deleteIfExists(root.resolve(name));
+        } catch (DirectoryNotEmptyException ex) {
+            // A version was pushed while the name was being removed
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
     public Collection<String> getAllHashes(String name) {
-        if (!cache.containsKey(name))
+        Map<String, Entry> versions = cache.get(name);
+        if (versions == null)
             return null;
-        return cache.get(name).values();
+        return versions.values()
+            .stream()
+            .map(Entry::hash)
+            .filter(Objects::nonNull)
+            .toList();
     }
 
     public void removeTag(String tag) {
@@ -71,37 +133,94 @@ public class TagManager implements FileSupplier {
         if (parsed == null)
             return;
 
-        Map<String, String> repo = cache.get(parsed.p1);
-        if (repo != null) {
-            repo.remove(parsed.p2);
-        }
+        Path file = root.resolve(parsed.p1).resolve(parsed.p2);
+        versions(parsed.p1).compute(parsed.p2, (k, old) -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return replace(old, null);
+        });
+    }
 
-        try {
-            Files.deleteIfExists(root.resolve(parsed.p1).resolve(parsed.p2));
+    /**
+     * Lists every tag, in the form name:version
+     */
+    public Stream<String> getAllTags() {
+        return getNames().stream().flatMap(
+            name -> getVersions(name).stream().map(Version::tag));
+    }
+
+    /**
+     * Lists the names which have at least one version directory
+     */
+    public List<String> getNames() {
+        try (Stream<Path> names = Files.list(root)) {
+            return names.filter(Files::isDirectory)
+                .map(p -> p.getFileName().toString())
+                .toList();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
-    public Stream<String> getAllTags() {
-        try {
-            return Files.list(root)
-                .map(Path::toString)
-                .filter(Util::isValidTag);
+    /**
+     * Lists the versions of a name, most recently pushed first
+     */
+    public List<Version> getVersions(String name) {
+        List<Version> out = new ArrayList<>();
+        try (Stream<Path> versions = Files.list(root.resolve(name))) {
+            for (Path file : (Iterable<Path>)versions::iterator) {
+                String version = file.getFileName().toString();
+                if (!Util.isValidTag(name + ":" + version)) {
+                    continue;
+                }
+                try {
+                    BasicFileAttributes attrs =
+                        Files.readAttributes(file, BasicFileAttributes.class);
+                    long pushed = attrs.lastModifiedTime().toMillis();
+                    if (attrs.isRegularFile()) {
+                        out.add(new Version(name, version, pushed));
+                    }
+                } catch (NoSuchFileException ex) {
+                    // Removed since the directory was listed
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            return List.of();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+        out.sort(Comparator.comparingLong(Version::pushed).reversed());
+        return out;
     }
 
+    /**
+     * Lists the hashes every tag points to, read from the tag directory
+     * rather than the cache
+     */
     public Stream<String> getAllTaggedHashes() {
-        return getAllTags().map(this::getHash);
+        return getAllTags().map(this::readHash).filter(Objects::nonNull);
     }
 
-    public void clearCache() { this.cache.clear(); }
+    public void clearCache() {
+        cache.clear();
+        missing.set(0);
+    }
 
     public TagManager copy() {
-        TagManager out = new TagManager(root);
-        out.cache.putAll(cache);
+        TagManager out = new TagManager(root, missingTtl);
+        cache.forEach((name, versions) -> {
+            ConcurrentHashMap<String, Entry> copied =
+                new ConcurrentHashMap<>(versions);
+            out.cache.put(name, copied);
+            copied.forEach((version, entry) -> {
+                if (entry.hash() == null) {
+                    out.missing.incrementAndGet();
+                }
+            });
+        });
         return out;
     }
 
@@ -109,24 +228,127 @@ public class TagManager implements FileSupplier {
     public String getHash(String tag) {
 
         Tuples.T2<String, String> parsed = Util.parseTag(tag);
-        Map<String, String> repo =
-            cache.computeIfAbsent(parsed.p1, k -> new HashMap<>());
+        if (parsed == null) {
+            return null;
+        }
 
-        return repo.computeIfAbsent(tag, k -> {
-            Path tagEntry = get(tag);
-            if (tagEntry == null || !Files.isRegularFile(tagEntry)) {
+        long now = System.currentTimeMillis();
+        Map<String, Entry> versions = cache.get(parsed.p1);
+        if (versions == null) {
+            // Only names which exist are cached, so looking up arbitrary
+            // names does not fill the cache
+            if (!Files.isDirectory(root.resolve(parsed.p1))) {
                 return null;
             }
+        } else {
+            Entry entry = versions.get(parsed.p2);
+            if (entry != null && entry.valid(now)) {
+                return entry.hash();
+            }
+        }
 
-            try (InputStream is = Files.newInputStream(tagEntry)) {
-                String bytes = new String(is.readAllBytes());
-                if (!Util.isHexadecimal(bytes)) {
-                    return null;
-                }
-                return bytes;
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
+        Entry entry = versions(parsed.p1).compute(parsed.p2, (k, old) -> {
+            if (old != null && old.valid(now)) {
+                return old;
             }
+            return replace(old, readHash(tag));
         });
+        return entry == null ? null : entry.hash();
+    }
+
+    /**
+     * A version of a tag
+     * @param pushed When the version was last pushed, in milliseconds since
+     *     the epoch
+     */
+    public record Version(String name, String version, long pushed) {
+        public String tag() { return name + ":" + version; }
+    }
+
+    private ConcurrentHashMap<String, Entry> versions(String name) {
+        return cache.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Gets the entry to cache for a tag in place of its current entry
+     * @param hash The tag's hash, or null if it does not exist
+     * @return The entry, or null if too many missing versions are cached
+     */
+    @Nullable
+    private Entry replace(@Nullable Entry old, @Nullable String hash) {
+        if (old != null && old.hash() == null) {
+            missing.decrementAndGet();
+        }
+        if (hash != null) {
+            return new Entry(hash, Long.MAX_VALUE);
+        }
+        if (missing.incrementAndGet() > MAX_MISSING) {
+            missing.decrementAndGet();
+            return null;
+        }
+        return new Entry(null, System.currentTimeMillis() + missingTtl);
+    }
+
+    /**
+     * A cached lookup
+     * @param hash The tag's hash, or null if it does not exist
+     * @param expires When the lookup should be made again
+     */
+    private record Entry(@Nullable String hash, long expires) {
+        boolean valid(long now) { return now < expires; }
+    }
+
+    /**
+     * Writes a tag's file, replacing it at once so that the file is never
+     * seen partly written
+     */
+    private void write(Path dir, Path file, String hash) {
+        try {
+            Files.createDirectories(root);
+            Path tmp = Files.createTempFile(root, "tag-", ".tmp");
+            try {
+                Files.write(tmp, hash.getBytes());
+                for (int attempt = 1;; attempt++) {
+                    try {
+                        Files.createDirectories(dir);
+                        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+                                   StandardCopyOption.REPLACE_EXISTING);
+                        break;
+                    } catch (NoSuchFileException |
+                             FileAlreadyExistsException ex) {
+                        // The name was removed while its directory was being
+                        // created
+                        if (attempt == MAX_WRITE_ATTEMPTS) {
+                            throw ex;
+                        }
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Nullable
+    private String readHash(String tag) {
+        Path tagEntry = get(tag);
+        if (tagEntry == null || !Files.isRegularFile(tagEntry)) {
+            return null;
+        }
+
+        try (InputStream is = Files.newInputStream(tagEntry)) {
+            String bytes = new String(is.readAllBytes());
+            if (!Util.isHexadecimal(bytes)) {
+                return null;
+            }
+            return bytes;
+        } catch (NoSuchFileException ex) {
+            // Removed since it was found
+            return null;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 }
@@ -0,0 +1,208 @@
+package org.wallentines.packserver;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wallentines.packserver.netty.ChannelType;
+
+/**
+ * Removes old versions of tags according to per-name rules, then has the
+ * collector delete the packs which are no longer tagged. Rules are written
+ * as a semicolon-separated list of name:option=value,... entries, where the
+ * name * applies to every name without its own rule. For example:
+ * <pre>
+ * ci-build:keep=20,maxAge=30d;*:keep=100
+ * </pre>
+ * The "keep" option keeps only the most recently pushed versions, and the
+ * "maxAge" option drops versions which have not been pushed for a time given
+ * in seconds, or with an s, m, h or d suffix. The latest version of a name is
+ * never removed.
+ */
+public class TagRetention {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(TagRetention.class);
+
+    private static final String LATEST = "latest";
+    private static final String DEFAULT_RULE = "*";
+
+    private final TagManager tagManager;
+    private final PackCollector collector;
+    private final Map<String, Rule> rules;
+    private final long intervalSeconds;
+    private final HashedWheelTimer timer;
+    private volatile Timeout next;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a retention task. The task does not run until it is started.
+     * @param rules The rules, in the format described above
+     * @param intervalSeconds The number of seconds between runs
+     * @throws IllegalArgumentException If the rules are invalid
+     */
+    public TagRetention(TagManager tagManager, PackCollector collector,
+                        String rules, long intervalSeconds) {
+        this.tagManager = tagManager;
+        this.collector = collector;
+        this.rules = parseRules(rules);
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+        this.timer = new HashedWheelTimer(
+            ChannelType.createThreadFactory("Tag Retention"), 1,
+            TimeUnit.SECONDS);
+    }
+
+    public void start() { schedule(); }
+
+    public void stop() {
+        stopped = true;
+        Timeout timeout = next;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        timer.stop();
+    }
+
+    /**
+     * Removes expired tags, and starts a collection if any were removed
+     * @return The number of tags removed
+     */
+    public int run() {
+
+        long start = System.currentTimeMillis();
+        int names = 0;
+        int checked = 0;
+        int removed = 0;
+
+        for (String name : tagManager.getNames()) {
+            Rule rule = getRule(name);
+            if (rule == null) {
+                continue;
+            }
+            names++;
+
+            int kept = 0;
+            for (TagManager.Version version : tagManager.getVersions(name)) {
+                checked++;
+                if (version.version().equals(LATEST)) {
+                    continue;
+                }
+                if (rule.expired(kept, version.pushed(), start)) {
+                    tagManager.removeTag(version.tag());
+                    removed++;
+                } else {
+                    kept++;
+                }
+            }
+        }
+
+        log.info("Retention removed {} of {} tags across {} names in {} ms",
+                 removed, checked, names, System.currentTimeMillis() - start);
+
+        if (removed > 0 && collector.start(false) == null) {
+            log.info("A collection is already running, so packs will be " +
+                     "reclaimed by the next one");
+        }
+        return removed;
+    }
+
+    private void schedule() {
+        next = timer.newTimeout(timeout -> {
+            try {
+                run();
+            } catch (Throwable th) {
+                log.error("Unable to apply tag retention rules!", th);
+            }
+            if (!stopped) {
+                schedule();
+            }
+        }, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Nullable
+    private Rule getRule(String name) {
+        Rule rule = rules.get(name);
+        return rule == null ? rules.get(DEFAULT_RULE) : rule;
+    }
+
+    private static Map<String, Rule> parseRules(String spec) {
+
+        Map<String, Rule> out = new HashMap<>();
+        for (String entry : spec.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            int colon = entry.indexOf(':');
+            if (colon == -1) {
+                throw new IllegalArgumentException("Expected a name in " +
+                                                   "retention rule " + entry);
+            }
+            String name = entry.substring(0, colon);
+            if (!name.equals(DEFAULT_RULE) && !Util.isValidTag(name)) {
+                throw new IllegalArgumentException("Invalid tag name " + name);
+            }
+
+            int keep = 0;
+            long maxAge = 0;
+            for (String option : entry.substring(colon + 1).split(",")) {
+                String[] parts = option.trim().split("=", 2);
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException(
+                        "Invalid retention option " + option);
+                }
+                switch (parts[0]) {
+                case "keep" -> keep = Integer.parseInt(parts[1]);
+                case "maxAge" -> maxAge = parseDuration(parts[1]);
+                default -> throw new IllegalArgumentException(
+                    "Unknown retention option " + parts[0]);
+                }
+            }
+            out.put(name, new Rule(keep, maxAge));
+        }
+        return out;
+    }
+
+    /**
+     * Parses a number of seconds, minutes, hours or days
+     * @return The duration in milliseconds
+     */
+    private static long parseDuration(String value) {
+        long unit = switch (value.charAt(value.length() - 1)) {
+            case 's' -> 1000L;
+            case 'm' -> 60 * 1000L;
+            case 'h' -> 60 * 60 * 1000L;
+            case 'd' -> 24 * 60 * 60 * 1000L;
+            default -> 0;
+        };
+        if (unit == 0) {
+            return Long.parseLong(value) * 1000L;
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) * unit;
+    }
+
+    /**
+     * A retention rule for one name
+     * @param keep The number of versions to keep, or 0 for no limit
+     * @param maxAge How long a version may go without being pushed, in
+     *     milliseconds, or 0 for no limit
+     */
+    public record Rule(int keep, long maxAge) {
+
+        /**
+         * Determines whether a version should be removed
+         * @param newer The number of newer versions being kept
+         * @param pushed When the version was last pushed
+         * @param now The current time
+         */
+        boolean expired(int newer, long pushed, long now) {
+            return (keep > 0 && newer >= keep) ||
+                (maxAge > 0 && pushed < now - maxAge);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.wallentines.packserver;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the parts of a multipart upload. Form fields are kept in memory, up
+ * to a small limit, and file parts are hashed as they are written to
+ * temporary files in the pack directory.
+ */
+class UploadDataFactory extends DefaultHttpDataFactory {
+
+    private static final long MAX_FIELD_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final List<HashingFileUpload> uploads = new ArrayList<>();
+
+    UploadDataFactory(Path directory) {
+        super(false);
+        this.directory = directory;
+        setMaxLimit(MAX_FIELD_SIZE);
+    }
+
+    @Override
+    public FileUpload createFileUpload(HttpRequest request, String name,
+                                       String filename, String contentType,
+                                       String contentTransferEncoding,
+                                       Charset charset, long size) {
+        HashingFileUpload upload = new HashingFileUpload(
+            name, filename, contentType, contentTransferEncoding, charset, size,
+            directory);
+        uploads.add(upload);
+        return upload;
+    }
+
+    /**
+     * Deletes the temporary files of any uploads which were not moved into
+     * place, including those which were cut off
+     */
+    void cleanUp() {
+        for (HashingFileUpload upload : uploads) {
+            upload.delete();
+        }
+        uploads.clear();
+    }
+}
@@ -0,0 +1,249 @@
+package org.wallentines.packserver;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wallentines.packserver.netty.HttpInitializer;
+import org.wallentines.packserver.netty.Request;
+import org.wallentines.packserver.netty.RequestBody;
+import org.wallentines.packserver.netty.RequestHandler;
+
+/**
+ * Accepts packs in chunks through resumable upload sessions. A client opens
+ * a session for a pack of a known size, sends chunks at any offset, asks
+ * which ranges the server has when it needs to resume, and commits the
+ * session with the hash it expects. Requests use the same bearer tokens as
+ * /push.
+ */
+public class UploadHandler implements RequestHandler {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(UploadHandler.class);
+
+    private final WebServer server;
+
+    public UploadHandler(WebServer server) { this.server = server; }
+
+    // POST /upload?size=<SIZE>                -> <ID>
+    // GET /upload?id=<ID>                     -> <START>-<END> per line
+    // PUT /upload?id=<ID>&offset=<OFFSET>     <Chunk Data>
+    // DELETE /upload?id=<ID>
+    @Override
+    public CompletionStage<ChannelFuture> handle(Request request) {
+
+        if (!isAuthorized(request)) {
+            return request.respond(HttpResponseStatus.FORBIDDEN);
+        }
+
+        HttpMethod method = request.method();
+        if (method.equals(HttpMethod.POST)) {
+            return create(request);
+        }
+
+        UploadSession session = getSession(request);
+        if (session == null) {
+            return request.respond(HttpResponseStatus.NOT_FOUND);
+        }
+
+        if (method.equals(HttpMethod.GET)) {
+            return status(request, session);
+        } else if (method.equals(HttpMethod.PUT)) {
+            return write(request, session);
+        } else if (method.equals(HttpMethod.DELETE)) {
+            // Chunks being written would fail part way through, and a
+            // commit closes the session itself
+            if (!session.beginCommit()) {
+                return request.respond(HttpResponseStatus.CONFLICT);
+            }
+            server.uploadSessions().close(session);
+            return request.respond(HttpResponseStatus.OK);
+        }
+        return request.respond(HttpResponseStatus.BAD_REQUEST);
+    }
+
+    // POST /upload/commit?id=<ID>&hash=<HASH>[&tag=<TAG>]  -> <HASH>
+    public CompletionStage<ChannelFuture> commit(Request request) {
+
+        if (!isAuthorized(request)) {
+            return request.respond(HttpResponseStatus.FORBIDDEN);
+        }
+
+        String expected = request.param("hash");
+        String tag = request.param("tag");
+        if (expected == null || !Util.isHexadecimal(expected) ||
+            (tag != null && !Util.isValidTag(tag))) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+
+        UploadSession session = getSession(request);
+        if (session == null) {
+            return request.respond(HttpResponseStatus.NOT_FOUND);
+        }
+        if (!session.beginCommit()) {
+            return request.respond(HttpResponseStatus.CONFLICT);
+        }
+        if (!session.isComplete()) {
+            session.cancelCommit();
+            return request.respond(HttpResponseStatus.CONFLICT);
+        }
+
+        String hash;
+        try {
+            hash = session.hash();
+        } catch (IOException ex) {
+            log.error("Unable to hash upload session {}!", session.id(), ex);
+            server.uploadSessions().close(session);
+            return request.respond(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        }
+
+        // The data cannot be trusted, so the client must start over
+        if (!hash.equals(expected.toLowerCase(Locale.ROOT))) {
+            log.info("Upload session {} does not match its expected hash {}",
+                     session.id(), expected);
+            server.uploadSessions().close(session);
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+
+        return server.pushHandler()
+            .store(hash, session, "upload", null)
+            .handle((v, error) -> {
+                server.uploadSessions().close(session);
+                if (error != null) {
+                    log.error("Unable to store pack {}!", hash, error);
+                    return request.respond(
+                        HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                }
+                return server.pushHandler().tagged(request, tag, hash);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    private CompletionStage<ChannelFuture> create(Request request) {
+
+        long size;
+        try {
+            size = Long.parseLong(request.param("size"));
+        } catch (NumberFormatException ex) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+        if (size < 0) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+        if (size > HttpInitializer.MAX_CONTENT_LENGTH) {
+            return request.respond(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
+
+        UploadSession session;
+        try {
+            session = server.uploadSessions().create(size);
+        } catch (IOException ex) {
+            log.error("Unable to create an upload session!", ex);
+            return request.respond(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        }
+        if (session == null) {
+            return request.respond(HttpResponseStatus.SERVICE_UNAVAILABLE);
+        }
+
+        ByteBuf out = request.alloc().buffer();
+        out.writeBytes(session.id().getBytes(StandardCharsets.US_ASCII));
+        return request.respond(out);
+    }
+
+    private CompletionStage<ChannelFuture> status(Request request,
+                                                  UploadSession session) {
+
+        StringBuilder builder = new StringBuilder();
+        for (long[] range : session.received()) {
+            builder.append(range[0]).append('-').append(range[1]).append('\n');
+        }
+
+        ByteBuf out = request.alloc().buffer();
+        out.writeBytes(builder.toString().getBytes(StandardCharsets.US_ASCII));
+        return request.respond(out);
+    }
+
+    private CompletionStage<ChannelFuture> write(Request request,
+                                                 UploadSession session) {
+
+        long offset;
+        try {
+            offset = Long.parseLong(request.param("offset"));
+        } catch (NumberFormatException ex) {
+            return request.respond(HttpResponseStatus.BAD_REQUEST);
+        }
+
+        ChunkWriter writer = new ChunkWriter(session, offset);
+        return request.body()
+            .subscribe(writer)
+            .handle((v, error) -> request.respond(
+                        error == null ? HttpResponseStatus.OK
+                                      : statusFor(error)))
+            .thenCompose(Function.identity());
+    }
+
+    private boolean isAuthorized(Request request) {
+        String token = PushHandler.bearerToken(request);
+        return token != null && server.pushHandler().verify(token);
+    }
+
+    private UploadSession getSession(Request request) {
+        String id = request.param("id");
+        return id == null ? null : server.uploadSessions().get(id);
+    }
+
+    private static HttpResponseStatus statusFor(Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (error instanceof IllegalArgumentException) {
+            return HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+        }
+        if (error instanceof IllegalStateException) {
+            return HttpResponseStatus.CONFLICT;
+        }
+        if (error instanceof TooLongFrameException) {
+            return HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+        }
+        if (error instanceof RejectedExecutionException) {
+            return HttpResponseStatus.SERVICE_UNAVAILABLE;
+        }
+        log.error("Unable to write an upload chunk!", error);
+        return HttpResponseStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Writes the body of a request into a session as it arrives. Each piece
+     * is marked as received once it is written, so a chunk which is cut off
+     * only needs to be resumed from where it stopped.
+     */
+    private static class ChunkWriter implements RequestBody.Sink {
+
+        private final UploadSession session;
+        private long position;
+
+        ChunkWriter(UploadSession session, long offset) {
+            this.session = session;
+            this.position = offset;
+        }
+
+        @Override
+        public void onContent(HttpContent content) throws IOException {
+            ByteBuf buf = content.content();
+            int length = buf.readableBytes();
+            session.write(buf, position);
+            position += length;
+        }
+    }
+}
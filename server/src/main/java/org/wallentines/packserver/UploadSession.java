@@ -0,0 +1,205 @@
+package org.wallentines.packserver;
+
+import io.netty.buffer.ByteBuf;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pack being uploaded in chunks which may arrive in any order, and may be
+ * sent again after a failure. Chunks are written straight into a sparse file
+ * of the pack's full size, and the ranges which have been written are
+ * tracked so a client can tell what is missing.
+ */
+public class UploadSession implements PushHandler.PendingPack {
+
+    private final String id;
+    private final Path file;
+    private final long size;
+    private final FileChannel channel;
+
+    // Received ranges, from start to end (exclusive). Adjacent and
+    // overlapping ranges are merged.
+    private final TreeMap<Long, Long> received = new TreeMap<>();
+    private volatile long lastActive = System.nanoTime();
+    private int writers;
+    private boolean committing;
+    private boolean moved;
+
+    /**
+     * Creates a session and preallocates its file
+     * @param id The session's ID
+     * @param file The file to write chunks into, which must not exist
+     * @param size The size of the pack, in bytes
+     */
+    public UploadSession(String id, Path file, long size) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.size = size;
+        this.channel = FileChannel.open(
+            file, StandardOpenOption.CREATE_NEW, StandardOpenOption.SPARSE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (size > 0) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    public String id() { return id; }
+
+    public long size() { return size; }
+
+    /**
+     * The number of nanoseconds since the session was last used
+     */
+    public long idleNanos() { return System.nanoTime() - lastActive; }
+
+    public void touch() { lastActive = System.nanoTime(); }
+
+    /**
+     * Writes part of a chunk and marks it as received
+     * @param buffer The bytes to write, which are consumed
+     * @param position Where in the pack the bytes belong
+     * @throws IllegalArgumentException If the bytes do not fit in the pack
+     * @throws IllegalStateException If the session is being committed
+     * @throws IOException If the bytes could not be written
+     */
+    public void write(ByteBuf buffer, long position) throws IOException {
+
+        int length = buffer.readableBytes();
+        if (position < 0 || position > size - length) {
+            throw new IllegalArgumentException(
+                "Chunk is outside of the upload");
+        }
+        synchronized (this) {
+            if (committing) {
+                throw new IllegalStateException("Upload is being committed");
+            }
+            writers++;
+        }
+
+        try {
+            long offset = position;
+            while (buffer.isReadable()) {
+                offset += buffer.readBytes(channel, offset,
+                                           buffer.readableBytes());
+            }
+            markReceived(position, position + length);
+        } finally {
+            synchronized (this) {
+                writers--;
+            }
+        }
+        touch();
+    }
+
+    private synchronized void markReceived(long start, long end) {
+        if (start == end) {
+            return;
+        }
+
+        Map.Entry<Long, Long> before = received.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+
+        Map.Entry<Long, Long> after;
+        while ((after = received.ceilingEntry(start)) != null &&
+               after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            received.remove(after.getKey());
+        }
+        received.put(start, end);
+    }
+
+    /**
+     * Gets the ranges which have been received
+     * @return Pairs of start and end offsets, where the end is exclusive
+     */
+    public synchronized List<long[]> received() {
+        List<long[]> out = new ArrayList<>(received.size());
+        for (Map.Entry<Long, Long> ent : received.entrySet()) {
+            out.add(new long[] {ent.getKey(), ent.getValue()});
+        }
+        return out;
+    }
+
+    public synchronized boolean isComplete() {
+        Long end = received.get(0L);
+        return size == 0 || (end != null && end == size);
+    }
+
+    /**
+     * Stops further chunks from being written, so the pack can be hashed
+     * and stored, or the session closed
+     * @return False if the session is already being committed, or a chunk
+     *     is being written
+     */
+    public synchronized boolean beginCommit() {
+        if (committing || writers > 0) {
+            return false;
+        }
+        committing = true;
+        return true;
+    }
+
+    /**
+     * Allows chunks to be written again after a commit which could not go
+     * ahead
+     */
+    public synchronized void cancelCommit() { committing = false; }
+
+    /**
+     * Hashes the whole pack
+     * @return The pack's SHA-1 hash, in hexadecimal
+     */
+    public String hash() throws IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    @Override
+    public synchronized void moveTo(Path target) throws IOException {
+        channel.force(true);
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        moved = true;
+    }
+
+    /**
+     * Closes the session, and deletes its file unless it has been stored
+     */
+    public synchronized void close() throws IOException {
+        channel.close();
+        if (!moved) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
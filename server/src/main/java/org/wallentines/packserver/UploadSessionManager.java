@@ -0,0 +1,150 @@
+package org.wallentines.packserver;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of resumable upload sessions. Each session writes into its own
+ * temporary file in the pack directory. Sessions which go unused for too long
+ * are closed and their files deleted.
+ */
+public class UploadSessionManager {
+
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(UploadSessionManager.class);
+    private static final String PREFIX = "session-";
+    private static final String SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final int maxSessions;
+    private final long timeoutNanos;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, UploadSession> sessions =
+        new ConcurrentHashMap<>();
+    // Sessions which are open or being opened, so the limit holds while
+    // several are created at once
+    private final AtomicInteger open = new AtomicInteger();
+    private final ScheduledFuture<?> expiry;
+
+    /**
+     * Creates a session manager. Files left behind by sessions from before
+     * a restart are deleted.
+     * @param directory The directory to write partial uploads to
+     * @param maxSessions The number of sessions which may be open at once
+     * @param timeout The number of seconds a session may go unused
+     * @param scheduler The executor used to expire sessions
+     */
+    public UploadSessionManager(Path directory, int maxSessions, long timeout,
+                                ScheduledExecutorService scheduler) {
+        this.directory = directory;
+        this.maxSessions = maxSessions;
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeout);
+
+        deleteAbandonedFiles();
+
+        long period = Math.clamp(timeout / 4, 1, 60);
+        this.expiry = scheduler.scheduleAtFixedRate(this::expire, period,
+                                                    period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens a new session
+     * @param size The size of the pack to be uploaded, in bytes
+     * @return The new session, or null if too many are open
+     */
+    @Nullable
+    public UploadSession create(long size) throws IOException {
+
+        if (open.incrementAndGet() > maxSessions) {
+            open.decrementAndGet();
+            return null;
+        }
+
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String id = HexFormat.of().formatHex(bytes);
+
+        UploadSession session;
+        try {
+            session = new UploadSession(
+                id, directory.resolve(PREFIX + id + SUFFIX), size);
+        } catch (IOException | RuntimeException ex) {
+            open.decrementAndGet();
+            throw ex;
+        }
+        sessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * Gets an open session
+     * @return The session, or null if it does not exist or has expired
+     */
+    @Nullable
+    public UploadSession get(String id) {
+        UploadSession session = sessions.get(id);
+        if (session != null) {
+            session.touch();
+        }
+        return session;
+    }
+
+    /**
+     * Closes a session, deleting its file unless it has been stored
+     */
+    public void close(UploadSession session) {
+        if (sessions.remove(session.id(), session)) {
+            open.decrementAndGet();
+        }
+        try {
+            session.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to close upload session {}!", session.id(),
+                        ex);
+        }
+    }
+
+    public int count() { return open.get(); }
+
+    public void shutdown() {
+        expiry.cancel(false);
+        for (UploadSession session : sessions.values()) {
+            close(session);
+        }
+    }
+
+    private void expire() {
+        for (UploadSession session : sessions.values()) {
+            if (session.idleNanos() > timeoutNanos && session.beginCommit()) {
+                LOGGER.info("Upload session {} expired", session.id());
+                close(session);
+            }
+        }
+    }
+
+    private void deleteAbandonedFiles() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream =
+                 Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to delete abandoned uploads!", ex);
+        }
+    }
+}
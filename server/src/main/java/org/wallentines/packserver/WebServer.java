@@ -1,47 +1,123 @@
 package org.wallentines.packserver;
 
+import io.netty.handler.codec.http.HttpMethod;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wallentines.mdcfg.ConfigSection;
 import org.wallentines.jwt.*;
+import org.wallentines.packserver.netty.ChannelType;
 import org.wallentines.packserver.netty.ConnectionManager;
+import org.wallentines.packserver.netty.RequestHandler;
+import org.wallentines.packserver.netty.Router;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class WebServer {
 
-    private final int port;
-    private final String baseUrl;
+    private static final Logger log = LoggerFactory.getLogger(WebServer.class);
+
+    private final ServerConfig config;
     private final KeySupplier jwtKeySupplier;
     private final JWTVerifier jwtVerifier;
 
     private final ConnectionManager connectionManager;
+    private final BlockingExecutor blockingExecutor;
     private final PackManager packManager;
+    private final PackCache packCache;
     private final TagManager tagManager;
+    private final UploadSessionManager uploadSessions;
+    private final PackOptimizer packOptimizer;
+    private final PackCollector packCollector;
+    private final TagRetention tagRetention;
+    private final PackScrubber packScrubber;
+    private final AdmissionController downloadAdmission;
+    private final AdmissionController metadataAdmission;
+    private final AdmissionController uploadAdmission;
 
     private final PackHandler packHandler;
     private final HasHandler hasHandler;
     private final PushHandler pushHandler;
+    private final UploadHandler uploadHandler;
+    private final DeltaHandler deltaHandler;
     private final DeleteHandler deleteHandler;
     private final HashHandler hashHandler;
+    private final StatHandler statHandler;
     private final TagHandler tagHandler;
+    private final MetricsHandler metricsHandler;
+    private final Router router;
+
+    // Flushing writes to disk and holds the catalog's lock, so it is kept off
+    // the event loops
+    private final ScheduledExecutorService catalogFlush = Executors.newSingleThreadScheduledExecutor(ChannelType.createThreadFactory("Catalog Flush"));
 
-    public WebServer(int port, String baseUrl, KeySupplier jwtKey, Path packDir, Path tagDir) {
-        this.port = port;
-        this.baseUrl = baseUrl;
+    public WebServer(ServerConfig config, KeySupplier jwtKey, Path packDir, Path tagDir) {
+        this.config = config;
         this.jwtKeySupplier = jwtKey;
         this.jwtVerifier = new JWTVerifier();
 
         this.connectionManager = new ConnectionManager(this);
-        this.packManager = new PackManager(packDir);
+        this.blockingExecutor = switch (config.executionMode()) {
+            case INLINE -> null;
+            case POOL -> BlockingExecutor.pooled(config.ioThreads(), config.ioQueueSize());
+            case VIRTUAL -> BlockingExecutor.virtual(config.maxVirtualThreads());
+        };
+        this.packManager = new PackManager(packDir, PackStorage.create(config, packDir));
+        this.packCache = new PackCache(packManager, config.cacheSize());
         this.tagManager = new TagManager(tagDir);
+        this.uploadSessions = new UploadSessionManager(packDir, config.maxUploadSessions(), config.uploadSessionTimeout(), connectionManager.workerGroup());
+        this.packOptimizer = config.optimizePacks() ? new PackOptimizer(this, packDir.resolveSibling("aliases")) : null;
+        this.packCollector = new PackCollector(packManager, tagManager, packCache, packDir.resolveSibling("aliases"), config.gcGracePeriod(), config.gcThreads());
+        this.tagRetention = config.retentionRules() == null ? null : new TagRetention(tagManager, packCollector, config.retentionRules(), config.retentionInterval());
+        this.packScrubber = config.scrubRate() <= 0 ? null : new PackScrubber(packManager, packCache, packDir.resolveSibling("quarantine"), config.scrubRate(), config.scrubInterval());
+        this.downloadAdmission = new AdmissionController("download", config.maxDownloads(), config.downloadQueueSize(), config.downloadQueueTimeout(), connectionManager.workerGroup());
+        this.metadataAdmission = new AdmissionController("metadata", config.maxMetadataRequests(), config.metadataQueueSize(), config.metadataQueueTimeout(), connectionManager.workerGroup());
+        this.uploadAdmission = new AdmissionController("upload", config.maxUploads(), config.uploadQueueSize(), config.uploadQueueTimeout(), connectionManager.workerGroup());
 
         this.packHandler = new PackHandler(this);
         this.hasHandler = new HasHandler(this);
         this.pushHandler = new PushHandler(this);
+        this.uploadHandler = new UploadHandler(this);
+        this.deltaHandler = new DeltaHandler(this);
         this.deleteHandler = new DeleteHandler(this);
         this.hashHandler = new HashHandler(this);
+        this.statHandler = new StatHandler(this);
         this.tagHandler = new TagHandler(this);
+        this.metricsHandler = new MetricsHandler(this);
+
+        Router.Route download = new Router.Route(packHandler, downloadAdmission, true);
+        this.router = new Router(config.baseUrl())
+                .add(HttpMethod.GET, "pack", download)
+                .add(HttpMethod.HEAD, "pack", download)
+                .add(HttpMethod.GET, "has", metadataRoute(hasHandler))
+                .add(HttpMethod.POST, "push", uploadRoute(pushHandler))
+                .add(HttpMethod.POST, "upload", metadataRoute(uploadHandler))
+                .add(HttpMethod.GET, "upload", metadataRoute(uploadHandler))
+                .add(HttpMethod.PUT, "upload", uploadRoute(uploadHandler))
+                .add(HttpMethod.DELETE, "upload", metadataRoute(uploadHandler))
+                .add(HttpMethod.POST, "upload/commit", metadataRoute(uploadHandler::commit))
+                .add(HttpMethod.POST, "delta", uploadRoute(deltaHandler))
+                .add(HttpMethod.POST, "delta/push", uploadRoute(deltaHandler::push))
+                .add(HttpMethod.POST, "delete", metadataRoute(deleteHandler))
+                .add(HttpMethod.GET, "hash", metadataRoute(hashHandler))
+                .add(HttpMethod.GET, "stat", metadataRoute(statHandler))
+                .add(HttpMethod.POST, "tag", metadataRoute(tagHandler))
+                .add(HttpMethod.GET, "metrics", new Router.Route(metricsHandler, null, false));
+    }
+
+    private Router.Route metadataRoute(RequestHandler handler) {
+        return new Router.Route(handler, metadataAdmission, true);
+    }
+
+    // Streamed routes hold their permit until the body has been received,
+    // so slow uploads cannot use up the slots metadata requests need
+    private Router.Route uploadRoute(RequestHandler handler) {
+        return new Router.Route(handler, uploadAdmission, true, true);
     }
 
     public String generateToken() {
@@ -52,20 +128,62 @@ public class WebServer {
                 .getOrThrow();
     }
 
+    public ServerConfig config() {
+        return config;
+    }
+
     public int port() {
-        return port;
+        return config.port();
     }
 
     public String baseUrl() {
-        return baseUrl;
+        return config.baseUrl();
     }
 
     public void start() throws IOException {
+        packManager.open();
+        catalogFlush.scheduleAtFixedRate(() -> {
+            try {
+                packManager.catalog().flush();
+            } catch (IOException ex) {
+                log.error("Unable to flush the pack catalog!", ex);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
         connectionManager.startListener();
+        packManager.startMigration();
+        if (tagRetention != null) {
+            tagRetention.start();
+        }
+        if (packScrubber != null) {
+            packScrubber.start();
+        }
     }
 
     public void shutdown() {
         connectionManager.stop();
+        uploadSessions.shutdown();
+        if (tagRetention != null) {
+            tagRetention.stop();
+        }
+        packCollector.stop();
+        if (packScrubber != null) {
+            packScrubber.stop();
+        }
+        catalogFlush.shutdown();
+        packManager.close();
+        if (blockingExecutor != null) {
+            blockingExecutor.shutdown();
+        }
+        packCache.shutdown();
+    }
+
+    public ConnectionManager connectionManager() {
+        return connectionManager;
+    }
+
+    @Nullable
+    public BlockingExecutor blockingExecutor() {
+        return blockingExecutor;
     }
 
     public KeySupplier keySupplier() {
@@ -80,10 +198,53 @@ public class WebServer {
         return packManager;
     }
 
+    public PackCache packCache() {
+        return packCache;
+    }
+
     public TagManager tagManager() {
         return tagManager;
     }
 
+    public UploadSessionManager uploadSessions() {
+        return uploadSessions;
+    }
+
+    @Nullable
+    public PackOptimizer packOptimizer() {
+        return packOptimizer;
+    }
+
+    public PackCollector packCollector() {
+        return packCollector;
+    }
+
+    @Nullable
+    public TagRetention tagRetention() {
+        return tagRetention;
+    }
+
+    @Nullable
+    public PackScrubber packScrubber() {
+        return packScrubber;
+    }
+
+    public AdmissionController downloadAdmission() {
+        return downloadAdmission;
+    }
+
+    public AdmissionController metadataAdmission() {
+        return metadataAdmission;
+    }
+
+    public AdmissionController uploadAdmission() {
+        return uploadAdmission;
+    }
+
+    public Router router() {
+        return router;
+    }
+
     public PackHandler packHandler() {
         return packHandler;
     }
@@ -96,6 +257,14 @@ public class WebServer {
         return pushHandler;
     }
 
+    public UploadHandler uploadHandler() {
+        return uploadHandler;
+    }
+
+    public DeltaHandler deltaHandler() {
+        return deltaHandler;
+    }
+
     public DeleteHandler deleteHandler() {
         return deleteHandler;
     }
@@ -104,7 +273,15 @@ public class WebServer {
         return hashHandler;
     }
 
+    public StatHandler statHandler() {
+        return statHandler;
+    }
+
     public TagHandler tagHandler() {
         return tagHandler;
     }
+
+    public MetricsHandler metricsHandler() {
+        return metricsHandler;
+    }
 }
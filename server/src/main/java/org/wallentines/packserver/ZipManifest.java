@@ -0,0 +1,106 @@
+package org.wallentines.packserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+
+/**
+ * Describes the entries of a pack zip, in order, so a pack can be rebuilt
+ * from the entries of another. Each line of a manifest holds an entry's
+ * SHA-1 hash, CRC-32 in hexadecimal, uncompressed size and name, separated
+ * by spaces.
+ */
+public class ZipManifest {
+
+    private final List<Entry> entries;
+
+    public ZipManifest(List<Entry> entries) { this.entries = entries; }
+
+    public List<Entry> entries() { return entries; }
+
+    /**
+     * Reads a manifest
+     * @throws IllegalArgumentException If a line is malformed
+     */
+    public static ZipManifest read(Reader reader) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ", 4);
+            if (parts.length != 4 || !Util.isHexadecimal(parts[0])) {
+                throw new IllegalArgumentException("Invalid manifest line");
+            }
+            entries.add(new Entry(parts[0].toLowerCase(Locale.ROOT),
+                                  Long.parseLong(parts[1], 16),
+                                  Long.parseLong(parts[2]), parts[3]));
+        }
+        return new ZipManifest(entries);
+    }
+
+    /**
+     * Creates a zip entry in the same way as the uploader and the Gradle
+     * plugin, so rebuilt packs have the same bytes as the original
+     */
+    public static ZipEntry newZipEntry(String name) {
+        ZipEntry ze = new ZipEntry(name);
+        ze.setCreationTime(FileTime.from(Instant.EPOCH));
+        ze.setLastAccessTime(FileTime.from(Instant.EPOCH));
+        ze.setLastModifiedTime(FileTime.from(Instant.EPOCH));
+        return ze;
+    }
+
+    /**
+     * Copies a stream, hashing it on the way
+     * @return The SHA-1 hash of the data, in hexadecimal
+     */
+    public static String copy(InputStream in, OutputStream out)
+        throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * An entry in a pack
+     * @param sha1 The SHA-1 hash of the entry's uncompressed data
+     * @param crc The entry's CRC-32
+     * @param size The entry's uncompressed size
+     * @param name The entry's name
+     */
+    public record Entry(String sha1, long crc, long size, String name) {
+
+        /**
+         * Determines whether a zip entry could have the same data as this one,
+         * without reading it
+         */
+        public boolean matches(ZipEntry ze) {
+            return ze.getCrc() == crc && ze.getSize() == size;
+        }
+    }
+}
@@ -3,16 +3,20 @@ package org.wallentines.packserver.netty;
 import io.netty.channel.ChannelFactory;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.kqueue.KQueue;
+import io.netty.channel.kqueue.KQueueDatagramChannel;
 import io.netty.channel.kqueue.KQueueEventLoopGroup;
 import io.netty.channel.kqueue.KQueueServerSocketChannel;
 import io.netty.channel.kqueue.KQueueSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.FastThreadLocalThread;
@@ -23,16 +27,18 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public enum ChannelType {
 
-    NIO(NioServerSocketChannel::new, NioSocketChannel::new),
-    EPOLL(EpollServerSocketChannel::new, EpollSocketChannel::new),
-    KQUEUE(KQueueServerSocketChannel::new, KQueueSocketChannel::new);
+    NIO(NioServerSocketChannel::new, NioSocketChannel::new, NioDatagramChannel::new),
+    EPOLL(EpollServerSocketChannel::new, EpollSocketChannel::new, EpollDatagramChannel::new),
+    KQUEUE(KQueueServerSocketChannel::new, KQueueSocketChannel::new, KQueueDatagramChannel::new);
 
     public final ChannelFactory<? extends ServerSocketChannel> serverSocketChannelFactory;
     public final ChannelFactory<? extends SocketChannel> socketChannelFactory;
+    public final ChannelFactory<? extends DatagramChannel> datagramChannelFactory;
 
-    ChannelType(ChannelFactory<? extends ServerSocketChannel> serverSocketChannelFactory, ChannelFactory<? extends SocketChannel> socketChannelFactory) {
+    ChannelType(ChannelFactory<? extends ServerSocketChannel> serverSocketChannelFactory, ChannelFactory<? extends SocketChannel> socketChannelFactory, ChannelFactory<? extends DatagramChannel> datagramChannelFactory) {
         this.serverSocketChannelFactory = serverSocketChannelFactory;
         this.socketChannelFactory = socketChannelFactory;
+        this.datagramChannelFactory = datagramChannelFactory;
     }
 
     public static EventLoopGroup createEventLoopGroup(ChannelType type, String name) {
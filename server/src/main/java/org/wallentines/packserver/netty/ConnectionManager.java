@@ -2,12 +2,12 @@ package org.wallentines.packserver.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.ssl.SslContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wallentines.packserver.WebServer;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 
 public class ConnectionManager {
@@ -20,6 +20,8 @@ public class ConnectionManager {
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
     private final WebServer server;
+    private final Http3Listener http3Listener;
+    private final TrafficShaper trafficShaper;
     private ChannelFuture listenChannel;
 
     public ConnectionManager(WebServer server) {
@@ -27,36 +29,44 @@ public class ConnectionManager {
         this.channelType = ChannelType.getBestChannelType();
         this.bossGroup = ChannelType.createEventLoopGroup(channelType, "Netty Boss");
         this.workerGroup = ChannelType.createEventLoopGroup(channelType, "Netty Worker");
+        this.http3Listener = new Http3Listener(server);
+        this.trafficShaper = new TrafficShaper(workerGroup, server.config().globalBandwidth(), server.config().connectionBandwidth());
     }
 
-    public void startListener() {
+    public TrafficShaper trafficShaper() {
+        return trafficShaper;
+    }
+
+    public EventLoopGroup workerGroup() {
+        return workerGroup;
+    }
+
+    public void startListener() throws IOException {
 
         InetSocketAddress addr = new InetSocketAddress(server.port());
+        SslContext sslContext = HttpInitializer.createSslContext(server.config());
+
+        // HTTP/3 is only advertised once its listener is running
+        boolean http3 = server.config().http3() && http3Listener.start(channelType, workerGroup);
 
         ServerBootstrap bootstrap = new ServerBootstrap()
                 .channelFactory(channelType.serverSocketChannelFactory)
                 .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WATER_MARK)
                 .childOption(ChannelOption.TCP_NODELAY, true)
                 .childOption(ChannelOption.IP_TOS, 0x18)
-                .childHandler(new ChannelInitializer<>() {
-                    @Override
-                    protected void initChannel(Channel channel) throws Exception {
-                        ChannelPipeline pipeline = channel.pipeline();
-                        pipeline.addLast(new HttpServerCodec())
-                                .addLast(new HttpObjectAggregator(1024 * 1024 * 512))
-                                .addLast(new HttpHandler(server));
-                    }
-                })
+                .childHandler(new HttpInitializer(server, sslContext, http3))
                 .group(bossGroup, workerGroup)
                 .localAddress(addr);
 
         this.listenChannel = bootstrap.bind().syncUninterruptibly();
-        log.info("Web server listening on {}:{}", addr.getHostString(), addr.getPort());
+        log.info("Web server listening on {}:{}{}", addr.getHostString(), addr.getPort(), sslContext == null ? "" : " (TLS)");
     }
 
     public void stop() {
+        this.http3Listener.stop();
         this.listenChannel.channel().close().syncUninterruptibly();
         this.bossGroup.shutdownGracefully();
+        this.trafficShaper.release();
     }
 
 }
@@ -0,0 +1,145 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3FrameToHttpObjectCodec;
+import io.netty.incubator.codec.http3.Http3ServerConnectionHandler;
+import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
+import io.netty.incubator.codec.quic.Quic;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wallentines.packserver.ServerConfig;
+import org.wallentines.packserver.WebServer;
+
+/**
+ * Accepts HTTP/3 connections over QUIC. Each request stream is converted to
+ * HTTP/1.1 objects and given the same handlers as TCP connections.
+ */
+public class Http3Listener {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(Http3Listener.class);
+
+    private static final long MAX_DATA = 16L * 1024 * 1024;
+    private static final long MAX_STREAM_DATA = 4L * 1024 * 1024;
+    private static final long MAX_STREAMS = 100;
+
+    private final WebServer server;
+    private Channel channel;
+
+    public Http3Listener(WebServer server) { this.server = server; }
+
+    /**
+     * Starts listening for QUIC connections
+     * @param channelType The transport to bind the UDP socket with
+     * @param group The event loop group to run connections on
+     * @return Whether the listener was started
+     */
+    public boolean start(ChannelType channelType, EventLoopGroup group) {
+
+        if (!Quic.isAvailable()) {
+            log.error("Unable to start the HTTP/3 listener: QUIC is not "
+                          + "available on this platform",
+                      Quic.unavailabilityCause());
+            return false;
+        }
+
+        QuicSslContext sslContext;
+        try {
+            sslContext = createSslContext(server.config());
+        } catch (CertificateException ex) {
+            log.error("Unable to start the HTTP/3 listener: could not "
+                          + "create a certificate",
+                      ex);
+            return false;
+        }
+
+        ChannelHandler codec =
+            Http3.newQuicServerCodecBuilder()
+                .sslContext(sslContext)
+                .maxIdleTimeout(server.config().idleTimeout(),
+                                TimeUnit.SECONDS)
+                .initialMaxData(MAX_DATA)
+                .initialMaxStreamDataBidirectionalLocal(MAX_STREAM_DATA)
+                .initialMaxStreamDataBidirectionalRemote(MAX_STREAM_DATA)
+                .initialMaxStreamsBidirectional(MAX_STREAMS)
+                .tokenHandler(InsecureQuicTokenHandler.INSTANCE)
+                .handler(new ChannelInitializer<QuicChannel>() {
+                    @Override
+                    protected void initChannel(QuicChannel ch) {
+                        ch.pipeline().addLast(new Http3ServerConnectionHandler(
+                            new StreamInitializer()));
+                    }
+                })
+                .build();
+
+        InetSocketAddress addr =
+            new InetSocketAddress(server.config().http3Port());
+        channel = new Bootstrap()
+                      .group(group)
+                      .channelFactory(channelType.datagramChannelFactory)
+                      .handler(codec)
+                      .bind(addr)
+                      .syncUninterruptibly()
+                      .channel();
+
+        log.info("HTTP/3 listening on {}:{} (UDP)", addr.getHostString(),
+                 addr.getPort());
+        return true;
+    }
+
+    public void stop() {
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+        }
+    }
+
+    /**
+     * Creates a QUIC SSL context from the server's TLS certificate. QUIC
+     * cannot run without TLS, so a self-signed certificate is generated for
+     * local testing when none is configured.
+     */
+    private static QuicSslContext createSslContext(ServerConfig config)
+        throws CertificateException {
+
+        QuicSslContextBuilder builder;
+        String cert = config.tlsCertificate();
+        String key = config.tlsKey();
+        if (cert != null && key != null) {
+            builder = QuicSslContextBuilder.forServer(new File(key), null,
+                                                      new File(cert));
+        } else {
+            log.warn("No TLS certificate is configured, so HTTP/3 will use "
+                     + "a self-signed certificate");
+            SelfSignedCertificate ssc = new SelfSignedCertificate("localhost");
+            builder = QuicSslContextBuilder.forServer(ssc.privateKey(), null,
+                                                      ssc.cert());
+        }
+
+        return builder
+            .applicationProtocols(Http3.supportedApplicationProtocols())
+            .build();
+    }
+
+    private class StreamInitializer
+        extends ChannelInitializer<QuicStreamChannel> {
+        @Override
+        protected void initChannel(QuicStreamChannel ch) {
+            ch.pipeline().addLast(new Http3FrameToHttpObjectCodec(true));
+            HttpInitializer.addRequestHandlers(ch.pipeline(), server);
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package org.wallentines.packserver.netty;
 
-import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.timeout.IdleStateEvent;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wallentines.packserver.AdmissionController;
+import org.wallentines.packserver.BlockingExecutor;
 import org.wallentines.packserver.WebServer;
 
 public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
@@ -15,7 +25,37 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         LoggerFactory.getLogger(HttpHandler.class);
     private final WebServer server;
 
-    public HttpHandler(WebServer server) { this.server = server; }
+    // Requests pipelined behind one which is waiting for admission. They are
+    // handled strictly in order so responses are written in order.
+    private final ArrayDeque<FullHttpRequest> pending = new ArrayDeque<>();
+    private boolean busy;
+
+    private int requests;
+    private boolean closing;
+
+    // Completes whenever the channel is writable. Virtual threads wait on
+    // this before handling a request, so a slow client cannot make its
+    // handler buffer responses without bound.
+    private volatile CompletableFuture<Void> writable =
+        CompletableFuture.completedFuture(null);
+
+    public HttpHandler(WebServer server) {
+        super(false);
+        this.server = server;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+        throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            // Requests waiting for admission are not idle
+            if (!busy) {
+                ctx.close();
+            }
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx)
@@ -23,74 +63,256 @@ public class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         ctx.flush();
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx)
+        throws Exception {
+        if (ctx.channel().isWritable()) {
+            writable.complete(null);
+        } else if (writable.isDone()) {
+            writable = new CompletableFuture<>();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        writable.complete(null);
+        FullHttpRequest req;
+        while ((req = pending.poll()) != null) {
+            req.release();
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req)
         throws Exception {
 
-        if (!req.decoderResult().isSuccess() ||
-            req.headers().contains(HttpHeaderNames.UPGRADE,
-                                   HttpHeaderValues.WEBSOCKET, true)) {
-            sendHttpResponse(
-                ctx, req,
-                new DefaultFullHttpResponse(req.protocolVersion(),
-                                            HttpResponseStatus.BAD_REQUEST));
+        pending.add(req);
+        if (!busy) {
+            handleNext(ctx);
+        }
+    }
+
+    private void handleNext(ChannelHandlerContext ctx) {
+
+        FullHttpRequest req = pending.poll();
+        if (req == null) {
+            busy = false;
             return;
         }
 
-        String path = req.uri();
-        if (!path.startsWith(server.baseUrl())) {
-            sendHttpResponse(
-                ctx, req,
-                new DefaultFullHttpResponse(req.protocolVersion(),
-                                            HttpResponseStatus.NOT_FOUND));
+        // A previous response asked to close the connection, so any requests
+        // pipelined after it are dropped
+        if (closing || !ctx.channel().isActive()) {
+            req.release();
+            handleNext(ctx);
             return;
         }
 
-        path = path.substring(server.baseUrl().length());
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+        int maxRequests = server.config().maxRequestsPerConnection();
+        if (maxRequests > 0 && ++requests >= maxRequests) {
+            HttpUtil.setKeepAlive(req, false);
+        }
+        if (!HttpUtil.isKeepAlive(req)) {
+            closing = true;
         }
 
-        int paramsStart = path.indexOf('?');
-        if (paramsStart != -1) {
-            path = path.substring(0, paramsStart);
+        Router.Route route = server.router().route(req);
+        AdmissionController admission = route.admission();
+        if (admission == null) {
+            handle(ctx, req, route, null);
+            return;
         }
 
-        try {
-            FullHttpResponse res = switch (path) {
-                case "pack" -> server.packHandler().handle(req, ctx);
-                case "has" -> server.hasHandler().handle(req, ctx);
-                case "push" -> server.pushHandler().handle(req, ctx);
-                case "delete" -> server.deleteHandler().handle(req, ctx);
-                case "hash" -> server.hashHandler().handle(req, ctx);
-                case "tag" -> server.tagHandler().handle(req, ctx);
-                default ->
-                    new DefaultFullHttpResponse(req.protocolVersion(),
-                                                HttpResponseStatus.NOT_FOUND);
-            };
-            sendHttpResponse(ctx, req, res);
-        } catch (Throwable t) {
+        busy = true;
+        admission.acquire().whenComplete((permit, error) -> {
+            if (ctx.executor().inEventLoop()) {
+                admitted(ctx, req, route, permit, error);
+            } else {
+                ctx.executor().execute(
+                    () -> admitted(ctx, req, route, permit, error));
+            }
+        });
+    }
+
+    private void admitted(ChannelHandlerContext ctx, FullHttpRequest req,
+                          Router.Route route,
+                          AdmissionController.Permit permit, Throwable error) {
+
+        if (error != null) {
+            if (error instanceof CompletionException) {
+                error = error.getCause();
+            }
+            long retryAfter =
+                error instanceof AdmissionController.RejectedException rex
+                    ? rex.retryAfter()
+                    : 1;
+
+            sendHttpResponse(ctx, req, unavailable(req, retryAfter));
+            req.release();
+            handleNext(ctx);
+            return;
+        }
+
+        if (!ctx.channel().isActive()) {
+            permit.release();
+            req.release();
+            handleNext(ctx);
+            return;
+        }
+
+        handle(ctx, req, route, permit);
+    }
+
+    private void handle(ChannelHandlerContext ctx, FullHttpRequest req,
+                        Router.Route route, AdmissionController.Permit permit) {
+
+        Request request = new Request(ctx, req);
+        BlockingExecutor executor = server.blockingExecutor();
 
+        CompletionStage<ChannelFuture> response;
+        if (executor == null || !route.blocking()) {
+            response = invoke(route, request);
+        } else {
+            try {
+                response =
+                    CompletableFuture
+                        .supplyAsync(() -> {
+                            if (executor.isVirtual()) {
+                                awaitWritable();
+                            }
+                            return invoke(route, request);
+                        }, executor)
+                        .thenCompose(Function.identity());
+            } catch (RejectedExecutionException ex) {
+                response = request.respond(unavailable(req, 1));
+            }
+        }
+
+        busy = true;
+        response.whenComplete((future, error) -> {
+            if (ctx.executor().inEventLoop()) {
+                finish(request, permit, future, error);
+            } else {
+                ctx.executor().execute(
+                    () -> finish(request, permit, future, error));
+            }
+        });
+    }
+
+    /**
+     * Releases a request once its handler has finished, and moves on to the
+     * next pipelined request
+     * @param future The future for the last write of the response
+     * @param error The error the handler failed with, if any
+     */
+    private void finish(Request request, AdmissionController.Permit permit,
+                        ChannelFuture future, Throwable error) {
+
+        if (error != null) {
             LOGGER.error("An exception occurred while processing a request!",
-                         t);
+                         error);
+            future = HttpHandler.sendHttpResponse(
+                request.ctx(), request.http(),
+                new DefaultFullHttpResponse(
+                    request.version(),
+                    HttpResponseStatus.INTERNAL_SERVER_ERROR));
+        }
 
-            sendHttpResponse(ctx, req,
-                             new DefaultFullHttpResponse(
-                                 req.protocolVersion(),
-                                 HttpResponseStatus.INTERNAL_SERVER_ERROR));
+        request.http().release();
+        if (permit != null) {
+            // Downloads hold their permit until the whole body is written
+            future.addListener(f -> permit.release());
         }
+        handleNext(request.ctx());
     }
 
-    private static void sendHttpResponse(ChannelHandlerContext ctx,
-                                         FullHttpRequest req,
-                                         FullHttpResponse res) {
-        // Generate an error page if response getStatus code is not OK (200).
+    private void awaitWritable() { writable.join(); }
+
+    /**
+     * Passes a request to its handler, turning any exception it throws into
+     * a failed stage
+     */
+    private static CompletionStage<ChannelFuture> invoke(Router.Route route,
+                                                         Request request) {
+        try {
+            return route.handler().handle(request);
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+    }
+
+    private static FullHttpResponse unavailable(FullHttpRequest req,
+                                                long retryAfter) {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+            req.protocolVersion(), HttpResponseStatus.SERVICE_UNAVAILABLE,
+            Unpooled.EMPTY_BUFFER);
+        res.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfter);
+        return res;
+    }
+
+    public static ChannelFuture sendHttpResponse(ChannelHandlerContext ctx,
+                                                 FullHttpRequest req,
+                                                 FullHttpResponse res) {
+        discardUnreadBody(req);
+
+        // Give error responses without content the shared error page
         HttpResponseStatus responseStatus = res.status();
-        if (responseStatus.code() != 200) {
-            ByteBufUtil.writeUtf8(res.content(), responseStatus.toString());
+        if (responseStatus.code() >= 400 && req.method() != HttpMethod.HEAD &&
+            !res.content().isReadable()) {
+            FullHttpResponse page =
+                res.replace(Responses.errorBody(responseStatus));
+            res.release();
+            res = page;
         }
 
-        HttpUtil.setContentLength(res, res.content().readableBytes());
-        ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
+        // Responses to HEAD requests carry the length of the content they
+        // would have sent, and 304 responses carry no length at all
+        if (responseStatus.code() != 304 &&
+            !res.headers().contains(HttpHeaderNames.CONTENT_LENGTH)) {
+            HttpUtil.setContentLength(res, res.content().readableBytes());
+        }
+        setKeepAlive(req, res);
+        ChannelFuture future = ctx.writeAndFlush(res);
+        finishResponse(req, future);
+        return future;
+    }
+
+    /**
+     * Drops the rest of a streamed request body which the handler did not
+     * read. The connection cannot be reused while the client may still be
+     * sending, so it is closed after the response.
+     * @param req The request being responded to
+     */
+    public static void discardUnreadBody(HttpRequest req) {
+        if (req instanceof StreamedHttpRequest streamed) {
+            if (!streamed.body().isReceived()) {
+                HttpUtil.setKeepAlive(req, false);
+            }
+            streamed.body().discard();
+        }
+    }
+
+    /**
+     * Sets the Connection header of a response according to whether the
+     * connection will be kept alive after the request
+     * @param req The request being responded to
+     * @param res The response
+     */
+    public static void setKeepAlive(HttpRequest req, HttpResponse res) {
+        HttpUtil.setKeepAlive(res, HttpUtil.isKeepAlive(req));
+    }
+
+    /**
+     * Closes the connection once the last write of a response completes,
+     * unless it should be kept alive for further requests
+     * @param req The request being responded to
+     * @param future The future for the last write of the response
+     */
+    public static void finishResponse(HttpRequest req, ChannelFuture future) {
+        future.addListener(HttpUtil.isKeepAlive(req)
+                               ? ChannelFutureListener.CLOSE_ON_FAILURE
+                               : ChannelFutureListener.CLOSE);
     }
 }
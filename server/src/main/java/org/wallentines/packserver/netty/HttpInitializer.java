@@ -0,0 +1,281 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLException;
+import org.jetbrains.annotations.Nullable;
+import org.wallentines.packserver.ServerConfig;
+import org.wallentines.packserver.WebServer;
+
+/**
+ * Sets up the pipeline for new connections. Without TLS, clients may speak
+ * HTTP/1.1, upgrade to h2c, or start with the HTTP/2 preface. With TLS, the
+ * protocol is negotiated through ALPN. Each HTTP/2 stream gets its own child
+ * channel which is given the same handlers as an HTTP/1.1 connection.
+ */
+public class HttpInitializer extends ChannelInitializer<Channel> {
+
+    public static final int MAX_CONTENT_LENGTH = 1024 * 1024 * 512;
+
+    // Only uploads are streamed, so other requests need little more than
+    // their headers
+    public static final int MAX_AGGREGATED_LENGTH = 1024 * 1024;
+    private static final AsciiString ALT_SVC = AsciiString.cached("alt-svc");
+
+    private final WebServer server;
+    private final SslContext sslContext;
+    private final AltSvcHandler altSvcHandler;
+
+    /**
+     * Creates an initializer for the TCP listener
+     * @param sslContext The context to accept TLS connections with, if any
+     * @param http3 Whether an HTTP/3 listener is running, and should be
+     *     advertised to clients
+     */
+    public HttpInitializer(WebServer server, @Nullable SslContext sslContext,
+                           boolean http3) {
+        this.server = server;
+        this.sslContext = sslContext;
+        this.altSvcHandler =
+            http3 ? new AltSvcHandler("h3=\":" + server.config().http3Port() +
+                                      "\"; ma=86400")
+                  : null;
+    }
+
+    @Override
+    protected void initChannel(Channel channel) {
+
+        ChannelPipeline pipeline = channel.pipeline();
+
+        // Output progress counts as activity, so slow downloads are not
+        // mistaken for idle clients
+        pipeline.addLast(new IdleStateHandler(
+            true, 0, 0, server.config().idleTimeout(), TimeUnit.SECONDS));
+
+        if (sslContext != null) {
+            pipeline.addLast(sslContext.newHandler(channel.alloc()))
+                .addLast(new AlpnHandler());
+
+        } else if (server.config().http2()) {
+            HttpServerCodec sourceCodec = new HttpServerCodec();
+            HttpServerUpgradeHandler upgradeHandler =
+                new HttpServerUpgradeHandler(sourceCodec, this::newUpgradeCodec);
+
+            pipeline
+                .addLast(new CleartextHttp2ServerUpgradeHandler(
+                    sourceCodec, upgradeHandler, new Http2Initializer()))
+                .addLast(new Http1Fallback());
+
+        } else {
+            pipeline.addLast(new HttpServerCodec());
+            addHttpHandlers(pipeline);
+        }
+    }
+
+    /**
+     * Creates an SSL context from the certificate and key files in the
+     * server config
+     * @return An SSL context, or null if TLS is not configured
+     */
+    @Nullable
+    public static SslContext createSslContext(ServerConfig config)
+        throws SSLException {
+
+        String cert = config.tlsCertificate();
+        String key = config.tlsKey();
+        if (cert == null || key == null) {
+            return null;
+        }
+
+        SslContextBuilder builder =
+            SslContextBuilder.forServer(new File(cert), new File(key));
+        if (config.http2()) {
+            builder
+                .ciphers(Http2SecurityUtil.CIPHERS,
+                         SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior
+                        .NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior
+                        .ACCEPT,
+                    ApplicationProtocolNames.HTTP_2,
+                    ApplicationProtocolNames.HTTP_1_1));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Adds the handlers which process decoded HTTP requests
+     * @param pipeline The pipeline to add handlers to
+     * @param server The server to handle requests for
+     */
+    public static void addRequestHandlers(ChannelPipeline pipeline,
+                                          WebServer server) {
+        pipeline.addLast(server.connectionManager().trafficShaper())
+            .addLast(new StreamingHandler(server, MAX_CONTENT_LENGTH))
+            .addLast(new HttpObjectAggregator(MAX_AGGREGATED_LENGTH))
+            .addLast(new ChunkedWriteHandler())
+            .addLast(new HttpHandler(server));
+    }
+
+    private void addHttpHandlers(ChannelPipeline pipeline) {
+        if (altSvcHandler != null) {
+            pipeline.addLast(altSvcHandler);
+        }
+        addRequestHandlers(pipeline, server);
+    }
+
+    private void addHttp2Handlers(ChannelPipeline pipeline) {
+        pipeline.addLast(Http2FrameCodecBuilder.forServer().build())
+            .addLast(new Http2MultiplexHandler(new StreamInitializer()))
+            .addLast(Http2IdleHandler.INSTANCE);
+    }
+
+    private HttpServerUpgradeHandler.UpgradeCodec
+    newUpgradeCodec(CharSequence protocol) {
+        if (AsciiString.contentEquals(
+                Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+            return new Http2ServerUpgradeCodec(
+                Http2FrameCodecBuilder.forServer().build(),
+                new Http2MultiplexHandler(new StreamInitializer()),
+                Http2IdleHandler.INSTANCE);
+        }
+        return null;
+    }
+
+    /**
+     * Installs the HTTP/2 codec once a cleartext client sends the HTTP/2
+     * connection preface
+     */
+    private class Http2Initializer extends ChannelInitializer<Channel> {
+        @Override
+        protected void initChannel(Channel channel) {
+            addHttp2Handlers(channel.pipeline());
+        }
+    }
+
+    /**
+     * Sets up a child channel for a single HTTP/2 stream. Stream frames are
+     * converted to HTTP/1.1 objects, so the same handlers serve both
+     * protocols. The child channel only becomes writable while the stream's
+     * flow-control window is open, so chunked pack bodies follow it.
+     */
+    private class StreamInitializer extends ChannelInitializer<Channel> {
+        @Override
+        protected void initChannel(Channel channel) {
+            ChannelPipeline pipeline = channel.pipeline();
+            pipeline.addLast(new Http2StreamFrameToHttpObjectCodec(true));
+            addHttpHandlers(pipeline);
+        }
+    }
+
+    /**
+     * Adds the HTTP/1.1 handlers once a cleartext client sends a request
+     * without upgrading
+     */
+    private class Http1Fallback extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpMessage) {
+                ChannelPipeline pipeline = ctx.pipeline();
+                addHttpHandlers(pipeline);
+                pipeline.remove(this);
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    /**
+     * Advertises the HTTP/3 listener on HTTP/1.1 and HTTP/2 responses
+     */
+    @ChannelHandler.Sharable
+    private static class AltSvcHandler extends ChannelOutboundHandlerAdapter {
+
+        private final String value;
+
+        AltSvcHandler(String value) { this.value = value; }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg,
+                          ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse res) {
+                res.headers().set(ALT_SVC, value);
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    /**
+     * Closes idle HTTP/2 connections. Requests are handled on stream
+     * channels, so the idle event from the connection never reaches an
+     * HttpHandler. Connections with open streams are left alone, since
+     * those streams may be waiting for admission.
+     */
+    @ChannelHandler.Sharable
+    private static class Http2IdleHandler
+        extends ChannelInboundHandlerAdapter {
+
+        static final Http2IdleHandler INSTANCE = new Http2IdleHandler();
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+            throws Exception {
+            if (!(evt instanceof IdleStateEvent)) {
+                super.userEventTriggered(ctx, evt);
+                return;
+            }
+            Http2FrameCodec codec = ctx.pipeline().get(Http2FrameCodec.class);
+            if (codec != null && codec.connection().numActiveStreams() > 0) {
+                return;
+            }
+            ctx.writeAndFlush(new DefaultHttp2GoAwayFrame(Http2Error.NO_ERROR))
+                .addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private class AlpnHandler extends ApplicationProtocolNegotiationHandler {
+
+        AlpnHandler() { super(ApplicationProtocolNames.HTTP_1_1); }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx,
+                                         String protocol) {
+            ChannelPipeline pipeline = ctx.pipeline();
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                addHttp2Handlers(pipeline);
+            } else if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
+                pipeline.addLast(new HttpServerCodec());
+                addHttpHandlers(pipeline);
+            } else {
+                throw new IllegalStateException("Unknown protocol: " +
+                                                protocol);
+            }
+        }
+    }
+}
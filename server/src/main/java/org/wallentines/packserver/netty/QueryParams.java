@@ -0,0 +1,69 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The query parameters of a request URI. Parameters are found by scanning
+ * the URI in place when they are asked for, so nothing is allocated for
+ * parameters a handler never reads. Only the first value of a parameter is
+ * returned.
+ */
+public class QueryParams {
+
+    private final String uri;
+    private final int start;
+
+    public QueryParams(String uri) {
+        this.uri = uri;
+        int query = uri.indexOf('?');
+        this.start = query == -1 ? uri.length() : query + 1;
+    }
+
+    /**
+     * Gets the value of a query parameter
+     * @param name The parameter's name
+     * @return The decoded value, an empty string if the parameter has no
+     *     value, or null if it is absent
+     */
+    @Nullable
+    public String get(String name) {
+
+        int length = uri.length();
+        int pos = start;
+        while (pos < length) {
+
+            int end = uri.indexOf('&', pos);
+            if (end == -1) {
+                end = length;
+            }
+
+            int eq = uri.indexOf('=', pos);
+            int nameEnd = eq == -1 || eq > end ? end : eq;
+            if (nameEnd - pos == name.length() &&
+                uri.regionMatches(pos, name, 0, name.length())) {
+                return decode(nameEnd == end ? end : nameEnd + 1, end);
+            }
+
+            pos = end + 1;
+        }
+
+        return null;
+    }
+
+    /**
+     * Determines whether a query parameter is present
+     */
+    public boolean has(String name) { return get(name) != null; }
+
+    private String decode(int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = uri.charAt(i);
+            if (c == '%' || c == '+') {
+                return QueryStringDecoder.decodeComponent(
+                    uri.substring(from, to));
+            }
+        }
+        return uri.substring(from, to);
+    }
+}
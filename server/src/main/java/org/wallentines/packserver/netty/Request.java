@@ -0,0 +1,116 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import java.util.concurrent.CompletableFuture;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A request being handled, and the means to respond to it. Each respond
+ * method returns a completed stage holding the future for the response's
+ * last write, so handlers can return it directly.
+ */
+public class Request {
+
+    private final ChannelHandlerContext ctx;
+    private final FullHttpRequest req;
+    private QueryParams query;
+    private RequestBody body;
+
+    public Request(ChannelHandlerContext ctx, FullHttpRequest req) {
+        this.ctx = ctx;
+        this.req = req;
+    }
+
+    public ChannelHandlerContext ctx() { return ctx; }
+
+    public FullHttpRequest http() { return req; }
+
+    public HttpMethod method() { return req.method(); }
+
+    public HttpVersion version() { return req.protocolVersion(); }
+
+    public HttpHeaders headers() { return req.headers(); }
+
+    public ByteBuf content() { return req.content(); }
+
+    public ByteBufAllocator alloc() { return ctx.alloc(); }
+
+    public QueryParams query() {
+        if (query == null) {
+            query = new QueryParams(req.uri());
+        }
+        return query;
+    }
+
+    /**
+     * Gets the value of a query parameter
+     * @return The decoded value, or null if it is absent
+     */
+    @Nullable
+    public String param(String name) {
+        return query().get(name);
+    }
+
+    /**
+     * Gets the body of the request. Bodies of streaming routes are read as
+     * they arrive, while others are already in memory.
+     */
+    public RequestBody body() {
+        if (body == null) {
+            body = req instanceof StreamedHttpRequest streamed
+                       ? streamed.body()
+                       : RequestBody.of(ctx.channel(), req);
+        }
+        return body;
+    }
+
+    /**
+     * Sends a complete response
+     */
+    public CompletableFuture<ChannelFuture> respond(FullHttpResponse res) {
+        return CompletableFuture.completedFuture(
+            HttpHandler.sendHttpResponse(ctx, req, res));
+    }
+
+    /**
+     * Sends a response with no content. Error responses are given a shared
+     * error page.
+     */
+    public CompletableFuture<ChannelFuture>
+    respond(HttpResponseStatus status) {
+        ByteBuf content = status.code() >= 400 && method() != HttpMethod.HEAD
+                              ? Responses.errorBody(status)
+                              : Unpooled.EMPTY_BUFFER;
+        return respond(new DefaultFullHttpResponse(version(), status, content));
+    }
+
+    /**
+     * Sends a successful response with a body
+     */
+    public CompletableFuture<ChannelFuture> respond(ByteBuf content) {
+        return respond(new DefaultFullHttpResponse(
+            version(), HttpResponseStatus.OK, content));
+    }
+
+    /**
+     * Sends a response whose body is streamed after the headers
+     * @param res The response headers
+     * @param body The response body
+     */
+    public CompletableFuture<ChannelFuture> stream(HttpResponse res,
+                                                   ResponseBody body) {
+        HttpHandler.discardUnreadBody(req);
+        HttpUtil.setContentLength(res, body.length());
+        HttpHandler.setKeepAlive(req, res);
+
+        ctx.write(res);
+        ChannelFuture future = body.write(ctx);
+        HttpHandler.finishResponse(req, future);
+        return CompletableFuture.completedFuture(future);
+    }
+}
@@ -0,0 +1,250 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The body of a request, delivered in chunks as it arrives rather than
+ * aggregated in memory. Chunks are buffered until a sink subscribes, and are
+ * then passed to it one at a time on an executor, so the sink may block on
+ * the filesystem. Reading from the connection pauses while too much of the
+ * body is buffered.
+ */
+public class RequestBody {
+
+    private static final int HIGH_WATER_MARK = 1024 * 1024;
+    private static final int LOW_WATER_MARK = 256 * 1024;
+
+    private final Channel channel;
+    private final HttpRequest head;
+    private final Executor executor;
+    private final long maxLength;
+
+    private final ArrayDeque<HttpContent> queue = new ArrayDeque<>();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private long queuedBytes;
+    private long receivedBytes;
+    private boolean received;
+    private boolean paused;
+    private boolean draining;
+    private boolean discarded;
+    private Sink sink;
+
+    /**
+     * Creates a request body which will be filled as chunks arrive
+     * @param channel The channel the body is read from
+     * @param head The request the body belongs to, without content
+     * @param executor The executor to pass chunks to the sink on
+     * @param maxLength The largest body to accept, in bytes
+     */
+    public RequestBody(Channel channel, HttpRequest head, Executor executor,
+                       long maxLength) {
+        this.channel = channel;
+        this.head = head;
+        this.executor = executor;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Creates a request body from the content of an aggregated request
+     */
+    public static RequestBody of(Channel channel, FullHttpRequest req) {
+        HttpRequest head = new DefaultHttpRequest(
+            req.protocolVersion(), req.method(), req.uri(), req.headers());
+        RequestBody body =
+            new RequestBody(channel, head, Runnable::run, Long.MAX_VALUE);
+        body.offer(new DefaultLastHttpContent(req.content().retain()));
+        return body;
+    }
+
+    /**
+     * The request this body belongs to, without content
+     */
+    public HttpRequest head() { return head; }
+
+    /**
+     * Starts passing the body to a sink. If the client is waiting for
+     * permission to send the body, it is given now.
+     * @param sink The sink to receive chunks
+     * @return A future which completes once the sink has received the last
+     *     chunk, or fails if the body could not be read
+     */
+    public CompletableFuture<Void> subscribe(Sink sink) {
+
+        boolean sendContinue;
+        synchronized (this) {
+            if (this.sink != null) {
+                throw new IllegalStateException("The body is already read");
+            }
+            this.sink = sink;
+            sendContinue = !received && queue.isEmpty() &&
+                           HttpUtil.is100ContinueExpected(head);
+        }
+
+        if (sendContinue) {
+            channel.writeAndFlush(new DefaultFullHttpResponse(
+                head.protocolVersion(), HttpResponseStatus.CONTINUE));
+        }
+        scheduleDrain();
+        return done;
+    }
+
+    /**
+     * Determines whether the whole body has been received from the client
+     */
+    public synchronized boolean isReceived() { return received; }
+
+    /**
+     * Releases any buffered chunks and drops the rest of the body as it
+     * arrives
+     */
+    public void discard() {
+        synchronized (this) {
+            if (discarded) {
+                return;
+            }
+            discarded = true;
+            releaseQueue();
+        }
+        resume();
+    }
+
+    /**
+     * Adds a chunk of the body. The chunk is released once it is consumed.
+     */
+    void offer(HttpContent content) {
+
+        Throwable error = null;
+        synchronized (this) {
+            if (content instanceof LastHttpContent) {
+                received = true;
+            }
+            if (discarded || done.isDone()) {
+                content.release();
+                return;
+            }
+
+            receivedBytes += content.content().readableBytes();
+            if (receivedBytes > maxLength) {
+                content.release();
+                error = new TooLongFrameException("Request body is larger "
+                                                  + "than " + maxLength +
+                                                  " bytes");
+            } else {
+                queue.add(content);
+                queuedBytes += content.content().readableBytes();
+                if (!paused && queuedBytes > HIGH_WATER_MARK) {
+                    paused = true;
+                    channel.config().setAutoRead(false);
+                }
+            }
+        }
+
+        if (error != null) {
+            fail(error);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Fails the body, for example because the connection closed before it
+     * was fully received
+     */
+    void fail(Throwable error) {
+        synchronized (this) {
+            discarded = true;
+            releaseQueue();
+        }
+        resume();
+        done.completeExceptionally(error);
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (sink == null || draining || queue.isEmpty()) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (Throwable t) {
+            synchronized (this) {
+                draining = false;
+            }
+            fail(t);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+
+            HttpContent content;
+            boolean resume = false;
+            synchronized (this) {
+                content = queue.poll();
+                if (content == null) {
+                    draining = false;
+                    return;
+                }
+                queuedBytes -= content.content().readableBytes();
+                if (paused && queuedBytes < LOW_WATER_MARK) {
+                    paused = false;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                resume();
+            }
+
+            try {
+                sink.onContent(content);
+                if (content instanceof LastHttpContent) {
+                    done.complete(null);
+                }
+            } catch (Throwable t) {
+                fail(t);
+            } finally {
+                content.release();
+            }
+        }
+    }
+
+    private void releaseQueue() {
+        HttpContent content;
+        while ((content = queue.poll()) != null) {
+            content.release();
+        }
+        queuedBytes = 0;
+        paused = false;
+    }
+
+    private void resume() {
+        if (!channel.config().isAutoRead()) {
+            channel.config().setAutoRead(true);
+            channel.read();
+        }
+    }
+
+    /**
+     * Receives the chunks of a request body
+     */
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * Receives the next chunk of the body. The chunk is released after
+         * this returns.
+         * @param content The chunk, which is a LastHttpContent for the final
+         *     chunk
+         * @throws Exception If the chunk could not be consumed, which fails
+         *     the body
+         */
+        void onContent(HttpContent content) throws Exception;
+    }
+}
@@ -0,0 +1,20 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.channel.ChannelFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Handles requests to one endpoint
+ */
+@FunctionalInterface
+public interface RequestHandler {
+
+    /**
+     * Handles a request. Handlers may respond immediately, or finish later
+     * on another thread.
+     * @param request The request to handle
+     * @return A stage which completes once the handler has started the last
+     *     write of its response, holding that write's future
+     */
+    CompletionStage<ChannelFuture> handle(Request request);
+}
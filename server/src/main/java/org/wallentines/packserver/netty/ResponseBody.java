@@ -0,0 +1,315 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * The body of a streamed HTTP response, made up of file ranges and buffers.
+ * File ranges are sent with sendfile when the pipeline allows it, and are
+ * otherwise read in chunks as the channel becomes writable.
+ */
+public class ResponseBody {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    // A traffic shaper counts each file region as a single write, so regions
+    // are kept small while shaping to keep the rate smooth
+    private static final long SHAPED_REGION_SIZE = 1024 * 1024;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private long length;
+
+    public ResponseBody addFile(File file, long offset, long length) {
+        segments.add(new FileSegment(file, offset, length));
+        this.length += length;
+        return this;
+    }
+
+    public ResponseBody addBuffer(ByteBuf buffer) {
+        segments.add(new BufferSegment(buffer));
+        this.length += buffer.readableBytes();
+        return this;
+    }
+
+    public long length() { return length; }
+
+    /**
+     * Writes the body and the terminating LastHttpContent to the channel.
+     * The response head must already have been written.
+     * @return The future for the last write
+     */
+    public ChannelFuture write(ChannelHandlerContext ctx) {
+
+        if (canSendFile(ctx)) {
+            TrafficShaper shaper = ctx.pipeline().get(TrafficShaper.class);
+            long regionSize = shaper != null && shaper.isLimited()
+                                  ? SHAPED_REGION_SIZE
+                                  : Long.MAX_VALUE;
+
+            for (Segment seg : segments) {
+                if (seg instanceof FileSegment file) {
+                    for (long written = 0; written < file.length;
+                         written += regionSize) {
+                        ctx.write(new DefaultFileRegion(
+                            file.file, file.offset + written,
+                            Math.min(regionSize, file.length - written)));
+                    }
+                } else if (seg instanceof BufferSegment buf) {
+                    ctx.write(new DefaultHttpContent(buf.buffer));
+                }
+            }
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+
+        Queue<ChunkedInput<ByteBuf>> inputs = new ArrayDeque<>();
+        for (Segment seg : segments) {
+            if (seg instanceof FileSegment file) {
+                inputs.add(
+                    new FileInput(file.file, file.offset, file.length));
+            } else if (seg instanceof BufferSegment buf) {
+                inputs.add(new BufferInput(buf.buffer));
+            }
+        }
+        return ctx.writeAndFlush(
+            new HttpChunkedInput(new CompositeInput(inputs, length)));
+    }
+
+    /**
+     * Releases any buffers held by a body which will not be written.
+     */
+    public void release() {
+        for (Segment seg : segments) {
+            if (seg instanceof BufferSegment buf) {
+                buf.buffer.release();
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * Determines whether file ranges can be sent with sendfile. File regions
+     * bypass the pipeline's byte-level handlers, so they cannot be used when
+     * the connection is encrypted, or on HTTP/2 and HTTP/3 streams, where the
+     * body must be split into frames.
+     */
+    private static boolean canSendFile(ChannelHandlerContext ctx) {
+        return ctx.channel() instanceof SocketChannel &&
+            ctx.pipeline().get(SslHandler.class) == null;
+    }
+
+    private sealed interface Segment permits FileSegment, BufferSegment {}
+
+    private record FileSegment(File file, long offset, long length)
+        implements Segment {}
+
+    private record BufferSegment(ByteBuf buffer) implements Segment {}
+
+    private static class FileInput implements ChunkedInput<ByteBuf> {
+
+        private final File file;
+        private final long startOffset;
+        private final long endOffset;
+        private long offset;
+        private FileChannel channel;
+
+        FileInput(File file, long offset, long length) {
+            this.file = file;
+            this.startOffset = offset;
+            this.endOffset = offset + length;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return offset >= endOffset;
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator)
+            throws Exception {
+
+            if (offset >= endOffset) {
+                return null;
+            }
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(),
+                                           StandardOpenOption.READ);
+            }
+
+            int chunkSize = (int)Math.min(CHUNK_SIZE, endOffset - offset);
+            ByteBuf buf = allocator.buffer(chunkSize);
+            boolean release = true;
+            try {
+                int read = 0;
+                while (read < chunkSize) {
+                    int r =
+                        buf.writeBytes(channel, offset + read, chunkSize - read);
+                    if (r < 0) {
+                        throw new EOFException("Unexpected end of " + file);
+                    }
+                    read += r;
+                }
+                offset += read;
+                release = false;
+                return buf;
+            } finally {
+                if (release) {
+                    buf.release();
+                }
+            }
+        }
+
+        @Override
+        public long length() {
+            return endOffset - startOffset;
+        }
+
+        @Override
+        public long progress() {
+            return offset - startOffset;
+        }
+    }
+
+    private static class BufferInput implements ChunkedInput<ByteBuf> {
+
+        private final ByteBuf buffer;
+        private final long length;
+
+        BufferInput(ByteBuf buffer) {
+            this.buffer = buffer;
+            this.length = buffer.readableBytes();
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return !buffer.isReadable();
+        }
+
+        @Override
+        public void close() {
+            if (buffer.refCnt() > 0) {
+                buffer.release();
+            }
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) {
+            if (!buffer.isReadable()) {
+                return null;
+            }
+            return buffer.readRetainedSlice(
+                Math.min(CHUNK_SIZE, buffer.readableBytes()));
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long progress() {
+            return length - buffer.readableBytes();
+        }
+    }
+
+    private static class CompositeInput implements ChunkedInput<ByteBuf> {
+
+        private final Queue<ChunkedInput<ByteBuf>> inputs;
+        private final long length;
+        private long progress;
+
+        CompositeInput(Queue<ChunkedInput<ByteBuf>> inputs, long length) {
+            this.inputs = inputs;
+            this.length = length;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            while (!inputs.isEmpty() && inputs.peek().isEndOfInput()) {
+                inputs.poll().close();
+            }
+            return inputs.isEmpty();
+        }
+
+        @Override
+        public void close() throws Exception {
+            Exception error = null;
+            while (!inputs.isEmpty()) {
+                try {
+                    inputs.poll().close();
+                } catch (Exception ex) {
+                    error = ex;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator)
+            throws Exception {
+            if (isEndOfInput()) {
+                return null;
+            }
+            ByteBuf out = inputs.peek().readChunk(allocator);
+            if (out != null) {
+                progress += out.readableBytes();
+            }
+            return out;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long progress() {
+            return progress;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bodies for common error responses, encoded once and shared between all
+ * connections
+ */
+public final class Responses {
+
+    private static final Map<HttpResponseStatus, ByteBuf> ERROR_BODIES =
+        new HashMap<>();
+
+    static {
+        for (HttpResponseStatus status : new HttpResponseStatus[] {
+                 HttpResponseStatus.BAD_REQUEST, HttpResponseStatus.FORBIDDEN,
+                 HttpResponseStatus.NOT_FOUND, HttpResponseStatus.CONFLICT,
+                 HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+                 HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+                 HttpResponseStatus.INTERNAL_SERVER_ERROR,
+                 HttpResponseStatus.SERVICE_UNAVAILABLE}) {
+            ERROR_BODIES.put(status, encode(status));
+        }
+    }
+
+    private Responses() {}
+
+    /**
+     * Gets the body of an error page for a status. The buffer does not need
+     * to be released.
+     */
+    public static ByteBuf errorBody(HttpResponseStatus status) {
+        ByteBuf body = ERROR_BODIES.get(status);
+        if (body == null) {
+            return Unpooled.copiedBuffer(status.toString(),
+                                         StandardCharsets.UTF_8);
+        }
+        return body.duplicate();
+    }
+
+    private static ByteBuf encode(HttpResponseStatus status) {
+        byte[] bytes = status.toString().getBytes(StandardCharsets.UTF_8);
+        return Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(bytes.length).writeBytes(bytes).asReadOnly());
+    }
+}
@@ -0,0 +1,132 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.Nullable;
+import org.wallentines.packserver.AdmissionController;
+
+/**
+ * Maps request methods and paths to handlers. Routes are compiled once when
+ * the server starts, and matched against the request URI in place.
+ */
+public class Router {
+
+    /**
+     * Responds to requests which match no endpoint
+     */
+    public static final Route NOT_FOUND = new Route(
+        req -> req.respond(HttpResponseStatus.NOT_FOUND), null, false);
+
+    /**
+     * Responds to requests with an unsupported method, which could not be
+     * decoded, or which try to open a websocket
+     */
+    public static final Route BAD_REQUEST = new Route(
+        req -> req.respond(HttpResponseStatus.BAD_REQUEST), null, false);
+
+    private final String baseUrl;
+    private final List<Endpoint> building = new ArrayList<>();
+    private Endpoint[] endpoints = new Endpoint[0];
+
+    public Router(String baseUrl) { this.baseUrl = baseUrl; }
+
+    /**
+     * Adds a route
+     * @param method The method the route accepts
+     * @param path The endpoint's path, relative to the base URL
+     * @param route The route to take
+     * @return This router
+     */
+    public Router add(HttpMethod method, String path, Route route) {
+        Endpoint endpoint = null;
+        for (Endpoint e : building) {
+            if (e.path.equals(path)) {
+                endpoint = e;
+                break;
+            }
+        }
+        if (endpoint == null) {
+            endpoint = new Endpoint(path);
+            building.add(endpoint);
+        }
+        endpoint.routes.put(method, route);
+        endpoints = building.toArray(Endpoint[] ::new);
+        return this;
+    }
+
+    /**
+     * Finds the route for a request
+     * @return The matching route, or NOT_FOUND or BAD_REQUEST if there is none
+     */
+    public Route route(HttpRequest req) {
+
+        if (!req.decoderResult().isSuccess() ||
+            req.headers().contains(HttpHeaderNames.UPGRADE,
+                                   HttpHeaderValues.WEBSOCKET, true)) {
+            return BAD_REQUEST;
+        }
+
+        String uri = req.uri();
+        if (!uri.startsWith(baseUrl)) {
+            return NOT_FOUND;
+        }
+
+        int start = baseUrl.length();
+        if (start < uri.length() && uri.charAt(start) == '/') {
+            start++;
+        }
+        int end = uri.indexOf('?', start);
+        if (end == -1) {
+            end = uri.length();
+        }
+
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.matches(uri, start, end)) {
+                Route route = endpoint.routes.get(req.method());
+                return route == null ? BAD_REQUEST : route;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * A handler and the resources it runs with
+     * @param handler The handler for requests
+     * @param admission The admission controller requests must pass, or null
+     *     if they are always admitted
+     * @param blocking Whether the handler may block, and so must not run on
+     *     an event loop
+     * @param streaming Whether the request body is streamed to the handler
+     *     rather than aggregated in memory
+     */
+    public record Route(RequestHandler handler,
+                        @Nullable AdmissionController admission,
+                        boolean blocking, boolean streaming) {
+
+        public Route(RequestHandler handler,
+                     @Nullable AdmissionController admission,
+                     boolean blocking) {
+            this(handler, admission, blocking, false);
+        }
+    }
+
+    private static class Endpoint {
+
+        private final String path;
+        private final Map<HttpMethod, Route> routes = new HashMap<>();
+
+        Endpoint(String path) { this.path = path; }
+
+        boolean matches(String uri, int start, int end) {
+            return end - start == path.length() &&
+                uri.regionMatches(start, path, 0, path.length());
+        }
+    }
+}
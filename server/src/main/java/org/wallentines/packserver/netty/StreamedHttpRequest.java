@@ -0,0 +1,38 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * A request whose body is streamed through a RequestBody rather than
+ * aggregated. It carries no content of its own.
+ */
+public class StreamedHttpRequest extends DefaultFullHttpRequest {
+
+    private final RequestBody body;
+
+    public StreamedHttpRequest(HttpRequest head, RequestBody body) {
+        super(head.protocolVersion(), head.method(), head.uri(),
+              Unpooled.EMPTY_BUFFER, head.headers(), new DefaultHttpHeaders());
+        setDecoderResult(head.decoderResult());
+        this.body = body;
+    }
+
+    public RequestBody body() { return body; }
+
+    // Requests dropped without a response still stop their body from being
+    // buffered
+    @Override
+    public boolean release() {
+        body.discard();
+        return super.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        body.discard();
+        return super.release(decrement);
+    }
+}
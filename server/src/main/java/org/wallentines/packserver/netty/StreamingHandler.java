@@ -0,0 +1,72 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Executor;
+import org.wallentines.packserver.WebServer;
+
+/**
+ * Takes requests to streaming routes out of the pipeline before they are
+ * aggregated. The request head is passed on straight away as a
+ * StreamedHttpRequest, and its content is fed to the request's body as it
+ * arrives.
+ */
+public class StreamingHandler extends ChannelInboundHandlerAdapter {
+
+    private final WebServer server;
+    private final long maxLength;
+    private RequestBody current;
+
+    /**
+     * Creates a streaming handler
+     * @param server The server to route requests with
+     * @param maxLength The largest body to accept, in bytes
+     */
+    public StreamingHandler(WebServer server, long maxLength) {
+        this.server = server;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg)
+        throws Exception {
+
+        if (msg instanceof HttpRequest req &&
+            !(msg instanceof FullHttpRequest) &&
+            server.router().route(req).streaming()) {
+
+            Executor executor = server.blockingExecutor();
+            current = new RequestBody(ctx.channel(), req,
+                                      executor == null ? ctx.executor()
+                                                       : executor,
+                                      maxLength);
+            ctx.fireChannelRead(new StreamedHttpRequest(req, current));
+            return;
+        }
+
+        if (current != null && msg instanceof HttpContent content) {
+            RequestBody body = current;
+            if (content instanceof LastHttpContent) {
+                current = null;
+            }
+            body.offer(content);
+            return;
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (current != null) {
+            current.fail(new ClosedChannelException());
+            current = null;
+        }
+        super.channelInactive(ctx);
+    }
+}
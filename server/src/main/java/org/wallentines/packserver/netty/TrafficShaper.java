@@ -0,0 +1,57 @@
+package org.wallentines.packserver.netty;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Limits outgoing bandwidth, both in total and for each channel, while
+ * sharing the total fairly between active transfers. Only streamed response
+ * bodies are counted. Complete responses, such as metadata lookups and
+ * errors, pass without delay so they are never stuck behind pack downloads.
+ */
+@ChannelHandler.Sharable
+public class TrafficShaper extends GlobalChannelTrafficShapingHandler {
+
+    private static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * Creates a traffic shaper
+     * @param executor The executor to schedule delayed writes on
+     * @param globalLimit The total number of bytes per second to send, or 0
+     *     for no limit
+     * @param channelLimit The number of bytes per second to send on each
+     *     channel, or 0 for no limit
+     */
+    public TrafficShaper(ScheduledExecutorService executor, long globalLimit,
+                         long channelLimit) {
+        super(executor, globalLimit, 0, channelLimit, 0, CHECK_INTERVAL);
+    }
+
+    /**
+     * Determines whether any limit is currently being applied
+     */
+    public boolean isLimited() {
+        return getWriteLimit() > 0 || getWriteChannelLimit() > 0;
+    }
+
+    @Override
+    protected long calculateSize(Object msg) {
+        if (msg instanceof FullHttpMessage) {
+            return 0;
+        }
+        return super.calculateSize(msg);
+    }
+
+    @Override
+    public String toString() {
+        return "global limit: " + formatLimit(getWriteLimit()) +
+            ", connection limit: " + formatLimit(getWriteChannelLimit()) +
+            ", current: " + trafficCounter().lastWriteThroughput() + " B/s";
+    }
+
+    private static String formatLimit(long limit) {
+        return limit > 0 ? limit + " B/s" : "none";
+    }
+}
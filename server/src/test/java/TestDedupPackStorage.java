@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.wallentines.packserver.DedupPackStorage;
+import org.wallentines.packserver.LocalPackStorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+public class TestDedupPackStorage {
+
+    private static final int ITERATIONS = 50;
+
+    private Path dir;
+    private DedupPackStorage storage;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = TestUtil.createTempDirectory("dedup");
+        Path packs = Files.createDirectories(dir.resolve("packs"));
+        storage = new DedupPackStorage(dir.resolve("dedup"), new LocalPackStorage(packs), 0, 2);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        storage.close();
+        TestUtil.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testSweep() throws IOException {
+
+        byte[] shared = TestUtil.random(1, 8192);
+        byte[] packA = TestUtil.zip(shared, TestUtil.random(2, 8192));
+        byte[] packB = TestUtil.zip(shared, TestUtil.random(3, 8192));
+        store(packA);
+        store(packB);
+
+        storage.delete(TestUtil.sha1(packA));
+        Assertions.assertTrue(storage.sweepChunks(0) > 0);
+
+        // Only the recipe is left to rebuild the pack from
+        storage.hot().delete(TestUtil.sha1(packB));
+        Assertions.assertArrayEquals(packB, read(TestUtil.sha1(packB)));
+    }
+
+    @Test
+    public void testSplitDuringSweep() throws Exception {
+
+        byte[] shared = TestUtil.random(1, 65536);
+        for (int i = 0; i < ITERATIONS; i++) {
+
+            // Leaves the shared chunk stored, but unreferenced
+            byte[] packA = TestUtil.zip(shared, TestUtil.random(i * 2 + 2, 8192));
+            store(packA);
+            storage.delete(TestUtil.sha1(packA));
+
+            byte[] packB = TestUtil.zip(shared, TestUtil.random(i * 2 + 3, 8192));
+            CountDownLatch start = new CountDownLatch(1);
+            CompletableFuture<Void> split = CompletableFuture.runAsync(() -> {
+                try {
+                    start.await();
+                    store(packB);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            CompletableFuture<Long> sweep = CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                    return storage.sweepChunks(0);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            start.countDown();
+            split.join();
+            sweep.join();
+
+            String hash = TestUtil.sha1(packB);
+            storage.hot().delete(hash);
+            Assertions.assertArrayEquals(packB, read(hash), "Pack " + i + " could not be rebuilt");
+            storage.delete(hash);
+        }
+    }
+
+    @Test
+    public void testSmallEntriesChunked() throws IOException {
+
+        byte[][] entries = new byte[1000][];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = TestUtil.random(i, 256);
+        }
+        byte[] pack = TestUtil.zip(entries);
+        String hash = TestUtil.sha1(pack);
+        store(pack);
+
+        // Runs of small entries are stored as chunks rather than inline
+        Assertions.assertTrue(storage.storedRecipe(hash).inlineSize() < 65536 + 1024);
+
+        storage.hot().delete(hash);
+        Assertions.assertArrayEquals(pack, read(hash));
+        Assertions.assertArrayEquals(pack, read(hash));
+
+        storage.delete(hash);
+        Assertions.assertThrows(IOException.class, () -> read(hash));
+    }
+
+    private void store(byte[] pack) throws IOException {
+        storage.write(TestUtil.sha1(pack), new ByteArrayInputStream(pack), pack.length);
+    }
+
+    private byte[] read(String hash) throws IOException {
+        try (InputStream is = storage.read(hash)) {
+            return is.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.wallentines.jwt.FileKeyStore;
+import org.wallentines.jwt.KeyType;
+import org.wallentines.packserver.ExecutionMode;
+import org.wallentines.packserver.ServerConfig;
+import org.wallentines.packserver.TagManager;
+import org.wallentines.packserver.WebServer;
+
+import javax.crypto.KeyGenerator;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares request execution modes under a mix of metadata lookups and pack
+ * downloads. This takes a while, so it only runs when PACK_SERVER_BENCHMARK
+ * is set to true.
+ */
+public class TestExecutionModeBenchmark {
+
+    private static final int PACKS = 16;
+    private static final int PACK_SIZE = 1024 * 1024;
+    private static final int CLIENTS = 64;
+    private static final double DOWNLOAD_RATIO = 0.2;
+
+    @Test
+    public void benchmark() throws Exception {
+
+        Assumptions.assumeTrue(Boolean.parseBoolean(System.getenv("PACK_SERVER_BENCHMARK")));
+        int seconds = Integer.parseInt(System.getenv().getOrDefault("PACK_SERVER_BENCHMARK_SECONDS", "10"));
+
+        Path dir = Files.createTempDirectory("packserver-bench");
+        Path packDir = Files.createDirectories(dir.resolve("packs"));
+        Path tagDir = Files.createDirectories(dir.resolve("tags"));
+
+        FileKeyStore ks = new FileKeyStore(dir, Map.of(KeyType.AES, "key"));
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        ks.setKey("jwt", KeyType.AES, keyGenerator.generateKey());
+
+        TagManager tagManager = new TagManager(tagDir);
+        List<String> tags = new ArrayList<>();
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (int i = 0; i < PACKS; i++) {
+            byte[] data = new byte[PACK_SIZE];
+            ThreadLocalRandom.current().nextBytes(data);
+            String hash = HexFormat.of().formatHex(digest.digest(data));
+            Files.write(packDir.resolve(hash), data);
+            tagManager.pushTag("pack" + i, hash);
+            tags.add("pack" + i);
+        }
+
+        for (ExecutionMode mode : ExecutionMode.values()) {
+
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+
+            ServerConfig config = new ServerConfig(Map.of(
+                    "PACK_SERVER_PORT", Integer.toString(port),
+                    "PACK_SERVER_HTTP2", "false",
+                    "PACK_SERVER_EXECUTION_MODE", mode.name()));
+
+            WebServer server = new WebServer(config, ks.supplier("jwt", KeyType.AES), packDir, tagDir);
+            server.start();
+            try {
+                Result result = run("http://localhost:" + port + "/", tags, seconds);
+                System.out.println(mode + ": " + result);
+                Assertions.assertEquals(0, result.errors.get(), "Requests failed in " + mode + " mode");
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+
+    private static Result run(String baseUrl, List<String> tags, int seconds) throws InterruptedException {
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        Result result = new Result(seconds);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CLIENTS; i++) {
+                clients.execute(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < end) {
+                        String tag = tags.get(random.nextInt(tags.size()));
+                        boolean download = random.nextDouble() < DOWNLOAD_RATIO;
+                        URI uri = URI.create(baseUrl + (download ? "pack" : "has") + "?tag=" + tag);
+
+                        long start = System.nanoTime();
+                        try {
+                            HttpResponse<?> res = client.send(HttpRequest.newBuilder(uri).build(),
+                                    download ? HttpResponse.BodyHandlers.discarding() : HttpResponse.BodyHandlers.ofString());
+                            if (res.statusCode() != 200) {
+                                result.errors.incrementAndGet();
+                                continue;
+                            }
+                        } catch (IOException | InterruptedException ex) {
+                            result.errors.incrementAndGet();
+                            continue;
+                        }
+                        result.record(download, System.nanoTime() - start);
+                    }
+                });
+            }
+        }
+
+        return result;
+    }
+
+    private static class Result {
+
+        private final int seconds;
+        private final List<Long> metadata = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> downloads = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong errors = new AtomicLong();
+
+        Result(int seconds) {
+            this.seconds = seconds;
+        }
+
+        void record(boolean download, long nanos) {
+            (download ? downloads : metadata).add(nanos);
+        }
+
+        private String summarize(List<Long> latencies) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            if (sorted.isEmpty()) {
+                return "none";
+            }
+            Collections.sort(sorted);
+            return String.format("%.1f req/s, p50 %.2f ms, p99 %.2f ms",
+                    sorted.size() / (double) seconds,
+                    sorted.get(sorted.size() / 2) / 1_000_000.0,
+                    sorted.get((int) (sorted.size() * 0.99)) / 1_000_000.0);
+        }
+
+        @Override
+        public String toString() {
+            return "metadata: " + summarize(metadata) + "; downloads: " + summarize(downloads) + "; errors: " + errors.get();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.wallentines.packserver.DedupPackStorage;
+import org.wallentines.packserver.LocalPackStorage;
+import org.wallentines.packserver.PackManager;
+import org.wallentines.packserver.PackScrubber;
+import org.wallentines.packserver.PackStorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class TestPackScrubber {
+
+    private Path dir;
+    private Path packDir;
+    private Path quarantineDir;
+    private PackManager packManager;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = TestUtil.createTempDirectory("scrub");
+        packDir = Files.createDirectories(dir.resolve("packs"));
+        quarantineDir = dir.resolve("quarantine");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (packManager != null) {
+            packManager.close();
+        }
+        TestUtil.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testCorruptPack() throws IOException {
+
+        LocalPackStorage storage = new LocalPackStorage(packDir);
+        byte[] good = TestUtil.random(1, 4096);
+        byte[] corrupt = TestUtil.random(2, 4096);
+        String corruptHash = TestUtil.sha1(corrupt);
+        corrupt[100] ^= 1;
+        write(storage, TestUtil.sha1(good), good);
+        write(storage, corruptHash, corrupt);
+        open(storage);
+
+        PackScrubber scrubber = new PackScrubber(packManager, null, quarantineDir, 1024L * 1024L * 1024L, 3600);
+        scrubber.scrub();
+
+        Assertions.assertEquals(1, scrubber.corrupt());
+        Assertions.assertEquals(2, scrubber.checked());
+        Assertions.assertTrue(packManager.has(TestUtil.sha1(good)));
+        Assertions.assertFalse(packManager.has(corruptHash));
+        Assertions.assertFalse(Files.exists(storage.localPath(corruptHash)));
+
+        List<Path> quarantined = quarantined();
+        Assertions.assertEquals(1, quarantined.size());
+        Assertions.assertTrue(quarantined.get(0).getFileName().toString().startsWith(corruptHash));
+        Assertions.assertArrayEquals(corrupt, Files.readAllBytes(quarantined.get(0)));
+
+        // Nothing is left to find on the next pass
+        scrubber.scrub();
+        Assertions.assertEquals(1, scrubber.corrupt());
+    }
+
+    @Test
+    public void testCorruptChunk() throws IOException {
+
+        DedupPackStorage storage = new DedupPackStorage(dir.resolve("dedup"), new LocalPackStorage(packDir), 0, 2);
+        byte[] pack = TestUtil.zip(TestUtil.random(3, 65536), TestUtil.random(4, 65536));
+        String hash = TestUtil.sha1(pack);
+        write(storage, hash, pack);
+        open(storage);
+        corruptChunk();
+
+        PackScrubber scrubber = new PackScrubber(packManager, null, quarantineDir, 1024L * 1024L * 1024L, 3600);
+        scrubber.scrub();
+
+        // The materialised copy was intact, so the pack was split again
+        Assertions.assertTrue(packManager.has(hash));
+        Assertions.assertTrue(quarantined().stream().anyMatch(p -> p.getFileName().toString().startsWith("chunk-")));
+        storage.hot().delete(hash);
+        try (InputStream is = storage.read(hash)) {
+            Assertions.assertArrayEquals(pack, is.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testCorruptChunkWithoutCopy() throws IOException {
+
+        DedupPackStorage storage = new DedupPackStorage(dir.resolve("dedup"), new LocalPackStorage(packDir), 0, 2);
+        byte[] pack = TestUtil.zip(TestUtil.random(5, 65536), TestUtil.random(6, 65536));
+        String hash = TestUtil.sha1(pack);
+        write(storage, hash, pack);
+        storage.hot().delete(hash);
+        open(storage);
+        corruptChunk();
+
+        PackScrubber scrubber = new PackScrubber(packManager, null, quarantineDir, 1024L * 1024L * 1024L, 3600);
+        scrubber.scrub();
+
+        // The pack can no longer be rebuilt, so both it and the chunk are moved aside
+        Assertions.assertFalse(packManager.has(hash));
+        Assertions.assertNull(storage.stat(hash));
+        Assertions.assertEquals(2, scrubber.corrupt());
+        Assertions.assertEquals(2, quarantined().size());
+    }
+
+    private void open(PackStorage storage) throws IOException {
+        packManager = new PackManager(packDir, storage);
+        packManager.open();
+    }
+
+    private void corruptChunk() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.resolve("dedup").resolve("chunks"))) {
+            Path chunk = files.filter(Files::isRegularFile).findFirst().orElseThrow();
+            byte[] data = Files.readAllBytes(chunk);
+            data[data.length / 2] ^= 1;
+            Files.write(chunk, data);
+        }
+    }
+
+    private List<Path> quarantined() throws IOException {
+        try (Stream<Path> files = Files.list(quarantineDir)) {
+            return files.toList();
+        }
+    }
+
+    private static void write(PackStorage storage, String hash, byte[] data) throws IOException {
+        storage.write(hash, new ByteArrayInputStream(data), data.length);
+    }
+}
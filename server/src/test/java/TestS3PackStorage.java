@@ -0,0 +1,371 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.wallentines.packserver.LocalPackStorage;
+import org.wallentines.packserver.PackManager;
+import org.wallentines.packserver.PackStorage;
+import org.wallentines.packserver.S3PackStorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the object store storage against an in-process stand-in for S3, which
+ * implements just enough of the API for the storage to use
+ */
+public class TestS3PackStorage {
+
+    private static final String BUCKET = "packs";
+    private static final String PREFIX = "test/";
+
+    private static final Pattern AUTHORIZATION = Pattern.compile(
+            "AWS4-HMAC-SHA256 Credential=access/\\d{8}/us-east-1/s3/aws4_request, " +
+            "SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=\\p{XDigit}{64}");
+
+    private FakeS3 s3;
+    private Path cacheDir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        s3 = new FakeS3();
+        cacheDir = TestUtil.createTempDirectory("s3-cache");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        s3.stop();
+        TestUtil.deleteDirectory(cacheDir);
+    }
+
+    private S3PackStorage createStorage(long cacheCapacity) {
+        return new S3PackStorage(s3.endpoint(), "us-east-1", BUCKET, PREFIX, "access", "secret",
+                new LocalPackStorage(cacheDir), cacheCapacity);
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+
+        S3PackStorage storage = createStorage(0);
+        byte[] data = TestUtil.random(1, 1024);
+        storage.write(TestUtil.HASH_A, new ByteArrayInputStream(data), data.length);
+
+        Assertions.assertArrayEquals(data, s3.objects.get(PREFIX + TestUtil.HASH_A));
+        try (InputStream is = storage.read(TestUtil.HASH_A)) {
+            Assertions.assertArrayEquals(data, is.readAllBytes());
+        }
+        try (InputStream is = storage.read(TestUtil.HASH_A, 100, 50)) {
+            byte[] expected = new byte[50];
+            System.arraycopy(data, 100, expected, 0, 50);
+            Assertions.assertArrayEquals(expected, is.readAllBytes());
+        }
+
+        PackStorage.StoredPack stat = storage.stat(TestUtil.HASH_A);
+        Assertions.assertNotNull(stat);
+        Assertions.assertEquals(data.length, stat.size());
+        Assertions.assertNull(storage.stat(TestUtil.HASH_B));
+        Assertions.assertThrows(NoSuchFileException.class, () -> storage.read(TestUtil.HASH_B));
+        Assertions.assertEquals(0, s3.badSignatures.get());
+
+        storage.close();
+    }
+
+    @Test
+    public void multipartUpload() throws IOException {
+
+        S3PackStorage storage = createStorage(0);
+        byte[] data = TestUtil.random(2, S3PackStorage.PART_SIZE * 2 + 1234);
+        storage.write(TestUtil.HASH_A, new ByteArrayInputStream(data), data.length);
+
+        Assertions.assertEquals(1, s3.completedUploads.get());
+        Assertions.assertTrue(s3.uploads.isEmpty());
+        Assertions.assertArrayEquals(data, s3.objects.get(PREFIX + TestUtil.HASH_A));
+        Assertions.assertEquals(0, s3.badSignatures.get());
+
+        storage.close();
+    }
+
+    @Test
+    public void listAndDelete() throws IOException {
+
+        S3PackStorage storage = createStorage(0);
+        for (String hash : List.of(TestUtil.HASH_A, TestUtil.HASH_B, TestUtil.HASH_C)) {
+            byte[] data = TestUtil.random(hash.hashCode(), 16);
+            storage.write(hash, new ByteArrayInputStream(data), data.length);
+        }
+        s3.objects.put("other/" + TestUtil.HASH_A, new byte[1]);
+
+        // The fake returns two keys per page, so this also follows continuation tokens
+        List<String> hashes = new ArrayList<>();
+        for (PackStorage.StoredPack pack : storage.list()) {
+            hashes.add(pack.hash());
+            Assertions.assertEquals(16, pack.size());
+        }
+        Assertions.assertEquals(List.of(TestUtil.HASH_A, TestUtil.HASH_B, TestUtil.HASH_C), hashes);
+
+        storage.delete(TestUtil.HASH_B);
+        Assertions.assertFalse(s3.objects.containsKey(PREFIX + TestUtil.HASH_B));
+        Assertions.assertEquals(2, storage.list().size());
+
+        storage.close();
+    }
+
+    @Test
+    public void listWithoutSize() throws IOException {
+
+        S3PackStorage storage = createStorage(0);
+        byte[] data = TestUtil.random(3, 16);
+        storage.write(TestUtil.HASH_A, new ByteArrayInputStream(data), data.length);
+        s3.omitSize = true;
+
+        List<PackStorage.StoredPack> packs = storage.list();
+        Assertions.assertEquals(1, packs.size());
+        Assertions.assertEquals(TestUtil.HASH_A, packs.get(0).hash());
+        Assertions.assertEquals(16, packs.get(0).size());
+
+        storage.close();
+    }
+
+    @Test
+    public void missingPacksRemembered() throws IOException {
+
+        PackManager packManager = new PackManager(cacheDir, createStorage(0));
+        packManager.open();
+        Assertions.assertFalse(packManager.has(TestUtil.HASH_A));
+        Assertions.assertFalse(packManager.has(TestUtil.HASH_A));
+        Assertions.assertNull(packManager.stat(TestUtil.HASH_A));
+        Assertions.assertEquals(1, s3.heads.get());
+
+        packManager.close();
+    }
+
+    @Test
+    public void readThroughCache() throws IOException {
+
+        byte[] a = TestUtil.random(4, 600);
+        byte[] b = TestUtil.random(5, 600);
+        s3.objects.put(PREFIX + TestUtil.HASH_A, a);
+        s3.objects.put(PREFIX + TestUtil.HASH_B, b);
+
+        // Only one of the packs fits in the cache at a time
+        S3PackStorage storage = createStorage(1000);
+
+        Path file = storage.localFile(TestUtil.HASH_A);
+        Assertions.assertNotNull(file);
+        Assertions.assertArrayEquals(a, Files.readAllBytes(file));
+        Assertions.assertEquals(1, s3.objectGets.get());
+
+        Assertions.assertEquals(file, storage.localFile(TestUtil.HASH_A));
+        Assertions.assertEquals(1, s3.objectGets.get());
+
+        Path other = storage.localFile(TestUtil.HASH_B);
+        Assertions.assertNotNull(other);
+        Assertions.assertArrayEquals(b, Files.readAllBytes(other));
+        Assertions.assertFalse(Files.exists(file));
+
+        Assertions.assertNull(storage.localFile(TestUtil.HASH_C));
+        Assertions.assertEquals(0, s3.badSignatures.get());
+
+        storage.close();
+    }
+
+    /**
+     * Keeps objects in memory and answers the subset of the S3 API used by the storage
+     */
+    private static class FakeS3 {
+
+        private final HttpServer server;
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<String, TreeMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+        private final AtomicInteger nextUpload = new AtomicInteger();
+        private final AtomicInteger completedUploads = new AtomicInteger();
+        private final AtomicInteger objectGets = new AtomicInteger();
+        private final AtomicInteger badSignatures = new AtomicInteger();
+        private final AtomicInteger heads = new AtomicInteger();
+        private volatile boolean omitSize;
+
+        FakeS3() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this::handle);
+            server.start();
+        }
+
+        URI endpoint() {
+            return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try (exchange) {
+                String auth = exchange.getRequestHeaders().getFirst("Authorization");
+                if (auth == null || !AUTHORIZATION.matcher(auth).matches()
+                        || exchange.getRequestHeaders().getFirst("x-amz-date") == null
+                        || exchange.getRequestHeaders().getFirst("x-amz-content-sha256") == null) {
+                    badSignatures.incrementAndGet();
+                    respond(exchange, 403, new byte[0]);
+                    return;
+                }
+
+                String path = exchange.getRequestURI().getPath();
+                if (!path.startsWith("/" + BUCKET)) {
+                    respond(exchange, 404, new byte[0]);
+                    return;
+                }
+                String key = path.length() > BUCKET.length() + 2 ? path.substring(BUCKET.length() + 2) : null;
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                byte[] body = exchange.getRequestBody().readAllBytes();
+
+                switch (exchange.getRequestMethod()) {
+                    case "GET" -> {
+                        if (key == null) {
+                            list(exchange, query);
+                        } else {
+                            get(exchange, key);
+                        }
+                    }
+                    case "HEAD" -> {
+                        heads.incrementAndGet();
+                        byte[] data = objects.get(key);
+                        if (data == null) {
+                            exchange.sendResponseHeaders(404, -1);
+                            return;
+                        }
+                        exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+                        exchange.getResponseHeaders().set("Last-Modified",
+                                DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                    case "PUT" -> {
+                        if (query.containsKey("uploadId")) {
+                            TreeMap<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+                            int number = Integer.parseInt(query.get("partNumber"));
+                            parts.put(number, body);
+                            exchange.getResponseHeaders().set("ETag", "\"part-" + number + "\"");
+                        } else {
+                            objects.put(key, body);
+                        }
+                        respond(exchange, 200, new byte[0]);
+                    }
+                    case "POST" -> {
+                        if (query.containsKey("uploads")) {
+                            String id = "upload-" + nextUpload.incrementAndGet();
+                            uploads.put(id, new TreeMap<>());
+                            respond(exchange, 200, ("<InitiateMultipartUploadResult><UploadId>" + id
+                                    + "</UploadId></InitiateMultipartUploadResult>").getBytes(StandardCharsets.UTF_8));
+                        } else {
+                            TreeMap<Integer, byte[]> parts = uploads.remove(query.get("uploadId"));
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            for (byte[] part : parts.values()) {
+                                out.write(part);
+                            }
+                            objects.put(key, out.toByteArray());
+                            completedUploads.incrementAndGet();
+                            respond(exchange, 200, "<CompleteMultipartUploadResult/>".getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    case "DELETE" -> {
+                        if (query.containsKey("uploadId")) {
+                            uploads.remove(query.get("uploadId"));
+                        } else {
+                            objects.remove(key);
+                        }
+                        exchange.sendResponseHeaders(204, -1);
+                    }
+                    default -> respond(exchange, 405, new byte[0]);
+                }
+            }
+        }
+
+        private void get(HttpExchange exchange, String key) throws IOException {
+            objectGets.incrementAndGet();
+            byte[] data = objects.get(key);
+            if (data == null) {
+                respond(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                respond(exchange, 200, data);
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bounds[0]);
+            int end = Integer.parseInt(bounds[1]);
+            byte[] part = new byte[end - start + 1];
+            System.arraycopy(data, start, part, 0, part.length);
+            respond(exchange, 206, part);
+        }
+
+        private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+            String prefix = query.getOrDefault("prefix", "");
+            List<String> keys = objects.keySet().stream().filter(k -> k.startsWith(prefix)).sorted().toList();
+
+            int start = query.containsKey("continuation-token") ? Integer.parseInt(query.get("continuation-token")) : 0;
+            int end = Math.min(keys.size(), start + 2);
+
+            StringBuilder out = new StringBuilder("<ListBucketResult>");
+            for (String key : keys.subList(start, end)) {
+                out.append("<Contents><Key>").append(key).append("</Key><LastModified>2024-01-01T00:00:00.000Z</LastModified>");
+                if (!omitSize) {
+                    out.append("<Size>").append(objects.get(key).length).append("</Size>");
+                }
+                out.append("</Contents>");
+            }
+            out.append("<IsTruncated>").append(end < keys.size()).append("</IsTruncated>");
+            if (end < keys.size()) {
+                out.append("<NextContinuationToken>").append(end).append("</NextContinuationToken>");
+            }
+            out.append("</ListBucketResult>");
+            respond(exchange, 200, out.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        }
+
+        private static Map<String, String> parseQuery(String query) {
+            Map<String, String> out = new HashMap<>();
+            if (query == null || query.isEmpty()) {
+                return out;
+            }
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                String name = eq == -1 ? param : param.substring(0, eq);
+                String value = eq == -1 ? "" : param.substring(eq + 1);
+                out.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+            return out;
+        }
+    }
+}
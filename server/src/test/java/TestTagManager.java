@@ -0,0 +1,191 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.wallentines.packserver.TagManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class TestTagManager {
+
+    private static final Set<String> HASHES = Set.of(TestUtil.HASH_A, TestUtil.HASH_B, TestUtil.HASH_C);
+
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 2000;
+    private static final int NAMES = 4;
+    private static final int VERSIONS = 4;
+
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = TestUtil.createTempDirectory("tags");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        TestUtil.deleteDirectory(root);
+    }
+
+    @Test
+    public void testNegativeCache() {
+
+        TagManager tm = new TagManager(root);
+        Assertions.assertNull(tm.getHash("pack:1"));
+        Assertions.assertNull(tm.getHash("pack:1"));
+        Assertions.assertNull(tm.getHash("not a tag!"));
+
+        tm.pushTag("pack:1", TestUtil.HASH_A);
+        Assertions.assertEquals(TestUtil.HASH_A, tm.getHash("pack:1"));
+
+        tm.pushTag("pack:1", TestUtil.HASH_B);
+        Assertions.assertEquals(TestUtil.HASH_B, tm.getHash("pack:1"));
+
+        tm.removeTag("pack:1");
+        Assertions.assertNull(tm.getHash("pack:1"));
+        Assertions.assertFalse(Files.exists(root.resolve("pack").resolve("1")));
+    }
+
+    @Test
+    public void testMissingExpires() throws InterruptedException {
+
+        TagManager tm = new TagManager(root, 100);
+        tm.pushTag("pack:1", TestUtil.HASH_A);
+        Assertions.assertNull(tm.getHash("pack:2"));
+
+        // Written by another server sharing the directory
+        new TagManager(root).pushTag("pack:2", TestUtil.HASH_B);
+        Thread.sleep(200);
+        Assertions.assertEquals(TestUtil.HASH_B, tm.getHash("pack:2"));
+    }
+
+    @Test
+    public void testUnknownNamesNotCached() {
+
+        TagManager tm = new TagManager(root);
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertNull(tm.getHash("unknown" + i));
+        }
+        Assertions.assertNull(tm.getAllHashes("unknown0"));
+
+        // Names created by other servers are still found
+        new TagManager(root).pushTag("unknown0", TestUtil.HASH_A);
+        Assertions.assertEquals(TestUtil.HASH_A, tm.getHash("unknown0"));
+    }
+
+    @Test
+    public void testLatest() {
+
+        TagManager tm = new TagManager(root);
+        tm.pushTag("pack", TestUtil.HASH_A);
+        Assertions.assertEquals(TestUtil.HASH_A, tm.getHash("pack:latest"));
+        Assertions.assertEquals(TestUtil.HASH_A, new TagManager(root).getHash("pack"));
+    }
+
+    @Test
+    public void testRemoveAll() {
+
+        TagManager tm = new TagManager(root);
+        tm.pushTag("pack:1", TestUtil.HASH_A);
+        tm.pushTag("pack:2", TestUtil.HASH_B);
+        Assertions.assertEquals(TestUtil.HASH_A, tm.getHash("pack:1"));
+
+        // Written by another server sharing the directory, so not cached
+        new TagManager(root).pushTag("pack:3", TestUtil.HASH_C);
+
+        tm.removeAll("pack");
+        Assertions.assertNull(tm.getHash("pack:1"));
+        Assertions.assertNull(tm.getHash("pack:2"));
+        Assertions.assertNull(tm.getHash("pack:3"));
+        Assertions.assertFalse(Files.exists(root.resolve("pack")));
+
+        tm.pushTag("pack:1", TestUtil.HASH_C);
+        Assertions.assertEquals(TestUtil.HASH_C, tm.getHash("pack:1"));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+
+        TagManager tm = new TagManager(root);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                String own = "own" + i + ":1";
+                workers.add(executor.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int j = 0; j < ITERATIONS; j++) {
+
+                        String name = "pack" + random.nextInt(NAMES);
+                        String tag = name + ":" + random.nextInt(VERSIONS);
+                        String hash = switch (random.nextInt(3)) {
+                            case 0 -> TestUtil.HASH_A;
+                            case 1 -> TestUtil.HASH_B;
+                            default -> TestUtil.HASH_C;
+                        };
+
+                        int op = random.nextInt(100);
+                        if (op < 60) {
+                            String found = tm.getHash(tag);
+                            Assertions.assertTrue(found == null || HASHES.contains(found), "Unexpected hash " + found);
+                        } else if (op < 85) {
+                            tm.pushTag(tag, hash);
+                        } else if (op < 98) {
+                            tm.removeTag(tag);
+                        } else {
+                            tm.removeAll(name);
+                        }
+
+                        // Tags only this thread writes must always read back
+                        tm.pushTag(own, hash);
+                        Assertions.assertEquals(hash, tm.getHash(own));
+                        if (random.nextBoolean()) {
+                            tm.removeTag(own);
+                            Assertions.assertNull(tm.getHash(own));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        // The cache must agree with what ended up in the tag directory
+        TagManager fresh = new TagManager(root);
+        for (int i = 0; i < NAMES; i++) {
+            for (int j = 0; j < VERSIONS; j++) {
+                String tag = "pack" + i + ":" + j;
+                Assertions.assertEquals(fresh.getHash(tag), tm.getHash(tag), tag);
+            }
+        }
+        for (int i = 0; i < THREADS; i++) {
+            String tag = "own" + i + ":1";
+            Assertions.assertEquals(fresh.getHash(tag), tm.getHash(tag), tag);
+        }
+
+        // Tags are written through temporary files, which must not be left behind
+        try (Stream<Path> files = Files.list(root)) {
+            Assertions.assertTrue(files.allMatch(Files::isDirectory));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Fixtures shared by the storage and tag tests
+ */
+public final class TestUtil {
+
+    public static final String HASH_A = "0123456789abcdef0123456789abcdef01234567";
+    public static final String HASH_B = "89abcdef0123456789abcdef0123456789abcdef";
+    public static final String HASH_C = "fedcba9876543210fedcba9876543210fedcba98";
+
+    private TestUtil() { }
+
+    /**
+     * Creates an empty temporary directory, to be removed with {@link #deleteDirectory(Path)}
+     */
+    public static Path createTempDirectory(String name) throws IOException {
+        return Files.createTempDirectory("packserver-" + name);
+    }
+
+    /**
+     * Deletes a directory and everything in it
+     */
+    public static void deleteDirectory(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Creates a zip with one entry for each array, with fixed names and times
+     */
+    public static byte[] zip(byte[]... entries) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+            for (int i = 0; i < entries.length; i++) {
+                ZipEntry ze = new ZipEntry("assets/file" + i + ".bin");
+                ze.setTime(0);
+                zos.putNextEntry(ze);
+                zos.write(entries[i]);
+                zos.closeEntry();
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Creates random data which is the same for the same seed
+     */
+    public static byte[] random(long seed, int length) {
+        byte[] out = new byte[length];
+        new Random(seed).nextBytes(out);
+        return out;
+    }
+
+    public static String sha1(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
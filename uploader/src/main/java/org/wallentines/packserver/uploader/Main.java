@@ -4,6 +4,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -11,16 +14,19 @@ import java.nio.file.attribute.FileTime;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.cli.*;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.entity.mime.*;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.client5.http.utils.Hex;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpResponse;
 import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.wallentines.mdcfg.ConfigSection;
@@ -92,6 +98,9 @@ public class Main {
 
         AbstractContentBody dataBody;
         String sha1;
+        long size;
+        ResumableUpload.Source source;
+        DeltaUpload.Opener opener;
 
         // Make a zip file
         if (Files.isDirectory(inputFile)) {
@@ -131,6 +140,11 @@ public class Main {
                     bytes, ContentType.APPLICATION_OCTET_STREAM,
                     inputFile.getFileName().toString());
                 sha1 = getSha1(new ByteArrayInputStream(bytes));
+                size = bytes.length;
+                opener = () -> new ByteArrayInputStream(bytes);
+                source = (offset, length)
+                    -> Arrays.copyOfRange(bytes, (int)offset,
+                                          (int)offset + length);
 
             } catch (IOException | GeneralSecurityException ex) {
                 throw new RuntimeException(ex);
@@ -141,9 +155,21 @@ public class Main {
                                     ContentType.APPLICATION_OCTET_STREAM);
             try (InputStream is = Files.newInputStream(inputFile)) {
                 sha1 = getSha1(is);
+                size = Files.size(inputFile);
             } catch (GeneralSecurityException | IOException ex) {
                 throw new RuntimeException(ex);
             }
+            opener = () -> Files.newInputStream(inputFile);
+            source = (offset, length) -> {
+                try (FileChannel ch = FileChannel.open(inputFile)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(length);
+                    int read;
+                    do {
+                        read = ch.read(buffer, offset + buffer.position());
+                    } while (read != -1 && buffer.hasRemaining());
+                    return buffer.array();
+                }
+            };
         }
 
         try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
@@ -170,9 +196,35 @@ public class Main {
                 System.out.println(
                     "Success! Tagged an existing pack with that hash!");
 
+            } else if (tag != null &&
+                       new DeltaUpload(client, address, token, sha1, tag,
+                                       opener)
+                           .push()) {
+
+                System.out.println(
+                    "Success! Uploaded the changes to an existing pack!");
+
+            } else if (size > ResumableUpload.THRESHOLD) {
+
+                new ResumableUpload(client, address, token, sha1, tag, size,
+                                    source)
+                    .run();
+                System.out.println("Success! Uploaded a new pack!");
+
             } else {
 
-                HttpPost post = new HttpPost(address + "push");
+                // The server checks the token before asking for the body,
+                // and can skip it if it already has the pack
+                String pushEndpoint = address + "push?hash=" + sha1;
+                if (tag != null) {
+                    pushEndpoint += "&tag=" + URLEncoder.encode(
+                                                  tag, StandardCharsets.UTF_8);
+                }
+                HttpPost post = new HttpPost(pushEndpoint);
+                post.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+                post.setConfig(RequestConfig.custom()
+                                   .setExpectContinueEnabled(true)
+                                   .build());
                 MultipartEntityBuilder builder =
                     MultipartEntityBuilder.create()
                         .addPart("token", new StringBody(
@@ -0,0 +1,220 @@
+package org.wallentines.packserver.uploader;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+
+/**
+ * Uploads a pack in chunks through an upload session, so an upload which
+ * fails partway picks up where it left off rather than starting over. The
+ * session is remembered in the temporary directory, so a later run for the
+ * same pack resumes it too.
+ */
+public class ResumableUpload {
+
+    /**
+     * Packs larger than this are uploaded in chunks
+     */
+    public static final long THRESHOLD = 8L * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final CloseableHttpClient client;
+    private final String address;
+    private final String token;
+    private final String sha1;
+    private final String tag;
+    private final long size;
+    private final Source source;
+    private final Path stateFile;
+
+    /**
+     * Creates an upload
+     * @param client The client to send requests with
+     * @param address The server's URL, ending in a slash
+     * @param token The token to authenticate with
+     * @param sha1 The pack's SHA-1 hash
+     * @param tag The tag to give the pack, or null
+     * @param size The size of the pack, in bytes
+     * @param source Where to read the pack from
+     */
+    public ResumableUpload(CloseableHttpClient client, String address,
+                           String token, String sha1, String tag, long size,
+                           Source source) {
+        this.client = client;
+        this.address = address;
+        this.token = token;
+        this.sha1 = sha1;
+        this.tag = tag;
+        this.size = size;
+        this.source = source;
+        this.stateFile = Paths.get(System.getProperty("java.io.tmpdir"),
+                                   "packserver-upload-" + sha1 + "-" +
+                                       Integer.toHexString(address.hashCode()));
+    }
+
+    /**
+     * Uploads the pack, retrying with the same session if a request fails
+     */
+    public void run() throws IOException {
+
+        IOException error = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                upload();
+                Files.deleteIfExists(stateFile);
+                return;
+            } catch (IOException ex) {
+                error = ex;
+                System.err.println("Upload attempt " + attempt +
+                                   " failed: " + ex.getMessage());
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                break;
+            }
+
+            try {
+                Thread.sleep(1000L << attempt);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw error;
+    }
+
+    private void upload() throws IOException {
+
+        String id = null;
+        List<long[]> received = null;
+        if (Files.exists(stateFile)) {
+            id = Files.readString(stateFile).trim();
+            received = getReceived(id);
+        }
+        if (received == null) {
+            id = createSession();
+            Files.writeString(stateFile, id);
+            received = List.of();
+        }
+
+        for (long[] gap : missing(received)) {
+            for (long offset = gap[0]; offset < gap[1]; offset += CHUNK_SIZE) {
+                int length = (int)Math.min(CHUNK_SIZE, gap[1] - offset);
+                putChunk(id, offset, source.read(offset, length));
+            }
+        }
+
+        String uri = address + "upload/commit?id=" + id + "&hash=" + sha1;
+        if (tag != null) {
+            uri += "&tag=" + URLEncoder.encode(tag, StandardCharsets.UTF_8);
+        }
+        Response res = send(new HttpPost(uri));
+        if (res.code() == 400) {
+            // The server received something other than the pack, so the
+            // session cannot be resumed
+            Files.deleteIfExists(stateFile);
+            throw new IOException("The server rejected the uploaded pack");
+        }
+        if (res.code() != 200) {
+            throw new IOException("Could not commit upload (" + res.code() +
+                                  ")");
+        }
+    }
+
+    private String createSession() throws IOException {
+        Response res = send(new HttpPost(address + "upload?size=" + size));
+        if (res.code() != 200) {
+            throw new IOException("Could not start upload (" + res.code() +
+                                  ")");
+        }
+        return res.body().trim();
+    }
+
+    /**
+     * Asks the server which parts of the pack it has
+     * @return The received ranges, or null if the session no longer exists
+     */
+    private List<long[]> getReceived(String id) throws IOException {
+        Response res = send(new HttpGet(address + "upload?id=" + id));
+        if (res.code() == 404) {
+            return null;
+        }
+        if (res.code() != 200) {
+            throw new IOException("Could not check upload (" + res.code() +
+                                  ")");
+        }
+
+        List<long[]> out = new ArrayList<>();
+        for (String line : res.body().split("\n")) {
+            int dash = line.indexOf('-');
+            if (dash != -1) {
+                out.add(new long[] {Long.parseLong(line.substring(0, dash)),
+                                    Long.parseLong(line.substring(dash + 1))});
+            }
+        }
+        return out;
+    }
+
+    private List<long[]> missing(List<long[]> received) {
+        List<long[]> out = new ArrayList<>();
+        long position = 0;
+        for (long[] range : received) {
+            if (range[0] > position) {
+                out.add(new long[] {position, range[0]});
+            }
+            position = Math.max(position, range[1]);
+        }
+        if (position < size) {
+            out.add(new long[] {position, size});
+        }
+        return out;
+    }
+
+    private void putChunk(String id, long offset, byte[] data)
+        throws IOException {
+        HttpPut put =
+            new HttpPut(address + "upload?id=" + id + "&offset=" + offset);
+        put.setEntity(
+            new ByteArrayEntity(data, ContentType.APPLICATION_OCTET_STREAM));
+        Response res = send(put);
+        if (res.code() != 200) {
+            throw new IOException("Could not upload chunk at " + offset +
+                                  " (" + res.code() + ")");
+        }
+    }
+
+    private Response send(ClassicHttpRequest req) throws IOException {
+        req.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        return client.execute(
+            req, res
+            -> new Response(res.getCode(),
+                            res.getEntity() == null
+                                ? ""
+                                : EntityUtils.toString(res.getEntity())));
+    }
+
+    private record Response(int code, String body) {}
+
+    /**
+     * Reads parts of the pack being uploaded
+     */
+    @FunctionalInterface
+    public interface Source {
+        byte[] read(long offset, int length) throws IOException;
+    }
+}